@@ -17,16 +17,31 @@
  */
 package it.openutils.log4j;
 
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Timer;
 import java.util.TimerTask;
-
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.mail.Address;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
@@ -39,8 +54,6 @@ import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 import javax.mail.internet.MimeUtility;
 
-import org.apache.commons.lang3.ArrayUtils;
-import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.AppenderSkeleton;
 import org.apache.log4j.Layout;
@@ -49,7 +62,9 @@ import org.apache.log4j.PatternLayout;
 import org.apache.log4j.helpers.LogLog;
 import org.apache.log4j.helpers.OptionConverter;
 import org.apache.log4j.spi.ErrorCode;
+import org.apache.log4j.spi.Filter;
 import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
 import org.apache.log4j.spi.TriggeringEventEvaluator;
 
 
@@ -59,8 +74,17 @@ import org.apache.log4j.spi.TriggeringEventEvaluator;
  * <li>allow customizing the mail subject using a pattern</li>
  * <li>can be configured with a timeout (in seconds), it will only send messages after this timeout</li>
  * <li>it will send a mail for every single message (bufferSize is not supported), but it will aggregate any identical
- * log event received during the timeout. Identical events are log with same message and same stack trace</li>
+ * log event received during the timeout. Identical events are log with same message, same exception and same top
+ * stack frames (<code>FingerprintFrames</code>, 10 by default)</li>
+ * <li>with <code>Digest</code> set to <code>true</code> it will send a single mail for all the events received during
+ * the timeout, starting with a summary of the events</li>
  * </ul>
+ * Logging threads never wait for a mail to be sent: events are aggregated in a concurrent map, which is swapped with
+ * an empty one when the timeout expires, or as soon as possible if the timeout is 0, and queued for a dedicated sender
+ * thread. When the sender is behind and the queue (<code>QueueSize</code>) is full, <code>QueueFullPolicy</code>
+ * decides whether events keep being aggregated (<code>coalesce</code>, the default) or whole windows are discarded
+ * (<code>dropNewest</code>, <code>dropOldest</code>). <code>SendTimeout</code> bounds each SMTP operation, and
+ * <code>close()</code> waits up to <code>CloseTimeout</code> milliseconds for the queued mails to be sent.
  * 
  * <pre>
  *  &lt;appender name="mail" class="it.openutils.log4j.AlternateSMTPAppender"&lgt;
@@ -90,34 +114,70 @@ import org.apache.log4j.spi.TriggeringEventEvaluator;
 public class AlternateSMTPAppender extends AppenderSkeleton
 {
 
-    protected Map<LoggingEventAggregator, LoggingEventAggregator> events = new LinkedHashMap<LoggingEventAggregator, LoggingEventAggregator>()
-    {
+    /**
+     * The e-mails collected in a window are discarded when the queue is full.
+     */
+    public static final String QUEUE_DROP_NEWEST = "dropNewest";
 
-        /**
-         *
-         */
-        private static final long serialVersionUID = 1L;
+    /**
+     * The oldest queued e-mails are discarded when the queue is full.
+     */
+    public static final String QUEUE_DROP_OLDEST = "dropOldest";
 
-        /**
-         * {@inheritDoc}
-         */
-        @Override
-        public LoggingEventAggregator put(LoggingEventAggregator key, LoggingEventAggregator value)
-        {
-            LoggingEventAggregator lea = this.get(key);
-            if (lea != null)
-            {
-                lea.incrementCount();
-                return lea;
-            }
+    /**
+     * Events keep being aggregated in the current window until there is space in the queue.
+     */
+    public static final String QUEUE_COALESCE = "coalesce";
 
-            return super.put(key, value);
-        }
+    private static final int DEFAULT_QUEUE_SIZE = 16;
+
+    private static final long COALESCE_DELAY = 1000L;
+
+    private static final int SUMMARY_MESSAGE_LENGTH = 120;
+
+    private static final DateTimeFormatter SUMMARY_DATE_FORMAT = DateTimeFormatter
+        .ofPattern("yyyy-MM-dd HH:mm:ss,SSS")
+        .withZone(ZoneId.systemDefault());
+
+    /**
+     * Events collected since the last flush, swapped with an empty window when the timeout expires.
+     */
+    private final AtomicReference<AggregationWindow> window = new AtomicReference<AggregationWindow>(
+        new AggregationWindow());
+
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
 
-    };
+    /**
+     * Guards {@link #msg}, which is reused for every mail.
+     */
+    private final Object sendLock = new Object();
+
+    private final Object pendingLock = new Object();
+
+    /**
+     * E-mails queued and not yet sent, guarded by {@link #pendingLock}.
+     */
+    private int pending;
+
+    /**
+     * Events discarded because the queue was full, reported with the next e-mail.
+     */
+    private final AtomicInteger dropped = new AtomicInteger();
+
+    /**
+     * Events discarded because the limits were reached, in windows which were discarded in turn because the queue was
+     * full. Reported with the next e-mail.
+     */
+    private final AtomicInteger droppedOverflow = new AtomicInteger();
+
+    private volatile BlockingQueue<MailBatch> sendQueue = new ArrayBlockingQueue<MailBatch>(DEFAULT_QUEUE_SIZE);
+
+    private Thread sender;
 
     protected Message msg;
 
+    private Session session;
+
     protected TriggeringEventEvaluator evaluator;
 
     private String to;
@@ -134,10 +194,30 @@ public class AlternateSMTPAppender extends AppenderSkeleton
 
     private Timer timer = new Timer("log4j mail appender", true);
 
-    private TimerTask timerTask;
-
     private int timeout;
 
+    private int fingerprintFrames = LoggingEventAggregator.DEFAULT_FINGERPRINT_FRAMES;
+
+    private int maxEvents = 1000;
+
+    private long maxBytes = 16L * 1024 * 1024;
+
+    private boolean digest;
+
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+
+    private String queueFullPolicy = QUEUE_COALESCE;
+
+    private int sendTimeout = 30000;
+
+    private long closeTimeout = 5000L;
+
+    /**
+     * Set by {@link #close()}. <code>AppenderSkeleton.closed</code> is not volatile, and is not safe to read from the
+     * logging threads and the timer thread without holding the appender lock.
+     */
+    private volatile boolean stopped;
+
     /**
      * The default constructor will instantiate the appender with a {@link TriggeringEventEvaluator} that will trigger
      * on events with level ERROR or higher.
@@ -170,8 +250,21 @@ public class AlternateSMTPAppender extends AppenderSkeleton
         {
             props.put("mail.smtp.host", smtpHost);
         }
+        if (sendTimeout > 0)
+        {
+            for (String key : new String[]{
+                "mail.smtp.connectiontimeout",
+                "mail.smtp.timeout",
+                "mail.smtp.writetimeout" })
+            {
+                if (props.getProperty(key) == null)
+                {
+                    props.put(key, Integer.toString(sendTimeout));
+                }
+            }
+        }
 
-        Session session = Session.getInstance(props, null);
+        session = Session.getInstance(props, null);
         msg = new MimeMessage(session);
 
         try
@@ -191,11 +284,72 @@ public class AlternateSMTPAppender extends AppenderSkeleton
         {
             LogLog.error("Could not activate SMTPAppender options.", e);
         }
+
+        if (sender == null)
+        {
+            sendQueue = new ArrayBlockingQueue<MailBatch>(Math.max(1, queueSize));
+            sender = new Thread(new Runnable()
+            {
+
+                public void run()
+                {
+                    try
+                    {
+                        while (true)
+                        {
+                            send(sendQueue.take());
+                        }
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // closed
+                    }
+                }
+            }, "log4j mail sender [" + name + "]");
+            sender.setDaemon(true);
+            sender.start();
+        }
+    }
+
+    /**
+     * Same as <code>AppenderSkeleton.doAppend()</code>, without synchronization: events are aggregated in a concurrent
+     * map, so logging threads don't need to wait for each other.
+     */
+    @Override
+    public void doAppend(LoggingEvent event)
+    {
+        if (stopped)
+        {
+            LogLog.error("Attempted to append to closed appender named [" + name + "].");
+            return;
+        }
+
+        if (!isAsSevereAsThreshold(event.getLevel()))
+        {
+            return;
+        }
+
+        Filter f = this.headFilter;
+        FILTER_LOOP : while (f != null)
+        {
+            switch (f.decide(event))
+            {
+                case Filter.DENY :
+                    return;
+                case Filter.ACCEPT :
+                    break FILTER_LOOP;
+                case Filter.NEUTRAL :
+                default :
+                    f = f.getNext();
+            }
+        }
+
+        this.append(event);
     }
 
     /**
-     * Perform SMTPAppender specific appending actions, mainly adding the event to a cyclic buffer and checking if the
-     * event triggers an e-mail to be sent.
+     * Perform SMTPAppender specific appending actions, mainly adding the event to the aggregation map and scheduling
+     * the e-mail to be sent.
      * @param event to be logged
      */
     @Override
@@ -207,6 +361,11 @@ public class AlternateSMTPAppender extends AppenderSkeleton
             return;
         }
 
+        if (!evaluator.isTriggeringEvent(event))
+        {
+            return;
+        }
+
         event.getThreadName();
         event.getNDC();
         event.getMDCCopy();
@@ -216,51 +375,451 @@ public class AlternateSMTPAppender extends AppenderSkeleton
             event.getLocationInformation();
         }
 
-        LoggingEventAggregator leg = new LoggingEventAggregator(event);
+        LoggingEventAggregator leg = new LoggingEventAggregator(event, fingerprintFrames);
+        while (!window.get().add(leg, maxEvents, maxBytes))
+        {
+            // flushed meanwhile, retry with the new window
+        }
 
-        if (evaluator.isTriggeringEvent(event))
+        if (flushScheduled.compareAndSet(false, true))
         {
-            if (timeout == 0)
+            scheduleFlush(this.timeout * 1000L);
+        }
+    }
+
+    private void scheduleFlush(long delay)
+    {
+        try
+        {
+            timer.schedule(new TimerTask()
             {
-                // send immediately
-                synchronized (events)
+
+                @Override
+                public void run()
                 {
-                    Collection<LoggingEventAggregator> le = new ArrayList<>();
-                    le.add(leg);
-                    sendBuffer(le);
+                    flush();
                 }
+            }, delay);
+        }
+        catch (IllegalStateException e)
+        {
+            flushScheduled.set(false);
+            LogLog.warn("Mail timer cancelled, event not sent.");
+        }
+    }
+
+    /**
+     * Swaps the aggregation window with an empty one and queues the collected events, in order of first occurrence,
+     * for the sender thread.
+     */
+    void flush()
+    {
+        if (!stopped && QUEUE_COALESCE.equalsIgnoreCase(queueFullPolicy) && sendQueue.remainingCapacity() == 0)
+        {
+            // the sender is behind, keep aggregating in the current window and retry later
+            scheduleFlush(Math.max(this.timeout * 1000L, COALESCE_DELAY));
+            return;
+        }
+
+        // reset before swapping, so that events added to the new window schedule another flush
+        flushScheduled.set(false);
+        AggregationWindow collecting = window.getAndSet(new AggregationWindow());
+        Collection<LoggingEventAggregator> collected = collecting.seal();
+        int overflow = collecting.getOverflow() + droppedOverflow.getAndSet(0);
+        int queueDropped = dropped.getAndSet(0);
+        if (collected.isEmpty() && overflow == 0 && queueDropped == 0)
+        {
+            return;
+        }
+
+        enqueue(new MailBatch(sortBySequence(collected), overflow, queueDropped));
+    }
+
+    private static List<LoggingEventAggregator> sortBySequence(Collection<LoggingEventAggregator> events)
+    {
+        List<LoggingEventAggregator> sorted = new ArrayList<LoggingEventAggregator>(events);
+        Collections.sort(sorted, new Comparator<LoggingEventAggregator>()
+        {
+
+            public int compare(LoggingEventAggregator o1, LoggingEventAggregator o2)
+            {
+                return Long.compare(o1.getSequence(), o2.getSequence());
             }
-            else
+        });
+        return sorted;
+    }
+
+    /**
+     * Returns a snapshot of the events collected since the last flush, in order of first occurrence.
+     * @return the events waiting to be sent, not modifiable
+     * @deprecated replaces the <code>events</code> field, removed when events started being collected without locking.
+     * Changes to the returned map are not seen by the appender.
+     */
+    @Deprecated
+    protected Map<LoggingEventAggregator, LoggingEventAggregator> getEvents()
+    {
+        Map<LoggingEventAggregator, LoggingEventAggregator> events =
+            new LinkedHashMap<LoggingEventAggregator, LoggingEventAggregator>();
+        for (LoggingEventAggregator event : sortBySequence(window.get().getEvents()))
+        {
+            events.put(event, event);
+        }
+        return Collections.unmodifiableMap(events);
+    }
+
+    private void enqueue(MailBatch batch)
+    {
+        synchronized (pendingLock)
+        {
+            pending++;
+        }
+
+        boolean queued = sendQueue.offer(batch);
+        if (!queued && stopped)
+        {
+            try
+            {
+                queued = sendQueue.offer(batch, closeTimeout, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        else if (!queued && QUEUE_DROP_OLDEST.equalsIgnoreCase(queueFullPolicy))
+        {
+            while (!queued)
+            {
+                MailBatch oldest = sendQueue.poll();
+                if (oldest != null)
+                {
+                    discard(oldest);
+                }
+                queued = sendQueue.offer(batch);
+            }
+        }
+
+        if (!queued)
+        {
+            discard(batch);
+        }
+    }
+
+    private void discard(MailBatch batch)
+    {
+        int count = 0;
+        for (LoggingEventAggregator lea : batch.getEvents())
+        {
+            count += lea.getCount();
+        }
+        // reported with the next e-mail
+        dropped.addAndGet(batch.getDropped() + count);
+        droppedOverflow.addAndGet(batch.getOverflow());
+        LogLog.warn(queueFullNotice(count));
+        sent();
+    }
+
+    private void send(MailBatch batch)
+    {
+        try
+        {
+            if (digest)
+            {
+                sendDigest(batch.getEvents(), batch.getOverflow(), batch.getDropped());
+                return;
+            }
+
+            sendBuffer(batch.getEvents());
+            if (batch.getOverflow() > 0)
+            {
+                sendOverflow(batch.getOverflow());
+            }
+            if (batch.getDropped() > 0)
             {
-                events.put(leg, leg);
+                sendQueueFull(batch.getDropped());
+            }
+        }
+        finally
+        {
+            sent();
+        }
+    }
 
-                if (timerTask == null)
+    private void sent()
+    {
+        synchronized (pendingLock)
+        {
+            pending--;
+            pendingLock.notifyAll();
+        }
+    }
 
+    /**
+     * Waits until all the queued e-mails have been sent or discarded.
+     * @param timeoutMillis maximum time to wait, in milliseconds
+     * @return <code>false</code> if the timeout expired
+     */
+    boolean awaitSent(long timeoutMillis)
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (pendingLock)
+        {
+            while (pending > 0)
+            {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0)
+                {
+                    return false;
+                }
+                try
                 {
+                    pendingLock.wait(wait);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends all the events collected during the timeout as a single e-mail: the first part is a summary with the
+     * message, the number of occurrences and the time of the first and last occurrence of every event, followed by one
+     * part per event.
+     * @param eventsCollection to be sent
+     * @param overflow number of events discarded because the limits were reached
+     * @param dropped number of events discarded because the queue was full
+     */
+    protected void sendDigest(Collection<LoggingEventAggregator> eventsCollection, int overflow, int dropped)
+    {
+        synchronized (sendLock)
+        {
+            try
+            {
+                Multipart mp = new MimeMultipart();
+                mp.addBodyPart(formatSummary(eventsCollection, overflow, dropped));
 
-                    timerTask = new TimerTask()
+                String subject = null;
+                for (LoggingEventAggregator lea : eventsCollection)
+                {
+                    if (subject == null && this.subjectLayout != null)
                     {
+                        subject = formatSubject(lea.getLoggingEvent());
+                    }
+                    mp.addBodyPart(formatEvent(lea));
+                }
 
-                        @Override
-                        public void run()
-                        {
-                            Collection<LoggingEventAggregator> le;
-                            synchronized (events)
-                            {
-                                le = new ArrayList<>(events.values());
-                                events.clear();
-                                timerTask = null;
-                            }
-
-                            sendBuffer(le);
-                        }
-                    };
+                if (eventsCollection.isEmpty())
+                {
+                    subject = overflow > 0 ? overflowNotice(overflow) : queueFullNotice(dropped);
+                }
+                else if (subject != null && eventsCollection.size() > 1)
+                {
+                    subject = subject + " (+" + (eventsCollection.size() - 1) + " more)";
+                }
+                // without a Subject layout the digest has no subject, like single e-mails
+                msg.setSubject(subject);
+                msg.setContent(mp);
+
+                msg.setSentDate(new Date());
+                Transport.send(msg);
+            }
+            catch (Exception e)
+            {
+                LogLog.error("Error occured while sending e-mail notification.", e);
+            }
+        }
+    }
+
+    private MimeBodyPart formatSummary(Collection<LoggingEventAggregator> eventsCollection, int overflow,
+        int dropped) throws MessagingException
+    {
+        boolean html = StringUtils.containsIgnoreCase(layout.getContentType(), "html");
+        StringBuilder sbuf = new StringBuilder();
+        if (html)
+        {
+            sbuf.append("<table><tr><th>Message</th><th>Count</th><th>First</th><th>Last</th></tr>\n");
+        }
+        else
+        {
+            sbuf.append("Count  First                    Last                     Message\n");
+        }
+
+        for (LoggingEventAggregator lea : eventsCollection)
+        {
+            String message = StringUtils.abbreviate(
+                StringUtils.substringBefore(StringUtils.trim(lea.getLoggingEvent().getRenderedMessage()), "\n"),
+                SUMMARY_MESSAGE_LENGTH);
+            String first = SUMMARY_DATE_FORMAT.format(Instant.ofEpochMilli(lea.getLoggingEvent().timeStamp));
+            String last = SUMMARY_DATE_FORMAT.format(Instant.ofEpochMilli(lea.getLastTimeStamp()));
+            if (html)
+            {
+                sbuf.append("<tr><td>");
+                sbuf.append(StringUtils.replaceEach(
+                    message,
+                    new String[]{"&", "<", ">", "\"" },
+                    new String[]{"&amp;", "&lt;", "&gt;", "&quot;" }));
+                sbuf.append("</td><td>").append(lea.getCount());
+                sbuf.append("</td><td>").append(first);
+                sbuf.append("</td><td>").append(last);
+                sbuf.append("</td></tr>\n");
+            }
+            else
+            {
+                sbuf.append(StringUtils.leftPad(Integer.toString(lea.getCount()), 5)).append("  ");
+                sbuf.append(first).append("  ");
+                sbuf.append(last).append("  ");
+                sbuf.append(message).append("\n");
+            }
+        }
+
+        if (html)
+        {
+            sbuf.append("</table>\n");
+        }
+        if (overflow > 0)
+        {
+            sbuf.append(html ? "<p>" : "\n");
+            sbuf.append(overflowNotice(overflow));
+            sbuf.append(html ? "</p>\n" : "\n");
+        }
+        if (dropped > 0)
+        {
+            sbuf.append(html ? "<p>" : "\n");
+            sbuf.append(queueFullNotice(dropped));
+            sbuf.append(html ? "</p>\n" : "\n");
+        }
+
+        MimeBodyPart part = new MimeBodyPart();
+        part.setContent(sbuf.toString(), html ? layout.getContentType() : "text/plain");
+        return part;
+    }
+
+    private String formatSubject(LoggingEvent event)
+    {
+        String subject = this.subjectLayout.format(event);
+
+        if (subject != null)
+        {
+            subject = subject.trim();
+            if (subject.indexOf("\n") > 0)
+            {
+                subject = subject.substring(0, subject.indexOf("\n"));
+            }
+        }
+        return subject;
+    }
+
+    private MimeBodyPart formatEvent(LoggingEventAggregator lea) throws MessagingException
+    {
+        MimeBodyPart part = new MimeBodyPart();
 
-                    this.timer.schedule(this.timerTask, this.timeout * 1000L);
+        StringBuilder sbuf = new StringBuilder();
 
+        LoggingEvent event = lea.getLoggingEvent();
+
+        if (layout.getHeader() != null)
+        {
+            if (headerLayout == null)
+            {
+                String header = layout.getHeader();
+                header = StringUtils.replace(header, "%o", "{number_of_occurrences}");
+                headerLayout = new PatternLayout(header);
+            }
+            String t = headerLayout.format(event);
+            if (t != null)
+            {
+                t = StringUtils.replace(t, "{number_of_occurrences}", Integer.toString(lea.getCount()));
+                sbuf.append(t);
+                sbuf.append("\n");
+            }
+        }
+
+        sbuf.append(layout.format(event));
+        if (layout.ignoresThrowable())
+        {
+            String[] s = event.getThrowableStrRep();
+            if (s != null)
+            {
+                for (String element : s)
+                {
+                    sbuf.append(element);
                 }
             }
         }
+        String t = layout.getFooter();
+        if (t != null)
+        {
+            t = StringUtils.replace(t, "%n", Layout.LINE_SEP);
+            sbuf.append(t);
+        }
+        part.setContent(sbuf.toString(), layout.getContentType());
+        return part;
+    }
+
+    /**
+     * Sends a notice with the number of events which were not aggregated because the limits were reached.
+     * @param overflow number of discarded events
+     */
+    protected void sendOverflow(int overflow)
+    {
+        sendNotice(overflowNotice(overflow), "Raise the MaxEvents and MaxBytes options of the appender to keep them.");
+    }
+
+    /**
+     * Sends a notice with the number of events which were not sent because the queue was full.
+     * @param dropped number of discarded events
+     */
+    protected void sendQueueFull(int dropped)
+    {
+        sendNotice(
+            queueFullNotice(dropped),
+            "Raise the QueueSize option of the appender, or set its QueueFullPolicy to coalesce, to keep them.");
+    }
+
+    private void sendNotice(String notice, String advice)
+    {
+        synchronized (sendLock)
+        {
+            try
+            {
+                // a new message, so that the subject is not inherited by the following e-mails
+                Message message = new MimeMessage(session);
+                Address[] sender = msg.getFrom();
+                if (sender != null)
+                {
+                    message.addFrom(sender);
+                }
+                message.setRecipients(Message.RecipientType.TO, msg.getRecipients(Message.RecipientType.TO));
+                message.setSubject(notice);
+                MimeBodyPart part = new MimeBodyPart();
+                part.setText(notice + " " + advice);
+
+                Multipart mp = new MimeMultipart();
+                mp.addBodyPart(part);
+                message.setContent(mp);
+
+                message.setSentDate(new Date());
+                Transport.send(message);
+            }
+            catch (Exception e)
+            {
+                LogLog.error("Error occured while sending e-mail notification.", e);
+            }
+        }
+    }
+
+    private String overflowNotice(int overflow)
+    {
+        return "Discarded " + overflow + " logging events, the limits of appender [" + name + "] were reached.";
+    }
+
+    private String queueFullNotice(int dropped)
+    {
+        return "Discarded " + dropped + " logging events, the mail queue of appender [" + name + "] was full.";
     }
 
     /**
@@ -292,9 +851,31 @@ public class AlternateSMTPAppender extends AppenderSkeleton
         return true;
     }
 
-    public synchronized void close()
+    public void close()
     {
-        this.closed = true;
+        synchronized (this)
+        {
+            if (stopped)
+            {
+                return;
+            }
+            stopped = true;
+            closed = true;
+        }
+
+        timer.cancel();
+        // queue the events collected so far
+        flush();
+        if (!awaitSent(closeTimeout))
+        {
+            LogLog.warn("Appender [" + name + "] closed before all the e-mails have been sent.");
+        }
+
+        Thread thread = sender;
+        if (thread != null)
+        {
+            thread.interrupt();
+        }
     }
 
     InternetAddress getAddress(String addressStr)
@@ -343,78 +924,29 @@ public class AlternateSMTPAppender extends AppenderSkeleton
     /**
      * Send the contents of the cyclic buffer as an e-mail message.
      * @param eventsCollection to be sent
-     */
-    protected void sendBuffer(Collection<LoggingEventAggregator> eventsCollection)
-    {
-
-        // Note: this code already owns the monitor for this
-        // appender. This frees us from needing to synchronize on 'cb'.
-        try
-        {
-
-            for (LoggingEventAggregator lea : eventsCollection)
-            {
-                MimeBodyPart part = new MimeBodyPart();
-
-                StringBuilder sbuf = new StringBuilder();
-
-                LoggingEvent event = lea.getLoggingEvent();
-
-                if (layout.getHeader() != null)
-                {
-                    if (headerLayout == null)
-                    {
-                        String header = layout.getHeader();
-                        header = StringUtils.replace(header, "%o", "{number_of_occurrences}");
-                        headerLayout = new PatternLayout(header);
-                    }
-                    String t = headerLayout.format(event);
-                    if (t != null)
-                    {
-                        t = StringUtils.replace(t, "{number_of_occurrences}", Integer.toString(lea.getCount()));
-                        sbuf.append(t);
-                        sbuf.append("\n");
-                    }
-                }
-
-                if (this.subjectLayout != null)
-                {
-                    String subject = this.subjectLayout.format(event);
-
-                    if (subject != null)
-                    {
-                        subject = subject.trim();
-                        if (subject.indexOf("\n") > 0)
-                        {
-                            subject = subject.substring(0, subject.indexOf("\n"));
-                        }
-                    }
+     */
+    protected void sendBuffer(Collection<LoggingEventAggregator> eventsCollection)
+    {
+        synchronized (sendLock)
+        {
+            sendMessages(eventsCollection);
+        }
+    }
 
-                    this.msg.setSubject(subject);
-                }
+    private void sendMessages(Collection<LoggingEventAggregator> eventsCollection)
+    {
+        try
+        {
 
-                sbuf.append(layout.format(event));
-                if (layout.ignoresThrowable())
-                {
-                    String[] s = event.getThrowableStrRep();
-                    if (s != null)
-                    {
-                        for (String element : s)
-                        {
-                            sbuf.append(element);
-                        }
-                    }
-                }
-                String t = layout.getFooter();
-                if (t != null)
+            for (LoggingEventAggregator lea : eventsCollection)
+            {
+                if (this.subjectLayout != null)
                 {
-                    t = StringUtils.replace(t, "%n", Layout.LINE_SEP);
-                    sbuf.append(t);
+                    this.msg.setSubject(formatSubject(lea.getLoggingEvent()));
                 }
-                part.setContent(sbuf.toString(), layout.getContentType());
 
                 Multipart mp = new MimeMultipart();
-                mp.addBodyPart(part);
+                mp.addBodyPart(formatEvent(lea));
                 msg.setContent(mp);
 
                 msg.setSentDate(new Date());
@@ -573,20 +1105,206 @@ public class AlternateSMTPAppender extends AppenderSkeleton
     {
         this.timeout = timeout;
     }
+
+    /**
+     * Returns the queueSize.
+     * @return the queueSize
+     */
+    public int getQueueSize()
+    {
+        return queueSize;
+    }
+
+    /**
+     * Sets the maximum number of windows waiting to be sent by the sender thread. Defaults to 16.
+     * @param queueSize the queueSize to set
+     */
+    public void setQueueSize(int queueSize)
+    {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Returns the queueFullPolicy.
+     * @return the queueFullPolicy
+     */
+    public String getQueueFullPolicy()
+    {
+        return queueFullPolicy;
+    }
+
+    /**
+     * Sets what happens when the sender is behind and the queue is full: <code>coalesce</code> (default, events keep
+     * being aggregated in the current window), <code>dropNewest</code> or <code>dropOldest</code>. The number of
+     * discarded events is reported with the next e-mail.
+     * @param queueFullPolicy the queueFullPolicy to set
+     */
+    public void setQueueFullPolicy(String queueFullPolicy)
+    {
+        this.queueFullPolicy = queueFullPolicy;
+    }
+
+    /**
+     * Returns the sendTimeout.
+     * @return the sendTimeout
+     */
+    public int getSendTimeout()
+    {
+        return sendTimeout;
+    }
+
+    /**
+     * Sets the connection, read and write timeout of the SMTP connection, in milliseconds, unless already set by the
+     * <code>mail.smtp.*timeout</code> system properties. 0 disables the timeouts. Defaults to 30000.
+     * @param sendTimeout the sendTimeout to set
+     */
+    public void setSendTimeout(int sendTimeout)
+    {
+        this.sendTimeout = sendTimeout;
+    }
+
+    /**
+     * Returns the closeTimeout.
+     * @return the closeTimeout
+     */
+    public long getCloseTimeout()
+    {
+        return closeTimeout;
+    }
+
+    /**
+     * Sets how long, in milliseconds, <code>close()</code> waits for the queued e-mails to be sent. Defaults to 5000.
+     * @param closeTimeout the closeTimeout to set
+     */
+    public void setCloseTimeout(long closeTimeout)
+    {
+        this.closeTimeout = closeTimeout;
+    }
+
+    /**
+     * Returns the digest.
+     * @return the digest
+     */
+    public boolean isDigest()
+    {
+        return digest;
+    }
+
+    /**
+     * Sets the digest mode: when <code>true</code> all the events collected during the timeout are sent in a single
+     * e-mail, starting with a summary, instead of one e-mail per event. Defaults to <code>false</code>.
+     * @param digest the digest to set
+     */
+    public void setDigest(boolean digest)
+    {
+        this.digest = digest;
+    }
+
+    /**
+     * Returns the maxEvents.
+     * @return the maxEvents
+     */
+    public int getMaxEvents()
+    {
+        return maxEvents;
+    }
+
+    /**
+     * Sets the maximum number of distinct events collected during the timeout. Further distinct events are only
+     * counted, and the count is reported with the next e-mails. Defaults to 1000.
+     * @param maxEvents the maxEvents to set
+     */
+    public void setMaxEvents(int maxEvents)
+    {
+        this.maxEvents = maxEvents;
+    }
+
+    /**
+     * Returns the maxBytes.
+     * @return the maxBytes
+     */
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    /**
+     * Sets the maximum estimated heap size of the distinct events collected during the timeout. Further distinct events
+     * are only counted, and the count is reported with the next e-mails. Defaults to 16 MB.
+     * @param maxBytes the maxBytes to set
+     */
+    public void setMaxBytes(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the fingerprintFrames.
+     * @return the fingerprintFrames
+     */
+    public int getFingerprintFrames()
+    {
+        return fingerprintFrames;
+    }
+
+    /**
+     * Sets the number of stack frames compared, together with the message and the exception, to identify identical
+     * events. Defaults to 10.
+     * @param fingerprintFrames the fingerprintFrames to set
+     */
+    public void setFingerprintFrames(int fingerprintFrames)
+    {
+        this.fingerprintFrames = fingerprintFrames;
+    }
 }
 
 
 class LoggingEventAggregator
 {
 
+    /**
+     * Default number of stack frames used to identify identical events.
+     */
+    static final int DEFAULT_FINGERPRINT_FRAMES = 10;
+
+    private static final long EVENT_OVERHEAD = 256;
+
+    private static final long ENTRY_OVERHEAD = 64;
+
+    /**
+     * Average size of a rendered stack trace line.
+     */
+    private static final long FRAME_SIZE = 160;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
     private LoggingEvent loggingEvent;
 
-    private int count;
+    private final long fingerprint;
+
+    private final AtomicInteger count = new AtomicInteger(1);
+
+    private final AtomicLong lastTimeStamp;
+
+    private long sequence;
 
     public LoggingEventAggregator(LoggingEvent loggingEvent)
+    {
+        this(loggingEvent, DEFAULT_FINGERPRINT_FRAMES);
+    }
+
+    /**
+     * Creates a new aggregator, computing the fingerprint of the event.
+     * @param loggingEvent logging event
+     * @param fingerprintFrames number of stack frames used to identify identical events
+     */
+    public LoggingEventAggregator(LoggingEvent loggingEvent, int fingerprintFrames)
     {
         this.loggingEvent = loggingEvent;
-        this.count = 1;
+        this.fingerprint = fingerprint(loggingEvent, fingerprintFrames);
+        this.lastTimeStamp = new AtomicLong(loggingEvent.timeStamp);
     }
 
     /**
@@ -603,7 +1321,7 @@ class LoggingEventAggregator
      */
     public int getCount()
     {
-        return count;
+        return count.get();
     }
 
     /**
@@ -611,12 +1329,90 @@ class LoggingEventAggregator
      */
     public void setCount(int count)
     {
-        this.count = count;
+        this.count.set(count);
     }
 
     public void incrementCount()
     {
-        count++;
+        count.incrementAndGet();
+    }
+
+    /**
+     * Counts an identical event.
+     * @param timeStamp time of the event
+     */
+    void occurred(long timeStamp)
+    {
+        count.incrementAndGet();
+        long last = lastTimeStamp.get();
+        while (timeStamp > last && !lastTimeStamp.compareAndSet(last, timeStamp))
+        {
+            last = lastTimeStamp.get();
+        }
+    }
+
+    /**
+     * Returns the time of the last identical event.
+     * @return the time of the last identical event
+     */
+    long getLastTimeStamp()
+    {
+        return lastTimeStamp.get();
+    }
+
+    /**
+     * Returns the arrival order of this event in its aggregation window.
+     * @return the arrival order
+     */
+    long getSequence()
+    {
+        return sequence;
+    }
+
+    /**
+     * Sets the arrival order of this event in its aggregation window.
+     * @param sequence the sequence to set
+     */
+    void setSequence(long sequence)
+    {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Estimates the heap used by the event: the message, the MDC copy and the stack trace, which is rendered when the
+     * event is sent.
+     * @return the estimated size, in bytes
+     */
+    long estimateSize()
+    {
+        long size = EVENT_OVERHEAD + 2L * StringUtils.length(loggingEvent.getRenderedMessage());
+
+        Map< ? , ? > mdc = loggingEvent.getProperties();
+        for (Map.Entry< ? , ? > entry : mdc.entrySet())
+        {
+            size += ENTRY_OVERHEAD + 2L * (String.valueOf(entry.getKey()).length() + String
+                .valueOf(entry.getValue())
+                .length());
+        }
+
+        ThrowableInformation ti = loggingEvent.getThrowableInformation();
+        if (ti != null && ti.getThrowable() != null)
+        {
+            for (Throwable t = ti.getThrowable(); t != null; t = t.getCause() == t ? null : t.getCause())
+            {
+                size += FRAME_SIZE * (t.getStackTrace().length + 1);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the fingerprint of the event, identical events have the same fingerprint.
+     * @return the fingerprint
+     */
+    long getFingerprint()
+    {
+        return fingerprint;
     }
 
     /**
@@ -625,14 +1421,7 @@ class LoggingEventAggregator
     @Override
     public int hashCode()
     {
-        final int prime = 31;
-        int result = 1;
-
-        Object lem = loggingEvent.getMessage();
-        String[] thstr = loggingEvent.getThrowableStrRep();
-        result = prime * result + ((lem == null) ? 0 : lem.hashCode());
-        result = prime * result + Arrays.hashCode(thstr);
-        return result;
+        return (int) (fingerprint ^ (fingerprint >>> 32));
     }
 
     /**
@@ -645,49 +1434,240 @@ class LoggingEventAggregator
         {
             return true;
         }
-        if (obj == null)
+        if (obj == null || getClass() != obj.getClass())
         {
             return false;
         }
-        if (getClass() != obj.getClass())
+        return fingerprint == ((LoggingEventAggregator) obj).fingerprint;
+    }
+
+    /**
+     * Computes a 64 bit FNV-1a hash of the message, the exception class and message and the top stack frames of the
+     * event, without rendering the stack trace.
+     * @param event logging event
+     * @param frames number of stack frames to include
+     * @return the fingerprint
+     */
+    static long fingerprint(LoggingEvent event, int frames)
+    {
+        long hash = hash(FNV_OFFSET_BASIS, event.getRenderedMessage());
+
+        ThrowableInformation ti = event.getThrowableInformation();
+        if (ti == null)
+        {
+            return hash;
+        }
+
+        Throwable throwable = ti.getThrowable();
+        if (throwable == null)
+        {
+            // deserialized event, only the rendered trace is available
+            String[] lines = event.getThrowableStrRep();
+            for (int j = 0; j < Math.min(frames + 1, lines.length); j++)
+            {
+                hash = hash(hash, lines[j]);
+            }
+            return hash;
+        }
+
+        hash = hash(hash, throwable.getClass().getName());
+        hash = hash(hash, throwable.getMessage());
+        StackTraceElement[] trace = throwable.getStackTrace();
+        for (int j = 0; j < Math.min(frames, trace.length); j++)
         {
-            return false;
+            StackTraceElement element = trace[j];
+            hash = hash(hash, element.getClassName());
+            hash = hash(hash, element.getMethodName());
+            hash = mix(hash, element.getLineNumber());
+        }
+        return hash;
+    }
+
+    private static long hash(long hash, String value)
+    {
+        if (value == null)
+        {
+            return mix(hash, -1);
+        }
+        long h = hash;
+        for (int j = 0; j < value.length(); j++)
+        {
+            h = mix(h, value.charAt(j));
         }
-        final LoggingEventAggregator other = (LoggingEventAggregator) obj;
+        // separates consecutive values
+        return mix(h, value.length());
+    }
+
+    private static long mix(long hash, int value)
+    {
+        return (hash ^ value) * FNV_PRIME;
+    }
+}
+
+
+/**
+ * The events collected in a window, waiting for the sender thread.
+ */
+class MailBatch
+{
+
+    private final List<LoggingEventAggregator> events;
 
-        Object lem = loggingEvent.getMessage();
-        String[] thstr = (String[]) ObjectUtils.defaultIfNull(loggingEvent.getThrowableStrRep(), new String[0]);
+    private final int overflow;
 
-        Object otherLem = other.loggingEvent.getMessage();
-        String[] otherThstr = (String[]) ObjectUtils.defaultIfNull(
-            other.loggingEvent.getThrowableStrRep(),
-            new String[0]);
+    private final int dropped;
 
-        int length = Math.min(otherThstr.length, thstr.length);
-        length = Math.min(10, length);
+    MailBatch(List<LoggingEventAggregator> events, int overflow, int dropped)
+    {
+        this.events = events;
+        this.overflow = overflow;
+        this.dropped = dropped;
+    }
+
+    /**
+     * Returns the events, in order of first occurrence.
+     * @return the events
+     */
+    List<LoggingEventAggregator> getEvents()
+    {
+        return events;
+    }
+
+    /**
+     * Returns the number of events discarded because a limit was reached.
+     * @return the number of discarded events
+     */
+    int getOverflow()
+    {
+        return overflow;
+    }
+
+    /**
+     * Returns the number of events discarded because the queue was full, since the previous batch.
+     * @return the number of discarded events
+     */
+    int getDropped()
+    {
+        return dropped;
+    }
+}
+
+
+/**
+ * The events aggregated during a timeout. Logging threads add events concurrently; the flushing thread seals the
+ * window, after replacing it, and waits for the additions already in progress before reading it.
+ */
+class AggregationWindow
+{
+
+    private final ConcurrentMap<LoggingEventAggregator, LoggingEventAggregator> events =
+        new ConcurrentHashMap<LoggingEventAggregator, LoggingEventAggregator>();
 
-        otherThstr = (String[]) ArrayUtils.subarray(otherThstr, 0, length);
-        String[] thisThstr = (String[]) ArrayUtils.subarray(thstr, 0, length);
+    private final AtomicInteger writers = new AtomicInteger();
 
-        if (lem == null)
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicInteger entries = new AtomicInteger();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final AtomicInteger overflow = new AtomicInteger();
+
+    private volatile boolean sealed;
+
+    /**
+     * Adds an event, or increments the count of an identical one. A distinct event which would exceed one of the limits
+     * is only counted as overflow.
+     * @param lea event to add
+     * @param maxEntries maximum number of distinct events
+     * @param maxBytes maximum estimated size of the distinct events
+     * @return <code>false</code> if the window has been sealed, the event must be added to the new window
+     */
+    boolean add(LoggingEventAggregator lea, int maxEntries, long maxBytes)
+    {
+        writers.incrementAndGet();
+        try
         {
-            if (otherLem != null)
+            if (sealed)
             {
                 return false;
             }
-        }
+            LoggingEventAggregator existing = events.get(lea);
+            if (existing != null)
+            {
+                existing.occurred(lea.getLoggingEvent().timeStamp);
+                return true;
+            }
+
+            // reserve space before adding, so that concurrent additions can't exceed the limits
+            long size = lea.estimateSize();
+            int reservedEntries = entries.incrementAndGet();
+            long reservedBytes = bytes.addAndGet(size);
+            if (reservedEntries > maxEntries || reservedBytes > maxBytes)
+            {
+                entries.decrementAndGet();
+                bytes.addAndGet(-size);
+                existing = events.get(lea);
+                if (existing != null)
+                {
+                    existing.occurred(lea.getLoggingEvent().timeStamp);
+                }
+                else
+                {
+                    overflow.incrementAndGet();
+                }
+                return true;
+            }
 
-        else if (!lem.equals(otherLem))
+            lea.setSequence(sequence.incrementAndGet());
+            existing = events.putIfAbsent(lea, lea);
+            if (existing != null)
+            {
+                // added meanwhile by another thread
+                entries.decrementAndGet();
+                bytes.addAndGet(-size);
+                existing.occurred(lea.getLoggingEvent().timeStamp);
+            }
+            return true;
+        }
+        finally
         {
-            return false;
+            writers.decrementAndGet();
         }
-        if (!Arrays.equals(thisThstr, otherThstr))
+    }
+
+    /**
+     * Returns the number of distinct events discarded because a limit was reached.
+     * @return the number of discarded events
+     */
+    int getOverflow()
+    {
+        return overflow.get();
+    }
+
+    /**
+     * Stops accepting events and returns the aggregated events.
+     * @return the aggregated events
+     */
+    Collection<LoggingEventAggregator> seal()
+    {
+        sealed = true;
+        while (writers.get() > 0)
         {
-            return false;
+            // an addition is in progress, it takes no more than a map update
+            Thread.yield();
         }
-        return true;
+        return events.values();
     }
 
+    /**
+     * Returns the events aggregated so far, without sealing the window.
+     * @return the aggregated events
+     */
+    Collection<LoggingEventAggregator> getEvents()
+    {
+        return events.values();
+    }
 }
 
 
@@ -0,0 +1,365 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.log4j.helpers.LogLog;
+
+
+/**
+ * Compresses rolled files on background threads, used by {@link EnhancedDailyRollingFileAppender}. Each file is
+ * compressed to a <code>.part</code> temporary file which is synced and atomically renamed when complete, and only
+ * then the original file is deleted: an interrupted compression is detected by
+ * {@link #recover(File, FilenameFilter, ArchiveListener)} and redone.
+ * <p>
+ * A file is claimed by the thread compressing it, so that the same file is never compressed twice at the same time and
+ * recovery never deletes a partial file still being written, when recovery and the compression of new files run
+ * concurrently on several threads.
+ * </p>
+ * @author Fabrizio Giustina
+ * @version $Id$
+ */
+class ArchiveCompressor
+{
+
+    /**
+     * Suffix of files being compressed.
+     */
+    static final String PART_SUFFIX = ".part";
+
+    /**
+     * Extensions of the supported compression formats.
+     */
+    static final String[] EXTENSIONS = {".gz", ".zip" };
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String extension;
+
+    private final int level;
+
+    private final ExecutorService executor;
+
+    /**
+     * Absolute paths of the files being compressed, or whose partial file is being deleted by recovery.
+     */
+    private final Set<String> claimed = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates a new compressor.
+     * @param format compression format, <code>gz</code> or <code>zip</code>
+     * @param level compression level, from 0 to 9 or -1 for the default level
+     * @param threads maximum number of files compressed concurrently
+     * @param name name used for the background threads
+     */
+    ArchiveCompressor(String format, int level, int threads, String name)
+    {
+        this.extension = "." + format.toLowerCase();
+        this.level = level;
+
+        ThreadFactory threadFactory = new DaemonThreadFactory("log4j compressor [" + name + "]", Thread.MIN_PRIORITY);
+        int poolSize = Math.max(1, threads);
+        this.executor = new ThreadPoolExecutor(
+            poolSize,
+            poolSize,
+            0L,
+            TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            threadFactory);
+    }
+
+    /**
+     * Checks if the given compression format is supported.
+     * @param format compression format
+     * @return <code>true</code> for <code>gz</code> and <code>zip</code>
+     */
+    static boolean isSupported(String format)
+    {
+        return "gz".equalsIgnoreCase(format) || "zip".equalsIgnoreCase(format);
+    }
+
+    /**
+     * Returns the extension added to compressed files.
+     * @return the extension, including the leading dot
+     */
+    String getExtension()
+    {
+        return extension;
+    }
+
+    /**
+     * Schedules the compression of a file, never blocks the caller.
+     * @param file file to be compressed
+     * @param listener notified with the compressed file, or with the original file if compression failed; may be null
+     */
+    void compress(final File file, final ArchiveListener listener)
+    {
+        try
+        {
+            executor.execute(new Runnable()
+            {
+
+                public void run()
+                {
+                    File result = compressNow(file);
+                    if (result != null && listener != null)
+                    {
+                        listener.archived(result);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            LogLog.warn("Compressor shut down, [" + file + "] will be compressed on next startup.");
+        }
+    }
+
+    /**
+     * Looks in background for rolled files in the given directory which have not been compressed, or whose compression
+     * has been interrupted, and schedules their compression.
+     * @param directory archive directory
+     * @param rolledFiles accepts the files rolled by the appender, other files in the directory are ignored
+     * @param listener notified when each file has been compressed; may be null
+     */
+    void recover(final File directory, final FilenameFilter rolledFiles, final ArchiveListener listener)
+    {
+        try
+        {
+            executor.execute(new Runnable()
+            {
+
+                public void run()
+                {
+                    recoverNow(directory, rolledFiles, listener);
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            // shut down, will be done on next startup
+        }
+    }
+
+    void recoverNow(File directory, FilenameFilter rolledFiles, ArchiveListener listener)
+    {
+        String[] names = directory.list(rolledFiles);
+        if (names == null)
+        {
+            return;
+        }
+
+        for (String name : names)
+        {
+            if (name.endsWith(extension))
+            {
+                continue;
+            }
+
+            File file = new File(directory, name);
+            if (name.endsWith(extension + PART_SUFFIX))
+            {
+                // interrupted compression, redone from the original file unless it's being compressed right now
+                File original = new File(
+                    directory,
+                    name.substring(0, name.length() - extension.length() - PART_SUFFIX.length()));
+                if (claim(original))
+                {
+                    try
+                    {
+                        if (!file.delete())
+                        {
+                            LogLog.warn("Unable to delete partial file [" + file + "].");
+                        }
+                    }
+                    finally
+                    {
+                        release(original);
+                    }
+                    compress(original, listener);
+                }
+                continue;
+            }
+            if (name.endsWith(PART_SUFFIX) || !file.isFile())
+            {
+                // copies to the archive are cleaned up by ArchiveMover
+                continue;
+            }
+
+            File compressed = new File(directory, name + extension);
+            if (compressed.exists())
+            {
+                // compression completed but the original file was not deleted
+                if (claim(file))
+                {
+                    try
+                    {
+                        if (file.isFile() && !file.delete())
+                        {
+                            LogLog.warn("Unable to delete [" + file + "], already compressed.");
+                        }
+                    }
+                    finally
+                    {
+                        release(file);
+                    }
+                }
+            }
+            else
+            {
+                compress(file, listener);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting new files. Files being compressed are completed in background, queued files will be compressed
+     * on next startup.
+     */
+    void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Compresses a file on the calling thread.
+     * @param file file to be compressed
+     * @return the compressed file, the original file if compression failed, null if interrupted or if the file is
+     * already being compressed by another thread
+     */
+    File compressNow(File file)
+    {
+        if (!claim(file))
+        {
+            // being compressed by another thread
+            return null;
+        }
+        try
+        {
+            return file.isFile() ? compressClaimed(file) : null;
+        }
+        finally
+        {
+            release(file);
+        }
+    }
+
+    private boolean claim(File file)
+    {
+        return claimed.add(file.getAbsolutePath());
+    }
+
+    private void release(File file)
+    {
+        claimed.remove(file.getAbsolutePath());
+    }
+
+    private File compressClaimed(File file)
+    {
+        File target = new File(file.getPath() + extension);
+        File part = new File(target.getPath() + PART_SUFFIX);
+        try
+        {
+            // closing the compressed stream releases the native memory of its deflater
+            try (InputStream in = new FileInputStream(file);
+                FileOutputStream fos = new FileOutputStream(part);
+                DeflaterOutputStream out = openCompressedStream(fos, file.getName()))
+            {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1)
+                {
+                    out.write(buffer, 0, read);
+                    if (Thread.currentThread().isInterrupted())
+                    {
+                        // will be redone on next startup
+                        return null;
+                    }
+                }
+                out.finish();
+                out.flush();
+                fos.getFD().sync();
+            }
+
+            try
+            {
+                Files.move(part.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e)
+            {
+                Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            if (!file.delete())
+            {
+                LogLog.warn("Unable to delete [" + file + "] after compression.");
+            }
+            LogLog.debug(file + " -> " + target);
+            return target;
+        }
+        catch (IOException e)
+        {
+            LogLog.error("Failed to compress [" + file + "].", e);
+            part.delete();
+            return file;
+        }
+    }
+
+    private DeflaterOutputStream openCompressedStream(OutputStream out, String entryName) throws IOException
+    {
+        if (".zip".equals(extension))
+        {
+            ZipOutputStream zip = new ZipOutputStream(out);
+            zip.setMethod(ZipOutputStream.DEFLATED);
+            zip.setLevel(level);
+            zip.putNextEntry(new ZipEntry(entryName));
+            return zip;
+        }
+
+        return new GZIPOutputStream(out, BUFFER_SIZE)
+        {
+
+            {
+                def.setLevel(level < 0 ? Deflater.DEFAULT_COMPRESSION : level);
+            }
+        };
+    }
+}
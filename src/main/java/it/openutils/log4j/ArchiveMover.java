@@ -0,0 +1,381 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.helpers.LogLog;
+
+
+/**
+ * Moves rolled files to the archive directory, used by {@link EnhancedDailyRollingFileAppender}. Files are moved with
+ * an atomic rename; when the archive is on another file system the file is renamed in place and copied to the archive
+ * by a background thread, so that a large copy never blocks the logging thread. The copy is written to a
+ * <code>.part</code> file, synced and renamed when complete, and only then the rolled file is deleted. Partial copies
+ * left by an interrupted copy are deleted by {@link #recover(File, FilenameFilter)}, the rolled file being still in
+ * place.
+ * <p>
+ * The number of moves, failures and the time spent moving files are collected for monitoring.
+ * </p>
+ * @author Fabrizio Giustina
+ * @version $Id$
+ */
+class ArchiveMover
+{
+
+    private final String name;
+
+    private final AtomicLong moves = new AtomicLong();
+
+    private final AtomicLong copies = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    private ExecutorService executor;
+
+    /**
+     * Creates a new mover.
+     * @param name name used for the background thread
+     */
+    ArchiveMover(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * Moves a file to the archive. If the archive is on another file system the file is renamed to
+     * <code>fallback</code> and copied in background.
+     * @param source file to be archived
+     * @param target file in the archive directory
+     * @param fallback name of the file in its own directory, used if it can't be moved
+     * @param listener notified when the file has been archived, possibly by a background thread
+     */
+    void move(File source, File target, File fallback, ArchiveListener listener)
+    {
+        long start = System.nanoTime();
+        boolean otherFileSystem = false;
+        try
+        {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            completed(start);
+            LogLog.debug(source + " -> " + target);
+            listener.archived(target);
+            return;
+        }
+        catch (AtomicMoveNotSupportedException e)
+        {
+            otherFileSystem = true;
+        }
+        catch (IOException e)
+        {
+            failures.incrementAndGet();
+            LogLog.error("Failed to move [" + source + "] to [" + target.getAbsolutePath() + "].", e);
+        }
+
+        if (!rename(source, fallback))
+        {
+            return;
+        }
+        if (!otherFileSystem || !copyInBackground(fallback, target, listener))
+        {
+            listener.archived(fallback);
+        }
+    }
+
+    private boolean rename(File source, File target)
+    {
+        if (source.equals(target))
+        {
+            return true;
+        }
+        try
+        {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            LogLog.debug(source + " -> " + target);
+            return true;
+        }
+        catch (IOException e)
+        {
+            failures.incrementAndGet();
+            LogLog.error("Failed to rename [" + source + "] to [" + target + "].", e);
+            return false;
+        }
+    }
+
+    /**
+     * Deletes in background the partial copies left in the archive directory by interrupted copies. Runs on the same
+     * thread of the copies, so that a copy in progress is never deleted.
+     * @param directory archive directory
+     * @param rolledFiles accepts the files rolled by the appender, other files in the directory are ignored
+     */
+    synchronized void recover(final File directory, final FilenameFilter rolledFiles)
+    {
+        try
+        {
+            executor().execute(new Runnable()
+            {
+
+                public void run()
+                {
+                    recoverNow(directory, rolledFiles);
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            // shut down, will be done on next startup
+        }
+    }
+
+    /**
+     * Runs a task on the thread of the copies, after the copies already scheduled.
+     * @param task task to run
+     * @return <code>false</code> if the mover has been shut down and the task has not been accepted
+     */
+    synchronized boolean execute(Runnable task)
+    {
+        try
+        {
+            executor().execute(task);
+            return true;
+        }
+        catch (RejectedExecutionException e)
+        {
+            return false;
+        }
+    }
+
+    void recoverNow(File directory, FilenameFilter rolledFiles)
+    {
+        String[] names = directory.list(rolledFiles);
+        if (names == null)
+        {
+            return;
+        }
+        for (String partName : names)
+        {
+            if (!partName.endsWith(ArchiveCompressor.PART_SUFFIX) || isCompressed(partName))
+            {
+                continue;
+            }
+            File part = new File(directory, partName);
+            if (!part.delete())
+            {
+                LogLog.warn("Unable to delete partial copy [" + part + "].");
+            }
+        }
+    }
+
+    /**
+     * Checks if a partial file is being written by the compressor.
+     */
+    private static boolean isCompressed(String partName)
+    {
+        String target = partName.substring(0, partName.length() - ArchiveCompressor.PART_SUFFIX.length());
+        for (String extension : ArchiveCompressor.EXTENSIONS)
+        {
+            if (target.endsWith(extension))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private ExecutorService executor()
+    {
+        if (executor == null)
+        {
+            executor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("log4j archiver [" + name + "]",
+                Thread.MIN_PRIORITY));
+        }
+        return executor;
+    }
+
+    private synchronized boolean copyInBackground(final File source, final File target, final ArchiveListener listener)
+    {
+        final long start = System.nanoTime();
+        try
+        {
+            executor().execute(new Runnable()
+            {
+
+                public void run()
+                {
+                    if (copy(source, target))
+                    {
+                        completed(start);
+                        listener.archived(target);
+                    }
+                    else
+                    {
+                        listener.archived(source);
+                    }
+                }
+            });
+            return true;
+        }
+        catch (RejectedExecutionException e)
+        {
+            LogLog.warn("Archiver shut down, [" + source + "] left in place.");
+            return false;
+        }
+    }
+
+    /**
+     * Copies a file to another file system and deletes it.
+     * @param source file to be moved
+     * @param target destination file
+     * @return <code>true</code> if the file has been moved
+     */
+    boolean copy(File source, File target)
+    {
+        copies.incrementAndGet();
+        File part = new File(target.getPath() + ArchiveCompressor.PART_SUFFIX);
+        try
+        {
+            try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(
+                    part.toPath(),
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING))
+            {
+                long size = in.size();
+                long position = 0;
+                while (position < size)
+                {
+                    if (Thread.currentThread().isInterrupted())
+                    {
+                        throw new IOException("Copy interrupted");
+                    }
+                    position += in.transferTo(position, size - position, out);
+                }
+                out.force(true);
+            }
+
+            try
+            {
+                Files.move(part.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e)
+            {
+                Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            if (!source.delete())
+            {
+                LogLog.warn("Unable to delete [" + source + "] after copying it to [" + target + "].");
+            }
+            LogLog.debug(source + " -> " + target);
+            return true;
+        }
+        catch (IOException e)
+        {
+            failures.incrementAndGet();
+            LogLog.error("Failed to copy [" + source + "] to [" + target + "], file left in place.", e);
+            part.delete();
+            return false;
+        }
+    }
+
+    private void completed(long start)
+    {
+        long elapsed = System.nanoTime() - start;
+        moves.incrementAndGet();
+        totalNanos.addAndGet(elapsed);
+        long max = maxNanos.get();
+        while (elapsed > max && !maxNanos.compareAndSet(max, elapsed))
+        {
+            max = maxNanos.get();
+        }
+    }
+
+    /**
+     * Stops accepting files. Copies already scheduled are completed in background.
+     */
+    synchronized void shutdown()
+    {
+        if (executor != null)
+        {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Returns the number of files moved to the archive.
+     * @return the number of files moved
+     */
+    long getMoves()
+    {
+        return moves.get();
+    }
+
+    /**
+     * Returns the number of files copied to another file system.
+     * @return the number of files copied
+     */
+    long getCopies()
+    {
+        return copies.get();
+    }
+
+    /**
+     * Returns the number of failed moves, renames and copies.
+     * @return the number of failures
+     */
+    long getFailures()
+    {
+        return failures.get();
+    }
+
+    /**
+     * Returns the total time spent moving files, including background copies.
+     * @return the total time in milliseconds
+     */
+    long getTotalTime()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(totalNanos.get());
+    }
+
+    /**
+     * Returns the longest time spent moving a file.
+     * @return the longest time in milliseconds
+     */
+    long getMaxTime()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+    }
+}
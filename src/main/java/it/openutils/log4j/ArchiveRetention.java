@@ -0,0 +1,443 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.helpers.LogLog;
+
+
+/**
+ * Deletes old rolled files from the archive directory, by age, number of files and total size. The cleanup runs on a
+ * low priority background thread; requests received while a cleanup is pending are coalesced.
+ * <p>
+ * The rolled files are tracked in a manifest, <code>.&lt;file name&gt;.manifest</code> in the archive directory, which
+ * is updated when a file is archived or deleted, so that the directory is only scanned when the manifest is missing or
+ * unreadable. Files added or removed by hand are not noticed until the manifest is deleted.
+ * </p>
+ * @author Fabrizio Giustina
+ * @version $Id$
+ */
+class ArchiveRetention
+{
+
+    /**
+     * Suffix of the manifest file.
+     */
+    static final String MANIFEST_SUFFIX = ".manifest";
+
+    private static final String MANIFEST_HEADER = "# lastModified size name";
+
+    private final long maxAge;
+
+    private final int maxFiles;
+
+    private final long maxBytes;
+
+    private final FilenameFilter rolledFiles;
+
+    private final ExecutorService executor;
+
+    private final AtomicBoolean pending = new AtomicBoolean();
+
+    /**
+     * Rolled files in the loaded directory, guarded by this.
+     */
+    private List<ArchivedFile> files;
+
+    private File loadedDirectory;
+
+    private String loadedBaseName;
+
+    /**
+     * Creates a new retention policy, a limit is disabled when 0.
+     * @param maxAge maximum age of rolled files, in milliseconds
+     * @param maxFiles maximum number of rolled files
+     * @param maxBytes maximum total size of rolled files
+     * @param name name used for the background thread
+     */
+    ArchiveRetention(long maxAge, int maxFiles, long maxBytes, String name)
+    {
+        this(maxAge, maxFiles, maxBytes, name, null);
+    }
+
+    /**
+     * Creates a new retention policy, a limit is disabled when 0.
+     * @param maxAge maximum age of rolled files, in milliseconds
+     * @param maxFiles maximum number of rolled files
+     * @param maxBytes maximum total size of rolled files
+     * @param name name used for the background thread
+     * @param rolledFiles accepts the files rolled by the appender; if null any file starting with the name of the log
+     * file is considered a rolled file
+     */
+    ArchiveRetention(long maxAge, int maxFiles, long maxBytes, String name, FilenameFilter rolledFiles)
+    {
+        this.maxAge = maxAge;
+        this.rolledFiles = rolledFiles;
+        this.maxFiles = maxFiles;
+        this.maxBytes = maxBytes;
+        this.executor = Executors.newSingleThreadExecutor(new DaemonThreadFactory(
+            "log4j retention [" + name + "]",
+            Thread.MIN_PRIORITY));
+    }
+
+    /**
+     * Schedules a cleanup of the given directory, never blocks the caller.
+     * @param directory archive directory
+     * @param baseName name of the active log file, rolled files start with this name
+     */
+    void schedule(final File directory, final String baseName)
+    {
+        if (!pending.compareAndSet(false, true))
+        {
+            return;
+        }
+        try
+        {
+            executor.execute(new Runnable()
+            {
+
+                public void run()
+                {
+                    pending.set(false);
+                    purge(directory, baseName);
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            pending.set(false);
+        }
+    }
+
+    /**
+     * Adds a newly archived file to the manifest and schedules a cleanup, never blocks the caller.
+     * @param directory archive directory
+     * @param baseName name of the active log file
+     * @param file the archived file
+     */
+    void add(final File directory, final String baseName, final File file)
+    {
+        try
+        {
+            executor.execute(new Runnable()
+            {
+
+                public void run()
+                {
+                    record(directory, baseName, file);
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            // shut down, the manifest will be rebuilt if needed
+            return;
+        }
+        schedule(directory, baseName);
+    }
+
+    /**
+     * Stops the background thread.
+     */
+    void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Deletes the rolled files exceeding the configured limits, oldest first.
+     * @param directory archive directory
+     * @param baseName name of the active log file
+     * @return number of deleted files
+     */
+    synchronized int purge(File directory, String baseName)
+    {
+        List<ArchivedFile> list = load(directory, baseName);
+        if (list == null)
+        {
+            return 0;
+        }
+
+        // newest first
+        Collections.sort(list);
+
+        long oldest = maxAge > 0 ? System.currentTimeMillis() - maxAge : Long.MIN_VALUE;
+        long totalBytes = 0;
+        int kept = 0;
+        int deleted = 0;
+        for (Iterator<ArchivedFile> iterator = list.iterator(); iterator.hasNext();)
+        {
+            ArchivedFile file = iterator.next();
+            if (file.lastModified >= oldest
+                && (maxFiles <= 0 || kept < maxFiles)
+                && (maxBytes <= 0 || totalBytes + file.size <= maxBytes))
+            {
+                kept++;
+                totalBytes += file.size;
+                continue;
+            }
+
+            try
+            {
+                Files.deleteIfExists(file.path);
+                iterator.remove();
+                deleted++;
+                LogLog.debug("Deleted old archive [" + file.path + "]");
+            }
+            catch (IOException e)
+            {
+                LogLog.warn("Unable to delete [" + file.path + "]: " + e.getMessage());
+            }
+        }
+
+        if (deleted > 0)
+        {
+            save(directory, baseName, list);
+        }
+        return deleted;
+    }
+
+    synchronized void record(File directory, String baseName, File file)
+    {
+        List<ArchivedFile> list = load(directory, baseName);
+        if (list == null)
+        {
+            return;
+        }
+
+        String name = file.getName();
+        String uncompressed = uncompressedName(name);
+        for (Iterator<ArchivedFile> iterator = list.iterator(); iterator.hasNext();)
+        {
+            String existing = iterator.next().path.getFileName().toString();
+            if (existing.equals(name) || existing.equals(uncompressed))
+            {
+                iterator.remove();
+            }
+        }
+
+        ArchivedFile archived = read(file.toPath());
+        if (archived != null)
+        {
+            list.add(archived);
+        }
+        save(directory, baseName, list);
+    }
+
+    /**
+     * Returns the files in the manifest, scanning the directory if the manifest can't be read.
+     */
+    private List<ArchivedFile> load(File directory, String baseName)
+    {
+        if (files != null && directory.equals(loadedDirectory) && baseName.equals(loadedBaseName))
+        {
+            return files;
+        }
+
+        files = null;
+        loadedDirectory = directory;
+        loadedBaseName = baseName;
+
+        Path manifest = manifest(directory, baseName);
+        if (Files.exists(manifest))
+        {
+            files = readManifest(directory.toPath(), manifest);
+        }
+        if (files == null)
+        {
+            files = scan(directory, baseName);
+            if (files != null)
+            {
+                save(directory, baseName, files);
+            }
+        }
+        return files;
+    }
+
+    private List<ArchivedFile> scan(File directory, String baseName)
+    {
+        List<ArchivedFile> list = new ArrayList<ArchivedFile>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath()))
+        {
+            for (Path path : stream)
+            {
+                if (isRolledFile(directory, path.getFileName().toString(), baseName))
+                {
+                    ArchivedFile file = read(path);
+                    if (file != null)
+                    {
+                        list.add(file);
+                    }
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            LogLog.warn("Unable to read archive directory [" + directory + "]: " + e.getMessage());
+            return null;
+        }
+        return list;
+    }
+
+    private static ArchivedFile read(Path path)
+    {
+        try
+        {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (attributes.isRegularFile())
+            {
+                return new ArchivedFile(path, attributes.lastModifiedTime().toMillis(), attributes.size());
+            }
+        }
+        catch (IOException e)
+        {
+            // deleted meanwhile, e.g. after compression
+        }
+        return null;
+    }
+
+    private static List<ArchivedFile> readManifest(Path directory, Path manifest)
+    {
+        List<ArchivedFile> list = new ArrayList<ArchivedFile>();
+        try
+        {
+            for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8))
+            {
+                if (line.length() == 0 || line.startsWith("#"))
+                {
+                    continue;
+                }
+                String[] fields = line.split(" ", 3);
+                list.add(new ArchivedFile(
+                    directory.resolve(fields[2]),
+                    Long.parseLong(fields[0]),
+                    Long.parseLong(fields[1])));
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            LogLog.warn("Invalid archive manifest [" + manifest + "], the directory will be scanned: " + e.getMessage());
+            return null;
+        }
+        return list;
+    }
+
+    private static void save(File directory, String baseName, List<ArchivedFile> list)
+    {
+        Path manifest = manifest(directory, baseName);
+        Path part = manifest.resolveSibling(manifest.getFileName() + ArchiveCompressor.PART_SUFFIX);
+        List<String> lines = new ArrayList<String>(list.size() + 1);
+        lines.add(MANIFEST_HEADER);
+        for (ArchivedFile file : list)
+        {
+            lines.add(file.lastModified + " " + file.size + " " + file.path.getFileName());
+        }
+        try
+        {
+            Files.write(part, lines, StandardCharsets.UTF_8);
+            try
+            {
+                Files.move(part, manifest, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException e)
+            {
+                Files.move(part, manifest, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        catch (IOException e)
+        {
+            LogLog.warn("Unable to write archive manifest [" + manifest + "]: " + e.getMessage());
+        }
+    }
+
+    private static Path manifest(File directory, String baseName)
+    {
+        return directory.toPath().resolve("." + baseName + MANIFEST_SUFFIX);
+    }
+
+    /**
+     * Returns the name of a file before compression.
+     */
+    private static String uncompressedName(String name)
+    {
+        int dot = name.lastIndexOf('.');
+        if (dot > 0 && ArchiveCompressor.isSupported(name.substring(dot + 1)))
+        {
+            return name.substring(0, dot);
+        }
+        return name;
+    }
+
+    private boolean isRolledFile(File directory, String name, String baseName)
+    {
+        if (rolledFiles != null)
+        {
+            return rolledFiles.accept(directory, name);
+        }
+        return name.startsWith(baseName)
+            && name.length() > baseName.length()
+            && !name.endsWith(ArchiveCompressor.PART_SUFFIX)
+            && !name.endsWith(EnhancedDailyRollingFileAppender.NEXT_SUFFIX);
+    }
+
+    /**
+     * A rolled file, sorted newest first.
+     */
+    private static final class ArchivedFile implements Comparable<ArchivedFile>
+    {
+
+        private final Path path;
+
+        private final long lastModified;
+
+        private final long size;
+
+        ArchivedFile(Path path, long lastModified, long size)
+        {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public int compareTo(ArchivedFile o)
+        {
+            return Long.compare(o.lastModified, lastModified);
+        }
+    }
+}
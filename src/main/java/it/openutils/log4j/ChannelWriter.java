@@ -0,0 +1,183 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * A writer which encodes characters with a reused <code>CharsetEncoder</code> into a direct <code>ByteBuffer</code> and
+ * writes it with <code>FileChannel.write()</code>. Characters are copied into a reused char buffer and encoded in
+ * blocks: the channel is written only when the byte buffer is full or on {@link #flush()}, so that many events are
+ * written with a single system call when the appender does not flush after each event.
+ * <p>
+ * Direct buffers are expensive to allocate and are only released by the garbage collector: the buffers of closed
+ * writers are kept in a small pool and reused by the writers opened on rollover.
+ * </p>
+ * <p>
+ * This class is not thread safe, it's used by appenders while holding their lock.
+ * </p>
+ * @author Fabrizio Giustina
+ * @version $Id$
+ */
+class ChannelWriter extends EncodingWriter implements Syncable
+{
+
+    private static final int MAX_POOLED_BUFFERS = 4;
+
+    private static final Queue<ByteBuffer> POOL = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private final FileChannel channel;
+
+    private ByteBuffer bytes;
+
+    private long written;
+
+    /**
+     * Creates a new writer.
+     * @param channel destination channel, positioned at the end of the file
+     * @param charset charset used to encode characters
+     * @param bufferSize size of the byte buffer
+     */
+    ChannelWriter(FileChannel channel, Charset charset, int bufferSize) throws IOException
+    {
+        super(charset, bufferSize);
+        this.channel = channel;
+        this.bytes = acquire(bufferSize);
+        this.written = channel.position();
+    }
+
+    /**
+     * Returns the number of bytes written, counting characters not yet encoded as one byte each.
+     * @return the number of bytes written
+     */
+    public long getCount()
+    {
+        return bytes == null ? written : written + bytes.position() + pendingChars();
+    }
+
+    /**
+     * Returns the channel this writer writes to.
+     * @return the channel
+     */
+    FileChannel getChannel()
+    {
+        return channel;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    ByteBuffer buffer()
+    {
+        return bytes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void bufferFull() throws IOException
+    {
+        drain();
+    }
+
+    /**
+     * Encodes pending characters and writes them to the channel.
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        encode(false);
+        drain();
+    }
+
+    /**
+     * Forces the bytes written to the channel to the storage device, can be called by a background thread.
+     */
+    public void sync() throws IOException
+    {
+        try
+        {
+            channel.force(false);
+        }
+        catch (ClosedChannelException e)
+        {
+            // closed by a rollover or by the appender, which sync before closing when syncing is enabled
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (bytes == null)
+        {
+            return;
+        }
+        try
+        {
+            encode(true);
+            drain();
+        }
+        finally
+        {
+            release(bytes);
+            bytes = null;
+            channel.close();
+        }
+    }
+
+    private void drain() throws IOException
+    {
+        bytes.flip();
+        while (bytes.hasRemaining())
+        {
+            written += channel.write(bytes);
+        }
+        bytes.clear();
+    }
+
+    private static ByteBuffer acquire(int capacity)
+    {
+        ByteBuffer buffer = POOL.poll();
+        if (buffer == null || buffer.capacity() != capacity)
+        {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private static void release(ByteBuffer buffer)
+    {
+        if (POOL.size() < MAX_POOLED_BUFFERS)
+        {
+            POOL.offer(buffer);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j;
+
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.ClosedChannelException;
+
+
+/**
+ * An output stream which keeps track of the number of bytes written to the underlying stream, so that the size of a
+ * log file is known without querying the file system. When the underlying stream is a <code>FileOutputStream</code>
+ * the data written can be forced to disk with {@link #sync()}.
+ * @author Fabrizio Giustina
+ * @version $Id$
+ */
+class CountingOutputStream extends FilterOutputStream implements ByteCounter, Syncable
+{
+
+    private long count;
+
+    /**
+     * Creates a new counting stream.
+     * @param out underlying stream
+     * @param initialCount number of bytes already contained in the destination, when appending to an existing file
+     */
+    CountingOutputStream(OutputStream out, long initialCount)
+    {
+        super(out);
+        this.count = initialCount;
+    }
+
+    /**
+     * Returns the number of bytes written, including the initial count.
+     * @return the number of bytes written
+     */
+    public long getCount()
+    {
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(int b) throws IOException
+    {
+        out.write(b);
+        count++;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        // FilterOutputStream writes one byte at a time
+        out.write(b, off, len);
+        count += len;
+    }
+
+    /**
+     * Forces the bytes written to a file to the storage device, can be called by a background thread. Does nothing for
+     * other streams.
+     */
+    public void sync() throws IOException
+    {
+        if (out instanceof FileOutputStream)
+        {
+            try
+            {
+                ((FileOutputStream) out).getChannel().force(false);
+            }
+            catch (ClosedChannelException e)
+            {
+                // closed by a rollover
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Creates named daemon threads for the background work of appenders, so that they never prevent the JVM from exiting.
+ * @author Fabrizio Giustina
+ * @version $Id$
+ */
+class DaemonThreadFactory implements ThreadFactory
+{
+
+    private final String name;
+
+    private final int priority;
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * Creates a new thread factory.
+     * @param name thread name prefix
+     * @param priority thread priority
+     */
+    DaemonThreadFactory(String name, int priority)
+    {
+        this.name = name;
+        this.priority = priority;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Thread newThread(Runnable r)
+    {
+        Thread thread = new Thread(r, name + " " + count.incrementAndGet());
+        thread.setDaemon(true);
+        thread.setPriority(priority);
+        return thread;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+
+/**
+ * Base class for writers which encode characters with a reused <code>CharsetEncoder</code> into a
+ * <code>ByteBuffer</code>. Characters are copied into a reused char buffer and encoded in blocks, subclasses provide
+ * the target byte buffer and empty or replace it when full.
+ * <p>
+ * This class is not thread safe, it's used by appenders while holding their lock.
+ * </p>
+ * @author Fabrizio Giustina
+ * @version $Id$
+ */
+abstract class EncodingWriter extends Writer implements ByteCounter
+{
+
+    private final CharsetEncoder encoder;
+
+    private final CharBuffer chars;
+
+    /**
+     * Creates a new writer.
+     * @param charset charset used to encode characters
+     * @param bufferSize approximate size in bytes of the encoded characters kept in memory
+     */
+    EncodingWriter(Charset charset, int bufferSize)
+    {
+        this.encoder = charset
+            .newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.chars = CharBuffer.allocate(Math.max(16, (int) (bufferSize / encoder.maxBytesPerChar())));
+    }
+
+    /**
+     * Returns the buffer characters are encoded to.
+     * @return the target buffer
+     */
+    abstract ByteBuffer buffer();
+
+    /**
+     * Called when the target buffer is full: the buffer must be emptied or replaced.
+     * @throws IOException if the buffer can't be written
+     */
+    abstract void bufferFull() throws IOException;
+
+    /**
+     * Returns the number of characters not yet encoded.
+     * @return the number of pending characters
+     */
+    int pendingChars()
+    {
+        return chars.position();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(int c) throws IOException
+    {
+        if (!chars.hasRemaining())
+        {
+            encode(false);
+        }
+        chars.put((char) c);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException
+    {
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0)
+        {
+            if (!chars.hasRemaining())
+            {
+                encode(false);
+            }
+            int count = Math.min(remaining, chars.remaining());
+            chars.put(cbuf, offset, count);
+            offset += count;
+            remaining -= count;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(String str, int off, int len) throws IOException
+    {
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0)
+        {
+            if (!chars.hasRemaining())
+            {
+                encode(false);
+            }
+            int count = Math.min(remaining, chars.remaining());
+            // String.getChars copies into the backing array without creating a CharBuffer
+            int position = chars.position();
+            str.getChars(offset, offset + count, chars.array(), chars.arrayOffset() + position);
+            chars.position(position + count);
+            offset += count;
+            remaining -= count;
+        }
+    }
+
+    /**
+     * Encodes the pending characters into the target buffer.
+     * @param endOfInput <code>true</code> when closing the writer
+     * @throws IOException if the buffer can't be written
+     */
+    void encode(boolean endOfInput) throws IOException
+    {
+        chars.flip();
+        while (encoder.encode(chars, buffer(), endOfInput).isOverflow())
+        {
+            // with REPLACE actions the only other result is underflow
+            bufferFull();
+        }
+        // keeps an incomplete surrogate pair for the next write
+        chars.compact();
+
+        if (endOfInput)
+        {
+            CoderResult result;
+            while ((result = encoder.flush(buffer())).isOverflow())
+            {
+                bufferFull();
+            }
+            if (result.isError())
+            {
+                result.throwException();
+            }
+        }
+    }
+}
@@ -17,18 +17,36 @@
  */
 package it.openutils.log4j;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.GregorianCalendar;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneId;
 import java.util.Locale;
-import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 import org.apache.log4j.FileAppender;
 import org.apache.log4j.Layout;
+import org.apache.log4j.Level;
 import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.helpers.OptionConverter;
+import org.apache.log4j.helpers.QuietWriter;
+import org.apache.log4j.spi.ErrorCode;
 import org.apache.log4j.spi.LoggingEvent;
 
 
@@ -37,6 +55,59 @@ import org.apache.log4j.spi.LoggingEvent;
  * can configure the target directory by setting the <code>archiveDirectory</code> property. The default value is
  * <code>archive</code> <strong>Note that since DailyRollingFileAppender is not easily extendible, this class is
  * actually a copy and paste of all the code with slights modifications...</strong>
+ * <p>
+ * Rolled files can be compressed on background threads by setting the <code>compression</code> property to
+ * <code>gz</code> or <code>zip</code>. The compression level and the maximum number of files compressed concurrently
+ * can be configured with the <code>compressionLevel</code> and <code>compressionThreads</code> properties. Logging
+ * threads never wait for the compression: rolled files which have not been compressed, for example because the
+ * application has been stopped, are compressed on next startup.
+ * </p>
+ * <p>
+ * When <code>asyncRollover</code> is set to <code>true</code> the rollover is moved off the logging threads: the next
+ * file is opened by a background thread <code>rolloverPreopen</code> milliseconds (1000 by default) before the end of
+ * the current period and the writers are swapped at the boundary, either by the background thread or by the first
+ * logging thread crossing it. Closing, renaming and archiving the previous file are done asynchronously. The next file
+ * is written as <code>&lt;file&gt;.next</code> until the previous one has been moved away, so this mode requires a
+ * platform which allows renaming open files: on Windows <code>asyncRollover</code> is ignored, with a warning, and
+ * files are rolled synchronously.
+ * </p>
+ * <p>
+ * Setting <code>maxFileSize</code> (e.g. <code>500MB</code>) adds a size trigger to the date pattern: when the current
+ * file exceeds the given size it is rolled to <code>&lt;file&gt;.&lt;date&gt;.1</code>, <code>.2</code> and so on, and
+ * the last piece of a period also gets the next index. The size is tracked counting the bytes written by the appender,
+ * without querying the file system: with <code>bufferedIO</code> bytes are counted when the buffer is flushed.
+ * </p>
+ * <p>
+ * Old rolled files can be deleted from the archive directory setting <code>maxArchiveDays</code>,
+ * <code>maxArchiveFiles</code> and/or <code>maxArchiveSize</code> (e.g. <code>20GB</code>). The cleanup runs on a
+ * low priority background thread at startup and after each rollover, and keeps track of the archived files in a
+ * manifest so that the archive directory is not scanned at each startup.
+ * </p>
+ * <p>
+ * A file left over from a previous period, e.g. because the application was stopped across a boundary, is rolled by a
+ * background thread right after startup, without waiting for the first event.
+ * </p>
+ * <p>
+ * Setting <code>outputMode</code> to <code>channel</code> replaces the <code>OutputStreamWriter</code> stack with a
+ * writer which encodes characters with a reused <code>CharsetEncoder</code> into a pooled direct buffer of
+ * <code>bufferSize</code> bytes and writes it with <code>FileChannel.write()</code>. With <code>immediateFlush</code>
+ * set to <code>false</code> the buffer is written only when full, batching many events in a single system call.
+ * </p>
+ * <p>
+ * With <code>outputMode</code> set to <code>mapped</code> events are encoded straight into memory mapped segments of
+ * <code>segmentSize</code> bytes (32MB by default, or <code>mappedSegmentSize</code> with a KB, MB or GB suffix):
+ * appending is a memory copy, the next segment is mapped when one is full and the file is truncated to its real length
+ * on rollover and close. Until then the file is followed by zeros up to the end of the segment; the zeros are written
+ * before mapping, so that a full disk fails the write instead of crashing the logging thread.
+ * </p>
+ * <p>
+ * With <code>immediateFlush</code> set to <code>false</code> the durability of events can be tuned: the writer is
+ * flushed every <code>flushEvents</code> events and at most <code>flushInterval</code> milliseconds after an event has
+ * been written, the current file is forced to disk (<code>fsync</code>) by a background thread every
+ * <code>syncInterval</code> milliseconds, and events at or above <code>syncThreshold</code> (e.g. <code>ERROR</code>)
+ * are always flushed and forced to disk before the logging call returns. The background <code>fsync</code> only covers
+ * data already flushed.
+ * </p>
  * @author fgiust
  * @version $Id$
  */
@@ -59,6 +130,30 @@ public class EnhancedDailyRollingFileAppender extends FileAppender
 
     static final int TOP_OF_MONTH = 5;
 
+    /**
+     * Suffix of the file opened in advance when the rollover is asynchronous.
+     */
+    static final String NEXT_SUFFIX = ".next";
+
+    /**
+     * Output mode writing through the standard <code>OutputStreamWriter</code>.
+     */
+    static final String OUTPUT_STREAM = "stream";
+
+    /**
+     * Output mode writing through a <code>FileChannel</code>, see {@link ChannelWriter}.
+     */
+    static final String OUTPUT_CHANNEL = "channel";
+
+    /**
+     * Output mode writing into memory mapped segments, see {@link MappedSegmentWriter}.
+     */
+    static final String OUTPUT_MAPPED = "mapped";
+
+    private static final long DEFAULT_ROLLOVER_PREOPEN = 1000L;
+
+    private static final long DEFAULT_SEGMENT_SIZE = 32L * 1024 * 1024;
+
     /**
      * The date pattern. By default, the pattern is set to "'.'yyyy-MM-dd" meaning daily rollover.
      */
@@ -74,81 +169,1084 @@ public class EnhancedDailyRollingFileAppender extends FileAppender
     String archiveDirectory = "archive";
 
     /**
-     * The next time we estimate a rollover should occur.
+     * Compression format for rolled files, <code>gz</code>, <code>zip</code> or null for no compression.
+     */
+    private String compression;
+
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    private int compressionThreads = 1;
+
+    private ArchiveCompressor compressor;
+
+    private long maximumFileSize;
+
+    /**
+     * Counts the bytes written to the current file.
+     */
+    private volatile FileQuietWriter fileWriter;
+
+    /**
+     * Index of the last file rolled because of its size in the current period, 0 if none.
+     */
+    private int sizeIndex;
+
+    private int maxArchiveDays;
+
+    private int maxArchiveFiles;
+
+    private long maximumArchiveSize;
+
+    private volatile ArchiveRetention retention;
+
+    /**
+     * Adds files which reached the archive directory to the retention manifest.
+     */
+    private final ArchiveListener retentionListener = new ArchiveListener()
+    {
+
+        public void archived(File file)
+        {
+            ArchiveRetention archiveRetention = retention;
+            if (archiveRetention == null || fileName == null)
+            {
+                return;
+            }
+            File activeFile = new File(fileName).getAbsoluteFile();
+            File archiveDir = getArchiveDir(activeFile);
+            if (archiveDir.equals(file.getAbsoluteFile().getParentFile()))
+            {
+                archiveRetention.add(archiveDir, activeFile.getName(), file.getAbsoluteFile());
+            }
+        }
+    };
+
+    /**
+     * Moves rolled files to the archive directory, kept across activations to preserve its counters.
+     */
+    private ArchiveMover mover;
+
+    private String outputMode = OUTPUT_STREAM;
+
+    private long segmentSize = DEFAULT_SEGMENT_SIZE;
+
+    private long syncInterval;
+
+    private int flushEvents;
+
+    private long flushInterval;
+
+    private Level syncThreshold;
+
+    /**
+     * Events written since the last flush, guarded by this.
+     */
+    private int unflushed;
+
+    /**
+     * Time of the last flush, guarded by this.
+     */
+    private long lastFlush;
+
+    /**
+     * Periodically forces the current file to disk, null if disabled.
+     */
+    private ScheduledExecutorService syncExecutor;
+
+    private boolean asyncRollover;
+
+    private long rolloverPreopen = DEFAULT_ROLLOVER_PREOPEN;
+
+    /**
+     * Runs the asynchronous rollover, null if disabled.
+     */
+    private ScheduledExecutorService rolloverExecutor;
+
+    /**
+     * The writer for the next period, opened in background before the rollover boundary.
+     */
+    private volatile FileQuietWriter nextWriter;
+
+    /**
+     * Close and rename of the previous file after a writer swap, not yet completed by the background thread. Guarded by
+     * the appender lock.
+     */
+    private FutureTask<Void> pendingRollover;
+
+    /**
+     * The start of the next period: checking if a rollover is needed is a single comparison with this value.
+     */
+    private volatile long nextCheck = System.currentTimeMillis() - 1;
+
+    /**
+     * Computes period boundaries and file name suffixes, created on activation.
+     */
+    private RolloverSchedule schedule;
+
+    /**
+     * File name suffix of the current period, formatted once per period.
+     */
+    private String periodSuffix;
+
+    /**
+     * The default constructor does nothing.
+     */
+    public EnhancedDailyRollingFileAppender()
+    {
+    }
+
+    /**
+     * Instantiate a <code>DailyRollingFileAppender</code> and open the file designated by <code>filename</code>.
+     * The opened filename will become the ouput destination for this appender.
+     */
+    public EnhancedDailyRollingFileAppender(Layout layout, String filename, String datePattern) throws IOException
+    {
+        super(layout, filename, true);
+        this.datePattern = datePattern;
+        activateOptions();
+    }
+
+    /**
+     * Sets the archiveDirectory.
+     * @param archiveDirectory the archiveDirectory to set
+     */
+    public void setArchiveDirectory(String archiveDirectory)
+    {
+        this.archiveDirectory = archiveDirectory;
+    }
+
+    /**
+     * Returns the compression format for rolled files.
+     * @return the compression format, <code>gz</code>, <code>zip</code> or null
+     */
+    public String getCompression()
+    {
+        return compression;
+    }
+
+    /**
+     * Sets the compression format for rolled files: <code>gz</code>, <code>zip</code> or <code>none</code>.
+     * @param compression the compression format to set
+     */
+    public void setCompression(String compression)
+    {
+        this.compression = compression;
+    }
+
+    /**
+     * Returns the compressionLevel.
+     * @return the compressionLevel
+     */
+    public int getCompressionLevel()
+    {
+        return compressionLevel;
+    }
+
+    /**
+     * Sets the compression level, from 0 (no compression) to 9 (best compression), -1 for the default level.
+     * @param compressionLevel the compressionLevel to set
+     */
+    public void setCompressionLevel(int compressionLevel)
+    {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Returns the compressionThreads.
+     * @return the compressionThreads
+     */
+    public int getCompressionThreads()
+    {
+        return compressionThreads;
+    }
+
+    /**
+     * Sets the maximum number of files compressed concurrently, defaults to 1.
+     * @param compressionThreads the compressionThreads to set
+     */
+    public void setCompressionThreads(int compressionThreads)
+    {
+        this.compressionThreads = compressionThreads;
+    }
+
+    /**
+     * Returns the maximumFileSize.
+     * @return the maximumFileSize
+     */
+    public long getMaximumFileSize()
+    {
+        return maximumFileSize;
+    }
+
+    /**
+     * Sets the maximum size in bytes of the log file before it is rolled, 0 to roll on date only.
+     * @param maximumFileSize the maximumFileSize to set
+     */
+    public void setMaximumFileSize(long maximumFileSize)
+    {
+        this.maximumFileSize = maximumFileSize;
+    }
+
+    /**
+     * Sets the maximum size of the log file before it is rolled, with an optional KB, MB or GB suffix.
+     * @param value the maximum file size
+     */
+    public void setMaxFileSize(String value)
+    {
+        this.maximumFileSize = OptionConverter.toFileSize(value, maximumFileSize + 1);
+    }
+
+    /**
+     * Returns the maxArchiveDays.
+     * @return the maxArchiveDays
+     */
+    public int getMaxArchiveDays()
+    {
+        return maxArchiveDays;
+    }
+
+    /**
+     * Sets the number of days after which rolled files are deleted, 0 to keep them forever.
+     * @param maxArchiveDays the maxArchiveDays to set
+     */
+    public void setMaxArchiveDays(int maxArchiveDays)
+    {
+        this.maxArchiveDays = maxArchiveDays;
+    }
+
+    /**
+     * Returns the maxArchiveFiles.
+     * @return the maxArchiveFiles
+     */
+    public int getMaxArchiveFiles()
+    {
+        return maxArchiveFiles;
+    }
+
+    /**
+     * Sets the maximum number of rolled files kept in the archive directory, 0 for no limit.
+     * @param maxArchiveFiles the maxArchiveFiles to set
+     */
+    public void setMaxArchiveFiles(int maxArchiveFiles)
+    {
+        this.maxArchiveFiles = maxArchiveFiles;
+    }
+
+    /**
+     * Returns the maximumArchiveSize.
+     * @return the maximumArchiveSize
+     */
+    public long getMaximumArchiveSize()
+    {
+        return maximumArchiveSize;
+    }
+
+    /**
+     * Sets the maximum total size in bytes of rolled files kept in the archive directory, 0 for no limit.
+     * @param maximumArchiveSize the maximumArchiveSize to set
+     */
+    public void setMaximumArchiveSize(long maximumArchiveSize)
+    {
+        this.maximumArchiveSize = maximumArchiveSize;
+    }
+
+    /**
+     * Sets the maximum total size of rolled files kept in the archive directory, with an optional KB, MB or GB suffix.
+     * @param value the maximum archive size
+     */
+    public void setMaxArchiveSize(String value)
+    {
+        this.maximumArchiveSize = OptionConverter.toFileSize(value, maximumArchiveSize + 1);
+    }
+
+    /**
+     * Returns the number of rolled files moved to the archive directory.
+     * @return the number of files moved
+     */
+    public long getArchiveMoves()
+    {
+        return mover != null ? mover.getMoves() : 0;
+    }
+
+    /**
+     * Returns the number of rolled files which could not be moved to the archive directory, or copied to it when on
+     * another file system.
+     * @return the number of failures
      */
-    private long nextCheck = System.currentTimeMillis() - 1;
+    public long getArchiveMoveFailures()
+    {
+        return mover != null ? mover.getFailures() : 0;
+    }
+
+    /**
+     * Returns the total time spent moving rolled files to the archive directory, including background copies.
+     * @return the total time in milliseconds
+     */
+    public long getArchiveMoveTime()
+    {
+        return mover != null ? mover.getTotalTime() : 0;
+    }
+
+    /**
+     * Returns the longest time spent moving a rolled file to the archive directory.
+     * @return the longest time in milliseconds
+     */
+    public long getArchiveMoveMaxTime()
+    {
+        return mover != null ? mover.getMaxTime() : 0;
+    }
+
+    /**
+     * Returns the outputMode.
+     * @return the outputMode
+     */
+    public String getOutputMode()
+    {
+        return outputMode;
+    }
+
+    /**
+     * Sets how events are written to the file: <code>stream</code> (default), <code>channel</code> or
+     * <code>mapped</code>.
+     * @param outputMode the outputMode to set
+     */
+    public void setOutputMode(String outputMode)
+    {
+        this.outputMode = outputMode;
+    }
+
+    /**
+     * Returns the segmentSize.
+     * @return the segmentSize
+     */
+    public long getSegmentSize()
+    {
+        return segmentSize;
+    }
+
+    /**
+     * Sets the size in bytes of the segments mapped in memory by the <code>mapped</code> output mode. Defaults to 32MB,
+     * can't exceed 2GB.
+     * @param segmentSize the segmentSize to set
+     */
+    public void setSegmentSize(long segmentSize)
+    {
+        this.segmentSize = Math.min(Integer.MAX_VALUE, segmentSize);
+    }
 
-    Date now = new Date();
+    /**
+     * Sets the size of the segments mapped in memory by the <code>mapped</code> output mode, with an optional KB, MB
+     * or GB suffix. Defaults to 32MB, can't exceed 2GB.
+     * @param value the segment size
+     */
+    public void setMappedSegmentSize(String value)
+    {
+        setSegmentSize(OptionConverter.toFileSize(value, segmentSize));
+    }
+
+    /**
+     * Returns the syncInterval.
+     * @return the syncInterval
+     */
+    public long getSyncInterval()
+    {
+        return syncInterval;
+    }
+
+    /**
+     * Sets the interval in milliseconds at which a background thread forces the data written to the current file to
+     * disk (<code>fsync</code>), 0 to leave it to the operating system.
+     * @param syncInterval the syncInterval to set
+     */
+    public void setSyncInterval(long syncInterval)
+    {
+        this.syncInterval = syncInterval;
+    }
+
+    /**
+     * Returns the flushEvents.
+     * @return the flushEvents
+     */
+    public int getFlushEvents()
+    {
+        return flushEvents;
+    }
+
+    /**
+     * Sets the number of events after which the writer is flushed when <code>immediateFlush</code> is false, 0 to
+     * disable.
+     * @param flushEvents the flushEvents to set
+     */
+    public void setFlushEvents(int flushEvents)
+    {
+        this.flushEvents = flushEvents;
+    }
 
-    SimpleDateFormat sdf;
+    /**
+     * Returns the flushInterval.
+     * @return the flushInterval
+     */
+    public long getFlushInterval()
+    {
+        return flushInterval;
+    }
 
-    RollingCalendar rc = new RollingCalendar();
+    /**
+     * Sets the maximum time in milliseconds events stay in the writer buffer when <code>immediateFlush</code> is
+     * false, 0 to disable. Pending events are flushed by a background thread if no other event is logged.
+     * @param flushInterval the flushInterval to set
+     */
+    public void setFlushInterval(long flushInterval)
+    {
+        this.flushInterval = flushInterval;
+    }
 
-    int checkPeriod = TOP_OF_TROUBLE;
+    /**
+     * Returns the syncThreshold.
+     * @return the syncThreshold
+     */
+    public Level getSyncThreshold()
+    {
+        return syncThreshold;
+    }
+
+    /**
+     * Sets the level at or above which events are flushed and forced to disk before the logging call returns, null to
+     * disable.
+     * @param syncThreshold the syncThreshold to set
+     */
+    public void setSyncThreshold(Level syncThreshold)
+    {
+        this.syncThreshold = syncThreshold;
+    }
+
+    /**
+     * Returns the asyncRollover.
+     * @return the asyncRollover
+     */
+    public boolean isAsyncRollover()
+    {
+        return asyncRollover;
+    }
+
+    /**
+     * Enables the asynchronous rollover: the next file is opened in advance and the logging threads only swap the
+     * writer at the boundary. Ignored on platforms which can't rename open files (Windows).
+     * @param asyncRollover the asyncRollover to set
+     */
+    public void setAsyncRollover(boolean asyncRollover)
+    {
+        this.asyncRollover = asyncRollover;
+    }
+
+    /**
+     * Returns the rolloverPreopen.
+     * @return the rolloverPreopen
+     */
+    public long getRolloverPreopen()
+    {
+        return rolloverPreopen;
+    }
+
+    /**
+     * Sets how many milliseconds before the rollover boundary the next file is opened, when the rollover is
+     * asynchronous.
+     * @param rolloverPreopen the rolloverPreopen to set
+     */
+    public void setRolloverPreopen(long rolloverPreopen)
+    {
+        this.rolloverPreopen = rolloverPreopen;
+    }
+
+    /**
+     * The <b>DatePattern</b> takes a string in the same format as expected by <code>SimpleDateFormat</code>, which is
+     * translated to an equivalent <code>DateTimeFormatter</code>. This options determines the rollover schedule.
+     */
+    public void setDatePattern(String pattern)
+    {
+        datePattern = pattern;
+    }
+
+    /** Returns the value of the <b>DatePattern</b> option. */
+    public String getDatePattern()
+    {
+        return datePattern;
+    }
+
+    @Override
+    public void activateOptions()
+    {
+        super.activateOptions();
+        if (datePattern != null && fileName != null)
+        {
+            try
+            {
+                schedule = new RolloverSchedule(datePattern, ZoneId.systemDefault(), Locale.getDefault());
+            }
+            catch (IllegalArgumentException e)
+            {
+                LogLog.error("Invalid DatePattern [" + datePattern + "] for appender [" + name + "].", e);
+                return;
+            }
+            printPeriodicity(schedule.getType());
+            File file = new File(fileName);
+            scheduledFilename = fileName + schedule.format(file.lastModified());
+
+            if (mover == null)
+            {
+                mover = new ArchiveMover(name);
+            }
+            mover.recover(getArchiveDir(file.getAbsoluteFile()), rolledFiles());
+            activateRetention();
+            activateCompressor();
+            activateAsyncRollover();
+            activateSync();
+            // checked by the catch-up task or by the first event, whichever comes first
+            nextCheck = 0;
+            catchUp();
+        }
+        else
+        {
+            LogLog.error("Either File or DatePattern options are not set for appender [" + name + "].");
+        }
+    }
+
+    private void activateCompressor()
+    {
+        if (compressor != null)
+        {
+            compressor.shutdown();
+            compressor = null;
+        }
+        if (compression == null || "none".equalsIgnoreCase(compression))
+        {
+            return;
+        }
+        if (!ArchiveCompressor.isSupported(compression))
+        {
+            LogLog.error("Unsupported compression [" + compression + "] for appender [" + name + "].");
+            return;
+        }
+        if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION)
+        {
+            LogLog.warn("Invalid compression level [" + compressionLevel + "] for appender [" + name + "].");
+            compressionLevel = Deflater.DEFAULT_COMPRESSION;
+        }
+
+        compressor = new ArchiveCompressor(compression, compressionLevel, compressionThreads, name);
+        File archive = getArchiveDir(new File(fileName).getAbsoluteFile());
+        compressor.recover(archive, rolledFiles(), retentionListener);
+    }
+
+    /**
+     * Returns a filter accepting the files rolled by this appender.
+     * @return filter accepting rolled files
+     */
+    private FilenameFilter rolledFiles()
+    {
+        final RolloverSchedule rolloverSchedule = schedule;
+        final String baseName = new File(fileName).getName();
+        return new FilenameFilter()
+        {
+
+            public boolean accept(File dir, String name)
+            {
+                return rolloverSchedule.isRolledFile(name, baseName);
+            }
+        };
+    }
+
+    private void activateSync()
+    {
+        stopSync();
+        if (syncInterval <= 0 && (flushInterval <= 0 || immediateFlush))
+        {
+            return;
+        }
+
+        syncExecutor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("log4j sync [" + name + "]",
+            Thread.NORM_PRIORITY));
+        if (flushInterval > 0 && !immediateFlush)
+        {
+            syncExecutor.scheduleWithFixedDelay(new Runnable()
+            {
+
+                public void run()
+                {
+                    flushPending();
+                }
+            }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        }
+        if (syncInterval > 0)
+        {
+            syncExecutor.scheduleWithFixedDelay(new Runnable()
+            {
+
+                public void run()
+                {
+                    // fsync does not need the appender lock
+                    FileQuietWriter writer = fileWriter;
+                    if (writer != null)
+                    {
+                        writer.sync();
+                    }
+                }
+            }, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Flushes events which have been waiting longer than <code>flushInterval</code>, called by the background thread.
+     */
+    private synchronized void flushPending()
+    {
+        long n = System.currentTimeMillis();
+        if (!closed && unflushed > 0 && this.qw != null && n - lastFlush >= flushInterval)
+        {
+            this.qw.flush();
+            unflushed = 0;
+            lastFlush = n;
+        }
+    }
+
+    /**
+     * Decides if the writer must be flushed after the given event: always with <code>immediateFlush</code>, for
+     * events at or above <code>syncThreshold</code>, or when <code>flushEvents</code> or <code>flushInterval</code>
+     * are reached.
+     */
+    @Override
+    protected boolean shouldFlush(LoggingEvent event)
+    {
+        unflushed++;
+        long n = flushInterval > 0 ? System.currentTimeMillis() : 0;
+        if (immediateFlush
+            || isSyncRequired(event)
+            || flushEvents > 0 && unflushed >= flushEvents
+            || flushInterval > 0 && n - lastFlush >= flushInterval)
+        {
+            unflushed = 0;
+            lastFlush = n;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isSyncRequired(LoggingEvent event)
+    {
+        return syncThreshold != null && event.getLevel().isGreaterOrEqual(syncThreshold);
+    }
+
+    /**
+     * Forces the data written to the current file before closing it when <code>syncInterval</code> or
+     * <code>syncThreshold</code> are set: closing a file does not force it, and the periodic sync only works on the
+     * current file.
+     */
+    @Override
+    protected void closeFile()
+    {
+        syncBeforeClose(this.qw);
+        super.closeFile();
+        // closeFile() is called again by setFile(), the closed writer must not be flushed
+        this.qw = null;
+    }
+
+    private void syncBeforeClose(QuietWriter writer)
+    {
+        if ((syncInterval > 0 || syncThreshold != null) && writer instanceof FileQuietWriter)
+        {
+            writer.flush();
+            ((FileQuietWriter) writer).sync();
+        }
+    }
+
+    private void stopSync()
+    {
+        if (syncExecutor != null)
+        {
+            syncExecutor.shutdownNow();
+            syncExecutor = null;
+        }
+    }
+
+    private void activateRetention()
+    {
+        if (retention != null)
+        {
+            retention.shutdown();
+            retention = null;
+        }
+        if (maxArchiveDays <= 0 && maxArchiveFiles <= 0 && maximumArchiveSize <= 0)
+        {
+            return;
+        }
+
+        retention = new ArchiveRetention(
+            TimeUnit.DAYS.toMillis(maxArchiveDays),
+            maxArchiveFiles,
+            maximumArchiveSize,
+            name,
+            rolledFiles());
+        retention.schedule(getArchiveDir(new File(fileName).getAbsoluteFile()), new File(fileName).getName());
+    }
+
+    private void activateAsyncRollover()
+    {
+        stopAsyncRollover();
+        if (!asyncRollover)
+        {
+            return;
+        }
+        String os = System.getProperty("os.name");
+        if (!canRenameOpenFiles(os))
+        {
+            // the next file is renamed while open, which fails on Windows
+            LogLog.warn("AsyncRollover is not supported on "
+                + os
+                + ", appender ["
+                + name
+                + "] will roll files synchronously.");
+            return;
+        }
+
+        File next = new File(fileName + NEXT_SUFFIX);
+        if (next.exists() && next.length() == 0)
+        {
+            next.delete();
+        }
+        else if (next.exists())
+        {
+            LogLog.warn("Found [" + next + "] from a previous interrupted rollover, please check its content.");
+        }
+
+        rolloverExecutor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("log4j rollover ["
+            + name
+            + "]", Thread.NORM_PRIORITY));
+    }
+
+    /**
+     * Returns <code>true</code> if open files can be renamed on the given operating system.
+     * @param os name of the operating system, as in the <code>os.name</code> system property
+     * @return <code>false</code> on Windows
+     */
+    static boolean canRenameOpenFiles(String os)
+    {
+        return os == null || !os.startsWith("Windows");
+    }
+
+    /**
+     * Rolls a file left over from a previous period without waiting for the first event, on a background thread so
+     * that activation is never delayed: the rollover thread in asynchronous mode, where this also schedules the
+     * following rollovers, or the archiver thread otherwise.
+     */
+    private void catchUp()
+    {
+        Runnable task = new Runnable()
+        {
+
+            public void run()
+            {
+                synchronized (EnhancedDailyRollingFileAppender.this)
+                {
+                    long n = System.currentTimeMillis();
+                    // a logging thread may have been faster
+                    if (!closed && n >= nextCheck)
+                    {
+                        checkRollover(n);
+                    }
+                }
+            }
+        };
+
+        if (rolloverExecutor != null)
+        {
+            try
+            {
+                rolloverExecutor.execute(task);
+            }
+            catch (RejectedExecutionException e)
+            {
+                // closed meanwhile
+            }
+            return;
+        }
+        // the archiver thread is kept across activations, no new thread is started each time
+        mover.execute(task);
+    }
+
+    private void stopAsyncRollover()
+    {
+        if (rolloverExecutor != null)
+        {
+            rolloverExecutor.shutdownNow();
+            rolloverExecutor = null;
+        }
+        FileQuietWriter writer = nextWriter;
+        nextWriter = null;
+        if (writer != null)
+        {
+            closeQuietly(writer);
+            File next = new File(fileName + NEXT_SUFFIX);
+            if (next.length() == 0)
+            {
+                next.delete();
+            }
+        }
+    }
+
+    /**
+     * Schedules the opening of the next file and the writer swap for the given boundary.
+     */
+    private void scheduleRollover(final long boundary)
+    {
+        ScheduledExecutorService executor = rolloverExecutor;
+        if (executor == null)
+        {
+            return;
+        }
+
+        long delay = boundary - System.currentTimeMillis();
+        try
+        {
+            executor.schedule(new Runnable()
+            {
+
+                public void run()
+                {
+                    openNextWriter();
+                }
+            }, Math.max(0, delay - rolloverPreopen), TimeUnit.MILLISECONDS);
+
+            executor.schedule(new Runnable()
+            {
+
+                public void run()
+                {
+                    rollOverAt(boundary);
+                }
+            }, Math.max(0, delay), TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // appender closed
+        }
+    }
+
+    private void openNextWriter()
+    {
+        if (nextWriter != null)
+        {
+            return;
+        }
+        try
+        {
+            nextWriter = openFileWriter(new File(fileName + NEXT_SUFFIX), false);
+        }
+        catch (IOException e)
+        {
+            // the rollover will be synchronous
+            LogLog.error("Unable to open [" + fileName + NEXT_SUFFIX + "].", e);
+        }
+    }
+
+    /**
+     * Called by the background thread at the rollover boundary, unless a logging thread already crossed it.
+     */
+    private void rollOverAt(long boundary)
+    {
+        synchronized (this)
+        {
+            if (closed || nextCheck > boundary)
+            {
+                // already rolled by a logging thread
+                return;
+            }
+
+            long n = System.currentTimeMillis();
+            if (n < boundary)
+            {
+                // woken up early, the clock may have been changed
+                scheduleRollover(boundary);
+                return;
+            }
+            checkRollover(n);
+        }
+    }
+
+    /**
+     * Same as <code>FileAppender.setFile()</code>, but the bytes written to the file are counted and the writer depends
+     * on the output mode.
+     */
+    @Override
+    public synchronized void setFile(String fileName, boolean append, boolean bufferedIO, int bufferSize)
+        throws IOException
+    {
+        LogLog.debug("setFile called: " + fileName + ", " + append);
+
+        // It does not make sense to have immediate flush and bufferedIO.
+        if (bufferedIO)
+        {
+            setImmediateFlush(false);
+        }
+
+        reset();
+        this.bufferedIO = bufferedIO;
+        this.bufferSize = bufferSize;
+        FileQuietWriter writer = openFileWriter(new File(fileName), append);
+        this.qw = writer;
+        this.fileWriter = writer;
+        this.fileName = fileName;
+        this.fileAppend = append;
+        writeHeader();
+        LogLog.debug("setFile ended");
+    }
+
+    /**
+     * Opens a writer on the given file for the configured output mode.
+     */
+    FileQuietWriter openFileWriter(File file, boolean append) throws IOException
+    {
+        if (OUTPUT_CHANNEL.equalsIgnoreCase(outputMode))
+        {
+            FileChannel channel = openChannel(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, append
+                ? StandardOpenOption.APPEND
+                : StandardOpenOption.TRUNCATE_EXISTING);
+            ChannelWriter writer = new ChannelWriter(channel, getCharset(), bufferSize);
+            return new FileQuietWriter(writer, errorHandler, writer, writer);
+        }
+        if (OUTPUT_MAPPED.equalsIgnoreCase(outputMode))
+        {
+            FileChannel channel = openChannel(
+                file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+            if (!append)
+            {
+                channel.truncate(0);
+            }
+            MappedSegmentWriter writer = new MappedSegmentWriter(channel, getCharset(), segmentSize, bufferSize);
+            return new FileQuietWriter(writer, errorHandler, writer, writer);
+        }
 
-    // The gmtTimeZone is used only in computeCheckPeriod() method.
-    static final TimeZone gmtTimeZone = TimeZone.getTimeZone("GMT");
+        CountingOutputStream out = openStream(file, append);
+        return new FileQuietWriter(openWriter(out), errorHandler, out, out);
+    }
 
     /**
-     * The default constructor does nothing.
+     * Opens a counting stream on the given file, creating the parent directory if needed.
      */
-    public EnhancedDailyRollingFileAppender()
+    CountingOutputStream openStream(File file, boolean append) throws IOException
     {
+        FileOutputStream ostream;
+        try
+        {
+            ostream = new FileOutputStream(file, append);
+        }
+        catch (FileNotFoundException ex)
+        {
+            if (!createParentDir(file))
+            {
+                throw ex;
+            }
+            ostream = new FileOutputStream(file, append);
+        }
+        return new CountingOutputStream(ostream, append ? file.length() : 0);
     }
 
     /**
-     * Instantiate a <code>DailyRollingFileAppender</code> and open the file designated by <code>filename</code>.
-     * The opened filename will become the ouput destination for this appender.
+     * Opens a channel on the given file, creating the parent directory if needed.
      */
-    public EnhancedDailyRollingFileAppender(Layout layout, String filename, String datePattern) throws IOException
+    FileChannel openChannel(File file, OpenOption... options) throws IOException
     {
-        super(layout, filename, true);
-        this.datePattern = datePattern;
-        activateOptions();
+        try
+        {
+            return FileChannel.open(file.toPath(), options);
+        }
+        catch (NoSuchFileException ex)
+        {
+            if (!createParentDir(file))
+            {
+                throw ex;
+            }
+            return FileChannel.open(file.toPath(), options);
+        }
     }
 
-    /**
-     * Sets the archiveDirectory.
-     * @param archiveDirectory the archiveDirectory to set
-     */
-    public void setArchiveDirectory(String archiveDirectory)
+    private static boolean createParentDir(File file)
     {
-        this.archiveDirectory = archiveDirectory;
+        File parentDir = file.getParentFile();
+        return parentDir != null && !parentDir.exists() && parentDir.mkdirs();
+    }
+
+    private Charset getCharset()
+    {
+        String encoding = getEncoding();
+        if (encoding == null)
+        {
+            return Charset.defaultCharset();
+        }
+        try
+        {
+            return Charset.forName(encoding);
+        }
+        catch (IllegalArgumentException e)
+        {
+            LogLog.warn("Error initializing output writer.");
+            LogLog.warn("Unsupported encoding?");
+            return Charset.defaultCharset();
+        }
     }
 
     /**
-     * The <b>DatePattern</b> takes a string in the same format as expected by {@link SimpleDateFormat}. This options
-     * determines the rollover schedule.
+     * Opens a writer on the given stream, with the configured encoding and buffering.
      */
-    public void setDatePattern(String pattern)
+    Writer openWriter(OutputStream out)
     {
-        datePattern = pattern;
+        Writer fw = createWriter(out);
+        if (bufferedIO)
+        {
+            fw = new BufferedWriter(fw, bufferSize);
+        }
+        return fw;
     }
 
-    /** Returns the value of the <b>DatePattern</b> option. */
-    public String getDatePattern()
+    /**
+     * Returns the directory rolled files are moved to.
+     */
+    File getArchiveDir(File file)
     {
-        return datePattern;
+        if (archiveDirectory != null)
+        {
+            return new File(file.getParentFile(), archiveDirectory);
+        }
+        return file.getParentFile();
     }
 
+    /**
+     * Closes the appender and stops the background threads: files not yet compressed will be compressed on next
+     * startup.
+     */
     @Override
-    public void activateOptions()
+    public synchronized void close()
     {
-        super.activateOptions();
-        if (datePattern != null && fileName != null)
+        // before the file name is reset by close()
+        awaitRollover();
+        stopSync();
+        super.close();
+        stopAsyncRollover();
+        if (compressor != null)
         {
-            now.setTime(System.currentTimeMillis());
-            sdf = new SimpleDateFormat(datePattern);
-            int type = computeCheckPeriod();
-            printPeriodicity(type);
-            rc.setType(type);
-            File file = new File(fileName);
-            scheduledFilename = fileName + sdf.format(new Date(file.lastModified()));
-
+            compressor.shutdown();
+            compressor = null;
         }
-        else
+        if (retention != null)
         {
-            LogLog.error("Either File or DatePattern options are not set for appender [" + name + "].");
+            retention.shutdown();
+            retention = null;
+        }
+        if (mover != null)
+        {
+            mover.shutdown();
         }
     }
 
@@ -179,39 +1277,6 @@ public class EnhancedDailyRollingFileAppender extends FileAppender
         }
     }
 
-    // This method computes the roll over period by looping over the
-    // periods, starting with the shortest, and stopping when the r0 is
-    // different from from r1, where r0 is the epoch formatted according
-    // the datePattern (supplied by the user) and r1 is the
-    // epoch+nextMillis(i) formatted according to datePattern. All date
-    // formatting is done in GMT and not local format because the test
-    // logic is based on comparisons relative to 1970-01-01 00:00:00
-    // GMT (the epoch).
-
-    int computeCheckPeriod()
-    {
-        RollingCalendar rollingCalendar = new RollingCalendar(gmtTimeZone, Locale.ENGLISH);
-        // set sate to 1970-01-01 00:00:00 GMT
-        Date epoch = new Date(0);
-        if (datePattern != null)
-        {
-            for (int i = TOP_OF_MINUTE; i <= TOP_OF_MONTH; i++)
-            {
-                SimpleDateFormat simpleDateFormat = new SimpleDateFormat(datePattern);
-                simpleDateFormat.setTimeZone(gmtTimeZone); // do all date formatting in GMT
-                String r0 = simpleDateFormat.format(epoch);
-                rollingCalendar.setType(i);
-                Date next = new Date(rollingCalendar.getNextCheckMillis(epoch));
-                String r1 = simpleDateFormat.format(next);
-                if (r0 != null && r1 != null && !r0.equals(r1))
-                {
-                    return i;
-                }
-            }
-        }
-        return TOP_OF_TROUBLE; // Deliberately head for trouble...
-    }
-
     /**
      * Rollover the current file to a new file.
      */
@@ -219,13 +1284,14 @@ public class EnhancedDailyRollingFileAppender extends FileAppender
     {
 
         /* Compute filename, but only if datePattern is specified */
-        if (datePattern == null)
+        if (schedule == null)
         {
             errorHandler.error("Missing DatePattern option in rollOver().");
             return;
         }
 
-        String datedFilename = fileName + sdf.format(now);
+        String datedFilename = fileName + periodSuffix;
+        awaitRollover();
         // It is too early to roll over because we are still within the
         // bounds of the current interval. Rollover will occur once the
         // next interval is reached.
@@ -237,17 +1303,208 @@ public class EnhancedDailyRollingFileAppender extends FileAppender
         // close current file, and rename it to datedFilename
         this.closeFile();
 
+        archive(new File(fileName), sizeIndex > 0 ? nextIndexedFilename() : scheduledFilename);
+        sizeIndex = 0;
+
+        try
+        {
+            // This will also close the file. This is OK since multiple
+            // close operations are safe.
+            this.setFile(fileName, false, this.bufferedIO, this.bufferSize);
+        }
+        catch (IOException e)
+        {
+            errorHandler.error("setFile(" + fileName + ", false) call failed.");
+        }
+        scheduledFilename = datedFilename;
+    }
+
+    /**
+     * Swaps the current writer with the one opened in advance, leaving close and rename of the previous file to the
+     * background thread. Falls back to {@link #rollOver()} if the next file is not ready.
+     */
+    void swapWriter() throws IOException
+    {
+        String datedFilename = fileName + periodSuffix;
+        if (scheduledFilename.equals(datedFilename) || nextWriter == null)
+        {
+            rollOver();
+            scheduleRollover(nextCheck);
+            return;
+        }
+
+        String rolledFilename = sizeIndex > 0 ? nextIndexedFilename() : scheduledFilename;
+        sizeIndex = 0;
+        scheduledFilename = datedFilename;
+        swapWriter(rolledFilename, true);
+    }
+
+    private void swapWriter(final String rolledFilename, final boolean periodEnded)
+    {
+        awaitRollover();
+        final QuietWriter previous = this.qw;
+        final long boundary = nextCheck;
+        FileQuietWriter writer = nextWriter;
+        nextWriter = null;
+        this.qw = writer;
+        this.fileWriter = writer;
+        writeHeader();
+
+        FutureTask<Void> completion = new FutureTask<Void>(new Runnable()
+        {
+
+            public void run()
+            {
+                completeRollover(previous, rolledFilename);
+                if (periodEnded)
+                {
+                    scheduleRollover(boundary);
+                }
+                else
+                {
+                    openNextWriter();
+                }
+            }
+        }, null);
+        pendingRollover = completion;
+        try
+        {
+            rolloverExecutor.execute(completion);
+        }
+        catch (RejectedExecutionException e)
+        {
+            completion.run();
+        }
+    }
+
+    /**
+     * Waits until the previous file has been closed and renamed after a writer swap, so that a synchronous rollover
+     * never works on files still being moved by the background thread. The completion runs on the calling thread if it
+     * has not started yet: the background thread may be waiting for the appender lock held by the caller.
+     */
+    private void awaitRollover()
+    {
+        FutureTask<Void> completion = pendingRollover;
+        if (completion == null)
+        {
+            return;
+        }
+        pendingRollover = null;
+        completion.run();
+
+        boolean interrupted = false;
+        while (true)
+        {
+            try
+            {
+                completion.get();
+                break;
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+            catch (ExecutionException e)
+            {
+                LogLog.error("Rollover failed for appender [" + name + "].", e.getCause());
+                break;
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void completeRollover(QuietWriter previous, String rolledFilename)
+    {
+        syncBeforeClose(previous);
+        closeQuietly(previous);
+
+        File file = new File(fileName);
+        archive(file, rolledFilename);
+
+        File next = new File(fileName + NEXT_SUFFIX);
+        if (!next.renameTo(file))
+        {
+            LogLog.error("Failed to rename [" + next + "] to [" + fileName + "].");
+        }
+    }
+
+    /**
+     * Rolls the current file because it exceeds the maximum size, to the next index in the current period.
+     */
+    void rollOverForSize()
+    {
+        // the indexes already used are only visible once the previous file has been archived
+        awaitRollover();
+        String rolledFilename = nextIndexedFilename();
+        if (rolloverExecutor != null && nextWriter != null)
+        {
+            swapWriter(rolledFilename, false);
+            return;
+        }
+
+        this.closeFile();
+        archive(new File(fileName), rolledFilename);
+        try
+        {
+            this.setFile(fileName, false, this.bufferedIO, this.bufferSize);
+        }
+        catch (IOException e)
+        {
+            errorHandler.error("setFile(" + fileName + ", false) call failed.");
+        }
+    }
+
+    /**
+     * Returns the name for the next file rolled in the current period, skipping indexes already used in the archive
+     * directory.
+     */
+    private String nextIndexedFilename()
+    {
         File scheduledFile = new File(scheduledFilename);
-        File targetDir;
-        if (archiveDirectory != null)
+        File targetDir = getArchiveDir(scheduledFile);
+        ArchiveCompressor archiveCompressor = compressor;
+        String candidate;
+        File target;
+        do
         {
-            targetDir = new File(scheduledFile.getParentFile(), archiveDirectory);
+            sizeIndex++;
+            candidate = scheduledFile.getName() + "." + sizeIndex;
+            target = new File(targetDir, candidate);
         }
-        else
+        while (target.exists()
+            || new File(scheduledFile.getParentFile(), candidate).exists()
+            || archiveCompressor != null
+            && new File(targetDir, candidate + archiveCompressor.getExtension()).exists());
+
+        return scheduledFilename + "." + sizeIndex;
+    }
+
+    private static void closeQuietly(Writer writer)
+    {
+        try
+        {
+            writer.close();
+        }
+        catch (IOException e)
         {
-            targetDir = scheduledFile.getParentFile();
+            LogLog.error("Could not close " + writer, e);
         }
-        if (!targetDir.exists())
+    }
+
+    /**
+     * Moves a rolled file to the archive directory and schedules its compression. If the archive directory is on
+     * another file system the file is renamed in place and copied in background.
+     * @param file file to be archived
+     * @param rolledFilename name of the rolled file
+     */
+    void archive(final File file, String rolledFilename)
+    {
+        File scheduledFile = new File(rolledFilename);
+        File targetDir = getArchiveDir(scheduledFile);
+        if (targetDir != null && !targetDir.exists())
         {
             boolean newdir = targetDir.mkdirs();
             if (!newdir)
@@ -263,40 +1520,50 @@ public class EnhancedDailyRollingFileAppender extends FileAppender
             target.delete();
         }
 
-        File file = new File(fileName);
-        boolean result = file.renameTo(target);
-        if (result)
+        final ArchiveCompressor archiveCompressor = compressor;
+        mover.move(file, target, scheduledFile, new ArchiveListener()
+        {
+
+            public void archived(File archived)
+            {
+                if (archiveCompressor != null)
+                {
+                    archiveCompressor.compress(archived, retentionListener);
+                }
+                else
+                {
+                    retentionListener.archived(archived);
+                }
+            }
+        });
+    }
+
+    /**
+     * Rolls over if the current period has ended.
+     */
+    void checkRollover(long n)
+    {
+        if (schedule == null)
         {
-            LogLog.debug(fileName + " -> " + scheduledFilename);
+            return;
         }
-        else
+        periodSuffix = schedule.format(n);
+        nextCheck = schedule.nextBoundary(n);
+        try
         {
-            LogLog.error("Failed to rename [" + fileName + "] to [" + target.getAbsolutePath() + "].");
-
-            // try without moving:
-            target = new File(scheduledFilename);
-            result = file.renameTo(target);
-            if (result)
+            if (rolloverExecutor != null)
             {
-                LogLog.debug(fileName + " -> " + scheduledFilename);
+                swapWriter();
             }
             else
             {
-                LogLog.error("Failed to rename [" + fileName + "] to [" + scheduledFilename + "].");
+                rollOver();
             }
         }
-
-        try
-        {
-            // This will also close the file. This is OK since multiple
-            // close operations are safe.
-            this.setFile(fileName, false, this.bufferedIO, this.bufferSize);
-        }
-        catch (IOException e)
+        catch (IOException ioe)
         {
-            errorHandler.error("setFile(" + fileName + ", false) call failed.");
+            LogLog.error("rollOver() failed.", ioe);
         }
-        scheduledFilename = datedFilename;
     }
 
     /**
@@ -311,107 +1578,39 @@ public class EnhancedDailyRollingFileAppender extends FileAppender
         long n = System.currentTimeMillis();
         if (n >= nextCheck)
         {
-            now.setTime(n);
-            nextCheck = rc.getNextCheckMillis(now);
+            checkRollover(n);
+        }
+
+        if (this.layout instanceof FilteredPatternLayout)
+        {
+            // write straight to the writer, without creating intermediate Strings
             try
             {
-                rollOver();
+                ((FilteredPatternLayout) this.layout).write(event, this.qw);
+            }
+            catch (IOException e)
+            {
+                errorHandler.error("Failed to write event.", e, ErrorCode.WRITE_FAILURE);
             }
-            catch (IOException ioe)
+            if (shouldFlush(event))
             {
-                LogLog.error("rollOver() failed.", ioe);
+                this.qw.flush();
             }
         }
-        super.subAppend(event);
-    }
-}
-
-
-/**
- * RollingCalendar is a helper class to DailyRollingFileAppender. Given a periodicity type and the current time, it
- * computes the start of the next interval.
- */
-class RollingCalendar extends GregorianCalendar
-{
-
-    int type = EnhancedDailyRollingFileAppender.TOP_OF_TROUBLE;
-
-    RollingCalendar()
-    {
-        super();
-    }
-
-    RollingCalendar(TimeZone tz, Locale locale)
-    {
-        super(tz, locale);
-    }
-
-    void setType(int type)
-    {
-        this.type = type;
-    }
-
-    public long getNextCheckMillis(Date now)
-    {
-        return getNextCheckDate(now).getTime();
-    }
+        else
+        {
+            super.subAppend(event);
+        }
 
-    public Date getNextCheckDate(Date now)
-    {
-        this.setTime(now);
+        if (isSyncRequired(event) && fileWriter != null)
+        {
+            // already flushed by shouldFlush()
+            fileWriter.sync();
+        }
 
-        switch (type)
+        if (maximumFileSize > 0 && fileWriter != null && fileWriter.getCount() >= maximumFileSize)
         {
-            case EnhancedDailyRollingFileAppender.TOP_OF_MINUTE :
-                this.set(Calendar.SECOND, 0);
-                this.set(Calendar.MILLISECOND, 0);
-                this.add(Calendar.MINUTE, 1);
-                break;
-            case EnhancedDailyRollingFileAppender.TOP_OF_HOUR :
-                this.set(Calendar.MINUTE, 0);
-                this.set(Calendar.SECOND, 0);
-                this.set(Calendar.MILLISECOND, 0);
-                this.add(Calendar.HOUR_OF_DAY, 1);
-                break;
-            case EnhancedDailyRollingFileAppender.HALF_DAY :
-                this.set(Calendar.MINUTE, 0);
-                this.set(Calendar.SECOND, 0);
-                this.set(Calendar.MILLISECOND, 0);
-                int hour = get(Calendar.HOUR_OF_DAY);
-                if (hour < 12)
-                {
-                    this.set(Calendar.HOUR_OF_DAY, 12);
-                }
-                else
-                {
-                    this.set(Calendar.HOUR_OF_DAY, 0);
-                    this.add(Calendar.DAY_OF_MONTH, 1);
-                }
-                break;
-            case EnhancedDailyRollingFileAppender.TOP_OF_DAY :
-                this.set(Calendar.HOUR_OF_DAY, 0);
-                this.set(Calendar.MINUTE, 0);
-                this.set(Calendar.SECOND, 0);
-                this.set(Calendar.MILLISECOND, 0);
-                this.add(Calendar.DATE, 1);
-                break;
-            case EnhancedDailyRollingFileAppender.TOP_OF_WEEK :
-                this.set(Calendar.DAY_OF_WEEK, getFirstDayOfWeek());
-                this.set(Calendar.HOUR_OF_DAY, 0);
-                this.set(Calendar.SECOND, 0);
-                this.set(Calendar.MILLISECOND, 0);
-                this.add(Calendar.WEEK_OF_YEAR, 1);
-                break;
-            case EnhancedDailyRollingFileAppender.TOP_OF_MONTH :
-                this.set(Calendar.DATE, 1);
-                this.set(Calendar.HOUR_OF_DAY, 0);
-                this.set(Calendar.SECOND, 0);
-                this.set(Calendar.MILLISECOND, 0);
-                this.add(Calendar.MONTH, 1);
-                break;
-            default :
-                throw new IllegalStateException("Unknown periodicity type.");
+            rollOverForSize();
         }
-        return getTime();
     }
 }
@@ -0,0 +1,82 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.apache.log4j.helpers.QuietWriter;
+import org.apache.log4j.spi.ErrorCode;
+import org.apache.log4j.spi.ErrorHandler;
+
+
+/**
+ * The QuietWriter used by {@link EnhancedDailyRollingFileAppender}, which keeps the writer, the byte count and the
+ * sync capability of a log file together so that they can be swapped at once on rollover.
+ * @author Fabrizio Giustina
+ * @version $Id$
+ */
+class FileQuietWriter extends QuietWriter implements ByteCounter
+{
+
+    private final ByteCounter counter;
+
+    private final Syncable syncable;
+
+    /**
+     * Creates a new writer.
+     * @param writer underlying writer
+     * @param errorHandler error handler
+     * @param counter counts the bytes written by <code>writer</code>
+     * @param syncable forces the data written by <code>writer</code>, may be null
+     */
+    FileQuietWriter(Writer writer, ErrorHandler errorHandler, ByteCounter counter, Syncable syncable)
+    {
+        super(writer, errorHandler);
+        this.counter = counter;
+        this.syncable = syncable;
+    }
+
+    /**
+     * Forces the data written to the storage device, reporting errors to the error handler. Does nothing if the
+     * destination does not support it.
+     */
+    public void sync()
+    {
+        if (syncable == null)
+        {
+            return;
+        }
+        try
+        {
+            syncable.sync();
+        }
+        catch (IOException e)
+        {
+            errorHandler.error("Failed to sync.", e, ErrorCode.FLUSH_FAILURE);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getCount()
+    {
+        return counter.getCount();
+    }
+}
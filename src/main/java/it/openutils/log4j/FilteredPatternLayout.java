@@ -17,11 +17,21 @@
  */
 package it.openutils.log4j;
 
-import java.util.HashSet;
-import java.util.Iterator;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
 
 import org.apache.log4j.PatternLayout;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.helpers.PatternConverter;
 import org.apache.log4j.spi.LoggingEvent;
 import org.apache.log4j.spi.ThrowableInformation;
 
@@ -40,6 +50,15 @@ import org.apache.log4j.spi.ThrowableInformation;
  *      &lt;/layout>
  *  &lt;/appender>
  * </pre>
+ * <p>
+ * Setting <code>DirectRendering</code> to <code>true</code> renders stack traces straight from the throwable stack
+ * frames, skipping filtered frames before they are formatted.
+ * </p>
+ * <p>
+ * Appenders can use {@link #write(LoggingEvent, Writer)} to write the formatted event to their writer without creating
+ * intermediate Strings: the pattern output and the filtered stack trace are appended to a single, reusable, per-thread
+ * buffer.
+ * </p>
  *
  * @author Fabrizio Giustina
  * @version $Id: FilteredPatternLayout.java 8589 2008-02-10 18:01:57Z fgiust $
@@ -50,7 +69,74 @@ public class FilteredPatternLayout extends PatternLayout
     /**
      * Holds the list of filtered frames.
      */
-    private Set<String> filteredFrames = new HashSet<>();
+    private Set<String> filteredFrames = new LinkedHashSet<>();
+
+    /**
+     * The filtered frames compiled in a single matcher, compiled again only when a filter is added.
+     */
+    private volatile FrameFilterMatcher matcher;
+
+    /**
+     * Renderer using the compiled matcher, built when the layout is activated.
+     */
+    private volatile StackTraceRenderer renderer;
+
+    /**
+     * If <code>true</code> stack traces are rendered directly from the throwable stack frames.
+     */
+    private boolean directRendering;
+
+    /**
+     * If <code>true</code> frames a cause shares with its enclosing trace are summarized in a "... n more" line.
+     */
+    private boolean elideCommonFrames = true;
+
+    /**
+     * Maximum number of frames written for each throwable in the cause chain, 0 means no limit.
+     */
+    private int maxFramesPerCause;
+
+    /**
+     * Maximum number of lines written for a stack trace, 0 means no limit.
+     */
+    private int maxTraceLines;
+
+    /**
+     * Number of slots of the rendered stack traces cache, 0 means disabled.
+     */
+    private int throwableCacheSize;
+
+    /**
+     * Rendered stack traces cache, keyed by throwable identity.
+     */
+    private volatile ThrowableRenderCache<RenderedTrace> throwableCache;
+
+    /**
+     * If <code>true</code> repeated stack traces are replaced by a reference to their fingerprint.
+     */
+    private boolean deduplicateTraces;
+
+    /**
+     * Interval, in seconds, after which a repeated stack trace is written again in full. 0 means never.
+     */
+    private int deduplicationInterval;
+
+    /**
+     * Maximum number of fingerprints remembered.
+     */
+    private int deduplicationCacheSize = 1000;
+
+    /**
+     * Fingerprints of the stack traces already written to each destination, with the time they were last written in
+     * full. Keyed by the writer passed to {@link #write(LoggingEvent, Writer)}, or by the layout itself for
+     * {@link #format(LoggingEvent)}, guarded by itself.
+     */
+    private final Map<Object, Map<Long, Long>> seenTraces = new WeakHashMap<>();
+
+    /**
+     * Head of the pattern converters chain, kept here since it's private in PatternLayout.
+     */
+    private volatile PatternConverter head;
 
     private String header;
 
@@ -61,6 +147,24 @@ public class FilteredPatternLayout extends PatternLayout
      */
     private static String lineSeparator = "\n";
 
+    /**
+     * Maximum capacity of a per-thread buffer that is kept after formatting an event.
+     */
+    private static final int MAX_BUFFER_CAPACITY = 32 * 1024;
+
+    /**
+     * Per-thread buffers used for formatting events.
+     */
+    private static final ThreadLocal<FormatBuffers> FORMAT_BUFFERS = new ThreadLocal<FormatBuffers>()
+    {
+
+        @Override
+        protected FormatBuffers initialValue()
+        {
+            return new FormatBuffers();
+        }
+    };
+
     static
     {
         try
@@ -120,71 +224,743 @@ public class FilteredPatternLayout extends PatternLayout
         return false;
     }
 
+    /**
+     * @see org.apache.log4j.PatternLayout#activateOptions()
+     */
+    @Override
+    public void activateOptions()
+    {
+        super.activateOptions();
+        renderer = createRenderer();
+        clearThrowableCache();
+    }
+
+    /**
+     * @see org.apache.log4j.PatternLayout#setConversionPattern(java.lang.String)
+     */
+    @Override
+    public void setConversionPattern(String conversionPattern)
+    {
+        super.setConversionPattern(conversionPattern);
+        head = createPatternParser(conversionPattern).parse();
+    }
+
     /**
      * @see org.apache.log4j.PatternLayout#format(org.apache.log4j.spi.LoggingEvent)
      */
     @Override
     public String format(LoggingEvent event)
     {
+        FormatBuffers buffers = acquireBuffers();
+        try
+        {
+            formatTo(event, buffers.text, buffers.trace, this);
+            return buffers.text.toString();
+        }
+        finally
+        {
+            releaseBuffers(buffers);
+        }
+    }
 
-        ThrowableInformation throwableInformation = event.getThrowableInformation();
+    /**
+     * Appends the formatted event, including the filtered stack trace, to the given buffer.
+     * @param event logging event
+     * @param buffer target buffer
+     */
+    public void format(LoggingEvent event, StringBuffer buffer)
+    {
+        FormatBuffers buffers = acquireBuffers();
+        try
+        {
+            formatTo(event, buffer, buffers.trace, this);
+        }
+        finally
+        {
+            releaseBuffers(buffers);
+        }
+    }
 
-        if (throwableInformation == null)
+    /**
+     * Writes the formatted event, including the filtered stack trace, to the given writer. The event is formatted in a
+     * reusable per-thread buffer and written as a char array, without creating any intermediate String.
+     * @param event logging event
+     * @param writer target writer
+     * @throws IOException if the writer fails
+     */
+    public void write(LoggingEvent event, Writer writer) throws IOException
+    {
+        FormatBuffers buffers = acquireBuffers();
+        try
         {
-            return super.format(event);
+            StringBuffer text = buffers.text;
+            formatTo(event, text, buffers.trace, writer);
+            int length = text.length();
+            char[] chars = buffers.chars(length);
+            text.getChars(0, length, chars, 0);
+            writer.write(chars, 0, length);
         }
+        finally
+        {
+            releaseBuffers(buffers);
+        }
+    }
 
-        return super.format(event) + getFilteredStacktrace(throwableInformation);
+    private void formatTo(LoggingEvent event, StringBuffer buffer, StringBuilder traceBuffer, Object destination)
+    {
+        PatternConverter converter = getHead();
+        while (converter != null)
+        {
+            converter.format(buffer, event);
+            converter = converter.next;
+        }
+
+        ThrowableInformation throwableInformation = event.getThrowableInformation();
+        if (throwableInformation != null)
+        {
+            appendFilteredStacktrace(throwableInformation, event.getTimeStamp(), buffer, traceBuffer, destination);
+        }
     }
 
     /**
      * Adds a new filtered frame. Any stack frame starting with <code>"at "</code> + <code>filter</code> will not be
-     * written to the log.
-     * @param filter a class name or package name to be filtered
+     * written to the log. The filter can also be a glob pattern, where <code>*</code> matches any sequence of characters
+     * and <code>?</code> a single character (e.g. <code>sun.reflect.GeneratedMethodAccessor*</code>), or a regular
+     * expression prefixed by <code>regex:</code>. All the filters are compiled in a single matcher when the layout is
+     * activated: invalid filters, and filters that would make the matcher too large, are reported and ignored.
+     * @param filter a class name, package name, glob pattern or regular expression to be filtered
      */
     public void setFilter(String filter)
     {
-        filteredFrames.add("at " + filter);
+        try
+        {
+            FrameFilterMatcher.compile(Collections.singleton(filter));
+        }
+        catch (IllegalArgumentException e)
+        {
+            LogLog.error("Invalid frame filter [" + filter + "], ignored.", e);
+            return;
+        }
+        if (filteredFrames.add(filter))
+        {
+            // compiled once, when the layout is activated or on first use
+            matcher = null;
+            renderer = null;
+            clearThrowableCache();
+        }
+    }
+
+    /**
+     * Returns the directRendering.
+     * @return the directRendering
+     */
+    public boolean isDirectRendering()
+    {
+        return directRendering;
+    }
+
+    /**
+     * If set to <code>true</code> stack traces will be rendered walking the stack frames and the cause chain of the
+     * logged throwable, instead of using <code>ThrowableInformation.getThrowableStrRep()</code>. Filtered frames are
+     * skipped before being formatted, which saves most of the allocations needed for deep stack traces. Filters are
+     * checked against the class and method name of each frame. Defaults to <code>false</code>.
+     * @param directRendering the directRendering to set
+     */
+    public void setDirectRendering(boolean directRendering)
+    {
+        this.directRendering = directRendering;
+        clearThrowableCache();
+    }
+
+    /**
+     * Returns the elideCommonFrames.
+     * @return the elideCommonFrames
+     */
+    public boolean isElideCommonFrames()
+    {
+        return elideCommonFrames;
+    }
+
+    /**
+     * If set to <code>true</code> (the default) the frames a cause shares with its enclosing trace are summarized in a
+     * "... n more" line, as <code>Throwable.printStackTrace()</code> does. Only used when <code>DirectRendering</code>
+     * is enabled, otherwise the string representation of the throwable is used as is.
+     * @param elideCommonFrames the elideCommonFrames to set
+     */
+    public void setElideCommonFrames(boolean elideCommonFrames)
+    {
+        this.elideCommonFrames = elideCommonFrames;
+        this.renderer = null;
+        clearThrowableCache();
+    }
+
+    /**
+     * Returns the maxFramesPerCause.
+     * @return the maxFramesPerCause
+     */
+    public int getMaxFramesPerCause()
+    {
+        return maxFramesPerCause;
+    }
+
+    /**
+     * Sets the maximum number of frames (after filtering) written for the throwable and for each of its causes. The
+     * remaining frames are summarized in a "... n more" line. Defaults to 0, which means no limit.
+     * @param maxFramesPerCause the maxFramesPerCause to set
+     */
+    public void setMaxFramesPerCause(int maxFramesPerCause)
+    {
+        this.maxFramesPerCause = maxFramesPerCause;
+        this.renderer = null;
+        clearThrowableCache();
+    }
+
+    /**
+     * Returns the maxTraceLines.
+     * @return the maxTraceLines
+     */
+    public int getMaxTraceLines()
+    {
+        return maxTraceLines;
+    }
+
+    /**
+     * Sets the maximum number of lines written for a stack trace, including the "Caused by" lines. The remaining lines
+     * are summarized in a "... n more" line, which bounds the size of the stack trace written for a single event.
+     * Defaults to 0, which means no limit.
+     * @param maxTraceLines the maxTraceLines to set
+     */
+    public void setMaxTraceLines(int maxTraceLines)
+    {
+        this.maxTraceLines = maxTraceLines;
+        this.renderer = null;
+        clearThrowableCache();
+    }
+
+    /**
+     * Returns the throwableCacheSize.
+     * @return the throwableCacheSize
+     */
+    public int getThrowableCacheSize()
+    {
+        return throwableCacheSize;
+    }
+
+    /**
+     * Sets the number of rendered stack traces kept in cache. When the same throwable instance is logged more than once
+     * (for example when it's logged before being rethrown, or by several appenders sharing this layout) the filtered
+     * stack trace is only rendered once. Throwables are weakly referenced and the cache is bounded to the given size.
+     * Defaults to 0, which disables the cache.
+     * @param throwableCacheSize the throwableCacheSize to set
+     */
+    public void setThrowableCacheSize(int throwableCacheSize)
+    {
+        this.throwableCacheSize = throwableCacheSize;
+        this.throwableCache = throwableCacheSize > 0 ? new ThrowableRenderCache<RenderedTrace>(throwableCacheSize) : null;
+    }
+
+    /**
+     * Returns the deduplicateTraces.
+     * @return the deduplicateTraces
+     */
+    public boolean isDeduplicateTraces()
+    {
+        return deduplicateTraces;
+    }
+
+    /**
+     * If set to <code>true</code> each filtered stack trace is hashed into a stable fingerprint, computed from the
+     * exception classes and the frames but not from the messages. A stack trace is written in full, preceded by a
+     * <code>[trace #fingerprint]</code> line, only the first time its fingerprint is seen in a destination (or once
+     * every <code>DeduplicationInterval</code> seconds). Any other occurrence is replaced by a
+     * <code>[trace #fingerprint repeated, see earlier]</code> line followed by the exception class and message.
+     * Defaults to <code>false</code>.
+     * <p>
+     * Fingerprints are tracked for each writer the layout writes to, so that every file of a rolling appender gets the
+     * full trace once. Appenders that only call {@link #format(LoggingEvent)} share a single set of fingerprints: use
+     * a separate layout for each of them.
+     * </p>
+     * @param deduplicateTraces the deduplicateTraces to set
+     */
+    public void setDeduplicateTraces(boolean deduplicateTraces)
+    {
+        this.deduplicateTraces = deduplicateTraces;
+    }
+
+    /**
+     * Returns the deduplicationInterval.
+     * @return the deduplicationInterval
+     */
+    public int getDeduplicationInterval()
+    {
+        return deduplicationInterval;
+    }
+
+    /**
+     * Sets the interval, in seconds, after which a repeated stack trace is written again in full. Defaults to 0, which
+     * means that a stack trace is written in full only the first time it's seen.
+     * @param deduplicationInterval the deduplicationInterval to set
+     */
+    public void setDeduplicationInterval(int deduplicationInterval)
+    {
+        this.deduplicationInterval = deduplicationInterval;
+    }
+
+    /**
+     * Returns the deduplicationCacheSize.
+     * @return the deduplicationCacheSize
+     */
+    public int getDeduplicationCacheSize()
+    {
+        return deduplicationCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of fingerprints remembered when <code>DeduplicateTraces</code> is enabled. The least
+     * recently seen fingerprints are evicted first. Defaults to 1000.
+     * @param deduplicationCacheSize the deduplicationCacheSize to set
+     */
+    public void setDeduplicationCacheSize(int deduplicationCacheSize)
+    {
+        this.deduplicationCacheSize = deduplicationCacheSize;
+        synchronized (seenTraces)
+        {
+            seenTraces.clear();
+        }
+    }
+
+    /**
+     * Returns the number of stack traces found in cache.
+     * @return the number of cache hits, 0 if the cache is disabled
+     */
+    public long getThrowableCacheHits()
+    {
+        ThrowableRenderCache<RenderedTrace> cache = throwableCache;
+        return cache != null ? cache.getHits() : 0;
+    }
+
+    /**
+     * Returns the number of stack traces not found in cache.
+     * @return the number of cache misses, 0 if the cache is disabled
+     */
+    public long getThrowableCacheMisses()
+    {
+        ThrowableRenderCache<RenderedTrace> cache = throwableCache;
+        return cache != null ? cache.getMisses() : 0;
     }
 
-    private String getFilteredStacktrace(ThrowableInformation throwableInformation)
+    private void appendFilteredStacktrace(ThrowableInformation throwableInformation, long timestamp,
+        StringBuffer buffer, StringBuilder traceBuffer, Object destination)
+    {
+        ThrowableRenderCache<RenderedTrace> cache = throwableCache;
+        Throwable throwable = throwableInformation.getThrowable();
+        if (!deduplicateTraces && (cache == null || throwable == null))
+        {
+            // nothing to keep, render in the temporary per-thread buffer
+            traceBuffer.setLength(0);
+            renderFilteredStacktrace(throwableInformation, traceBuffer);
+            buffer.append(traceBuffer);
+            return;
+        }
+
+        RenderedTrace trace = getFilteredStacktrace(throwableInformation);
+        if (deduplicateTraces)
+        {
+            appendDeduplicated(trace, timestamp, buffer, destination);
+        }
+        else
+        {
+            buffer.append(trace.text);
+        }
+    }
+
+    private RenderedTrace getFilteredStacktrace(ThrowableInformation throwableInformation)
+    {
+        ThrowableRenderCache<RenderedTrace> cache = throwableCache;
+        Throwable throwable = throwableInformation.getThrowable();
+        if (cache == null || throwable == null)
+        {
+            return renderTrace(throwableInformation);
+        }
+
+        RenderedTrace rendered = cache.get(throwable);
+        if (rendered == null)
+        {
+            rendered = renderTrace(throwableInformation);
+            cache.put(throwable, rendered);
+        }
+        return rendered;
+    }
+
+    private RenderedTrace renderTrace(ThrowableInformation throwableInformation)
     {
         StringBuilder buffer = new StringBuilder();
+        renderFilteredStacktrace(throwableInformation, buffer);
+        String text = buffer.toString();
+        Throwable throwable = throwableInformation.getThrowable();
+        return new RenderedTrace(text, throwable != null
+            ? RenderedTrace.fingerprint(throwable, getMatcher())
+            : RenderedTrace.fingerprint(text));
+    }
 
-        String[] s = throwableInformation.getThrowableStrRep();
+    /**
+     * Appends the stack trace to be written for a deduplicated trace: either the full stack trace, marked with its
+     * fingerprint, or a reference to it.
+     * @param trace filtered stack trace
+     * @param timestamp event timestamp
+     * @param buffer target buffer
+     * @param destination writer the trace is written to, traces are only referenced in the destination they were
+     * written to in full
+     */
+    private void appendDeduplicated(RenderedTrace trace, long timestamp, StringBuffer buffer, Object destination)
+    {
+        boolean full;
+        synchronized (seenTraces)
+        {
+            Map<Long, Long> seen = seenTraces.get(destination);
+            if (seen == null)
+            {
+                seen = createSeenTraces(deduplicationCacheSize);
+                seenTraces.put(destination, seen);
+            }
+            Long key = trace.fingerprint;
+            Long lastWritten = seen.get(key);
+            full = lastWritten == null
+                || (deduplicationInterval > 0 && timestamp - lastWritten.longValue() >= deduplicationInterval * 1000L);
+            if (full)
+            {
+                seen.put(key, timestamp);
+            }
+        }
 
-        for (int j = 0; j < s.length; j++)
+        buffer.append("[trace #").append(trace.getFingerprint());
+        if (full)
+        {
+            buffer.append(']').append(lineSeparator).append(trace.text);
+        }
+        else
+        {
+            // the fingerprint doesn't include the exception message, keep it
+            int header = trace.text.indexOf(lineSeparator);
+            buffer.append(" repeated, see earlier]").append(lineSeparator);
+            buffer.append(trace.text, 0, header < 0 ? trace.text.length() : header + lineSeparator.length());
+        }
+    }
+
+    private static Map<Long, Long> createSeenTraces(final int maxSize)
+    {
+        return new LinkedHashMap<Long, Long>(16, 0.75f, true)
         {
-            String string = s[j];
 
-            if (startsWithAFilteredPAttern(string))
+            /**
+             *
+             */
+            private static final long serialVersionUID = 1L;
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest)
             {
-                continue;
+                return size() > maxSize;
             }
-            buffer.append(string);
-            buffer.append(lineSeparator);
+        };
+    }
+
+    private void renderFilteredStacktrace(ThrowableInformation throwableInformation, StringBuilder buffer)
+    {
+        StackTraceRenderer stackTraceRenderer = getRenderer();
+        Throwable throwable = throwableInformation.getThrowable();
+        if (directRendering && throwable != null)
+        {
+            stackTraceRenderer.render(throwable, buffer);
+            return;
         }
 
-        return buffer.toString();
+        stackTraceRenderer.renderLines(throwableInformation.getThrowableStrRep(), buffer);
     }
 
     /**
-     * Check if the given string starts with any of the filtered patterns.
-     * @param string checked String
-     * @return <code>true</code> if the begininning of the string matches a filtered pattern, <code>false</code>
-     * otherwise
+     * Creates a new renderer with the current limits, reusing the compiled filters.
      */
-    private boolean startsWithAFilteredPAttern(String string)
+    private StackTraceRenderer createRenderer()
     {
-        Iterator<String> iterator = filteredFrames.iterator();
-        while (iterator.hasNext())
+        return new StackTraceRenderer(
+            getMatcher(),
+            lineSeparator,
+            elideCommonFrames,
+            maxFramesPerCause,
+            maxTraceLines);
+    }
+
+    private FrameFilterMatcher getMatcher()
+    {
+        FrameFilterMatcher current = matcher;
+        if (current == null)
+        {
+            current = compileMatcher();
+            matcher = current;
+        }
+        return current;
+    }
+
+    /**
+     * Compiles the filtered frames. If the filters together are too complex, the filters that make them exceed the
+     * limit are reported and discarded, so that errors are reported when the layout is configured instead of on every
+     * logging call and the other filters still apply.
+     */
+    private FrameFilterMatcher compileMatcher()
+    {
+        List<String> filters = new ArrayList<>(filteredFrames);
+        try
         {
-            if (string.trim().startsWith(iterator.next()))
+            return FrameFilterMatcher.compile(filters);
+        }
+        catch (IllegalArgumentException e)
+        {
+            // added one by one to find the offending filters, only when the configuration is wrong
+            List<String> accepted = new ArrayList<>();
+            FrameFilterMatcher compiled = FrameFilterMatcher.EMPTY;
+            for (String filter : filters)
             {
-                return true;
+                accepted.add(filter);
+                try
+                {
+                    compiled = FrameFilterMatcher.compile(accepted);
+                }
+                catch (IllegalArgumentException tooComplex)
+                {
+                    LogLog.error("Frame filter [" + filter + "] makes the filters too complex, ignored.", tooComplex);
+                    accepted.remove(accepted.size() - 1);
+                }
+            }
+            filteredFrames = new LinkedHashSet<>(accepted);
+            return compiled;
+        }
+    }
+
+    /**
+     * Discards the stack traces rendered with the previous configuration.
+     */
+    private void clearThrowableCache()
+    {
+        ThrowableRenderCache<RenderedTrace> cache = throwableCache;
+        if (cache != null)
+        {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Returns the head of the pattern converters chain, parsing the conversion pattern if it has not been set through
+     * {@link #setConversionPattern(String)}.
+     * @return head of the pattern converters chain
+     */
+    private PatternConverter getHead()
+    {
+        PatternConverter current = head;
+        if (current == null)
+        {
+            current = createPatternParser(getConversionPattern()).parse();
+            head = current;
+        }
+        return current;
+    }
+
+    /**
+     * Returns the per-thread buffers, or new buffers if they are already in use by this thread (for example when
+     * rendering a message logs something).
+     */
+    private static FormatBuffers acquireBuffers()
+    {
+        FormatBuffers buffers = FORMAT_BUFFERS.get();
+        if (buffers.inUse)
+        {
+            buffers = new FormatBuffers();
+        }
+        buffers.inUse = true;
+        buffers.text.setLength(0);
+        buffers.trace.setLength(0);
+        return buffers;
+    }
+
+    private static void releaseBuffers(FormatBuffers buffers)
+    {
+        buffers.inUse = false;
+        buffers.trim();
+    }
+
+    /**
+     * Returns the stack trace renderer, compiling the filtered frames if filters have been added after the layout has
+     * been activated.
+     * @return stack trace renderer
+     */
+    private StackTraceRenderer getRenderer()
+    {
+        StackTraceRenderer current = renderer;
+        if (current == null)
+        {
+            current = createRenderer();
+            renderer = current;
+        }
+        return current;
+    }
+
+    /**
+     * A rendered, filtered, stack trace.
+     */
+    private static final class RenderedTrace
+    {
+
+        private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+        private static final long FNV_PRIME = 0x100000001b3L;
+
+        private final String text;
+
+        private final long fingerprint;
+
+        RenderedTrace(String text, long fingerprint)
+        {
+            this.text = text;
+            this.fingerprint = fingerprint;
+        }
+
+        String getFingerprint()
+        {
+            return Long.toHexString(fingerprint);
+        }
+
+        /**
+         * Computes a stable 64 bit FNV-1a hash of the exception classes and the unfiltered stack frames of the
+         * throwable, its causes and suppressed exceptions. Messages are left out, so that the same failure with
+         * different details (ids, timestamps...) shares a single fingerprint.
+         */
+        static long fingerprint(Throwable throwable, FrameFilterMatcher matcher)
+        {
+            return fingerprint(FNV_OFFSET_BASIS, throwable, matcher,
+                Collections.newSetFromMap(new IdentityHashMap<>()));
+        }
+
+        private static long fingerprint(long hash, Throwable throwable, FrameFilterMatcher matcher,
+            Set<Throwable> seen)
+        {
+            long h = hash;
+            for (Throwable current = throwable; current != null && seen.add(current); current = current.getCause())
+            {
+                h = hash(h, current.getClass().getName());
+                for (StackTraceElement element : current.getStackTrace())
+                {
+                    if (matcher.matchesFrame(element))
+                    {
+                        continue;
+                    }
+                    h = hash(h, element.getClassName());
+                    h = hash(h, element.getMethodName());
+                    h = mix(h, element.getLineNumber());
+                }
+                for (Throwable suppressed : current.getSuppressed())
+                {
+                    h = fingerprint(h, suppressed, matcher, seen);
+                }
+            }
+            return h;
+        }
+
+        /**
+         * Computes a stable 64 bit FNV-1a hash of a rendered stack trace, for deserialized events: only the exception
+         * classes and the frames are hashed, not the messages.
+         */
+        static long fingerprint(String text)
+        {
+            long h = FNV_OFFSET_BASIS;
+            int start = 0;
+            while (start < text.length())
+            {
+                int end = text.indexOf('\n', start);
+                if (end < 0)
+                {
+                    end = text.length();
+                }
+                String line = text.substring(start, end).trim();
+                if (!line.startsWith("at "))
+                {
+                    // exception header, optionally prefixed by "Caused by: " or "Suppressed: "
+                    int colon = line.indexOf(": ");
+                    if (colon >= 0 && (line.startsWith("Caused by: ") || line.startsWith("Suppressed: ")))
+                    {
+                        colon = line.indexOf(": ", colon + 2);
+                    }
+                    if (colon >= 0)
+                    {
+                        line = line.substring(0, colon);
+                    }
+                }
+                h = hash(h, line);
+                start = end + 1;
+            }
+            return h;
+        }
+
+        private static long hash(long hash, String value)
+        {
+            long h = hash;
+            for (int j = 0; j < value.length(); j++)
+            {
+                h = mix(h, value.charAt(j));
+            }
+            // separates consecutive values
+            return mix(h, value.length());
+        }
+
+        private static long mix(long hash, int value)
+        {
+            return (hash ^ value) * FNV_PRIME;
+        }
+    }
+
+    /**
+     * Reusable buffers for formatting events.
+     */
+    private static final class FormatBuffers
+    {
+
+        private StringBuffer text = new StringBuffer(256);
+
+        private StringBuilder trace = new StringBuilder(256);
+
+        private char[] chars = new char[256];
+
+        private boolean inUse;
+
+        char[] chars(int length)
+        {
+            if (chars.length < length)
+            {
+                chars = new char[Math.max(length, chars.length * 2)];
+            }
+            return chars;
+        }
+
+        /**
+         * Drops the buffers that grew too much while formatting a huge event.
+         */
+        void trim()
+        {
+            if (text.capacity() > MAX_BUFFER_CAPACITY)
+            {
+                text = new StringBuffer(256);
+            }
+            if (trace.capacity() > MAX_BUFFER_CAPACITY)
+            {
+                trace = new StringBuilder(256);
+            }
+            if (chars.length > MAX_BUFFER_CAPACITY)
+            {
+                chars = new char[256];
             }
         }
-        return false;
     }
 
 }
@@ -0,0 +1,510 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * An immutable, precompiled matcher for stack trace frame filters. All the configured filters are compiled once into a
+ * single deterministic automaton, so that checking a stack line costs a single pass over its characters, independently
+ * of the number of filters, and never allocates.
+ * <p>
+ * A filter matches a stack line when the trimmed line starts with <code>"at "</code> + <code>filter</code>, which is
+ * the same rule historically used by {@link FilteredPatternLayout#setFilter(String)}. Filters can be:
+ * </p>
+ * <ul>
+ * <li>literal class, package or method names, e.g. <code>org.apache.catalina</code></li>
+ * <li>glob patterns, where <code>*</code> matches any sequence of characters and <code>?</code> matches a single
+ * character, e.g. <code>sun.reflect.GeneratedMethodAccessor*</code> or <code>*$$EnhancerByCGLIB$$</code></li>
+ * <li>regular expressions, prefixed by <code>regex:</code>, e.g. <code>regex:.*\$\$FastClassBy\w+\$\$</code></li>
+ * </ul>
+ * <p>
+ * Literal and glob filters are compiled together in the same automaton. Regular expressions are combined in a single
+ * alternation, checked only if the automaton doesn't match. All filters are anchored at the beginning of the frame.
+ * </p>
+ * @author Fabrizio Giustina
+ * @version $Id$
+ */
+public final class FrameFilterMatcher
+{
+
+    /**
+     * A matcher without any filter.
+     */
+    public static final FrameFilterMatcher EMPTY = new FrameFilterMatcher(new Node(), null);
+
+    /**
+     * Prefix for filters to be interpreted as regular expressions.
+     */
+    public static final String REGEX_PREFIX = "regex:";
+
+    /**
+     * Maximum number of states of the automaton, protects against pathological glob combinations.
+     */
+    private static final int MAX_STATES = 50000;
+
+    private static final String FRAME_PREFIX = "at ";
+
+    private static final char STAR = '*';
+
+    private static final char ANY = '?';
+
+    private final Node root;
+
+    private final Pattern regex;
+
+    private final ThreadLocal<RegexState> regexState;
+
+    private final boolean empty;
+
+    private FrameFilterMatcher(Node root, Pattern regex)
+    {
+        this.root = root;
+        this.regex = regex;
+        this.regexState = regex == null ? null : new ThreadLocal<RegexState>()
+        {
+
+            @Override
+            protected RegexState initialValue()
+            {
+                return new RegexState(FrameFilterMatcher.this.regex);
+            }
+        };
+        this.empty = regex == null && root.isDead();
+    }
+
+    /**
+     * Compiles the given filters into a new matcher.
+     * @param filters class or package names, glob patterns or <code>regex:</code> prefixed regular expressions
+     * @return the compiled matcher
+     * @throws IllegalArgumentException if a regular expression is not valid or the filters are too complex
+     */
+    public static FrameFilterMatcher compile(Collection<String> filters)
+    {
+        if (filters == null || filters.isEmpty())
+        {
+            return EMPTY;
+        }
+
+        List<String> patterns = new ArrayList<>();
+        StringBuilder alternation = new StringBuilder();
+        for (String filter : filters)
+        {
+            if (filter == null)
+            {
+                continue;
+            }
+            if (filter.startsWith(REGEX_PREFIX))
+            {
+                if (alternation.length() > 0)
+                {
+                    alternation.append('|');
+                }
+                alternation.append("(?:").append(filter.substring(REGEX_PREFIX.length())).append(')');
+            }
+            else
+            {
+                patterns.add(filter);
+            }
+        }
+
+        Pattern regex = alternation.length() > 0 ? Pattern.compile(alternation.toString()) : null;
+        return new FrameFilterMatcher(new AutomatonBuilder(patterns).build(), regex);
+    }
+
+    /**
+     * Returns <code>true</code> if no filter has been configured.
+     * @return <code>true</code> if this matcher will never match
+     */
+    public boolean isEmpty()
+    {
+        return empty;
+    }
+
+    /**
+     * Check if the given stack line starts with any of the filtered patterns, ignoring leading and trailing whitespaces.
+     * @param line a line of a rendered stack trace
+     * @return <code>true</code> if the line is a stack frame matching a filter, <code>false</code> otherwise
+     */
+    public boolean matchesLine(CharSequence line)
+    {
+        if (empty || line == null)
+        {
+            return false;
+        }
+
+        int start = 0;
+        int end = line.length();
+        while (start < end && line.charAt(start) <= ' ')
+        {
+            start++;
+        }
+        while (end > start && line.charAt(end - 1) <= ' ')
+        {
+            end--;
+        }
+
+        if (end - start < FRAME_PREFIX.length())
+        {
+            return false;
+        }
+        for (int j = 0; j < FRAME_PREFIX.length(); j++)
+        {
+            if (line.charAt(start + j) != FRAME_PREFIX.charAt(j))
+            {
+                return false;
+            }
+        }
+
+        return matchesPrefix(line, start + FRAME_PREFIX.length(), end);
+    }
+
+    /**
+     * Check if the given stack frame matches any of the filters, without rendering it. The frame is matched as if it
+     * was rendered as <code>className.methodName(...)</code>, so filters can be class names, package names or fully
+     * qualified method names.
+     * @param frame stack trace element
+     * @return <code>true</code> if the frame matches a filter, <code>false</code> otherwise
+     */
+    public boolean matchesFrame(StackTraceElement frame)
+    {
+        if (empty)
+        {
+            return false;
+        }
+
+        Node node = walk(root, frame.getClassName());
+        if (node != null && !node.terminal)
+        {
+            node = node.child('.');
+            node = node != null ? walk(node, frame.getMethodName()) : null;
+            if (node != null && !node.terminal)
+            {
+                node = node.child('(');
+            }
+        }
+        if (node != null && node.terminal)
+        {
+            return true;
+        }
+
+        if (regex != null)
+        {
+            RegexState state = regexState.get();
+            StringBuilder text = state.text;
+            text.setLength(0);
+            text.append(frame.getClassName()).append('.').append(frame.getMethodName()).append('(');
+            return state.matcher.reset(text).lookingAt();
+        }
+        return false;
+    }
+
+    /**
+     * Check if the text between <code>start</code> and <code>end</code> starts with any of the filters.
+     * @param text checked text
+     * @param start start index, inclusive
+     * @param end end index, exclusive
+     * @return <code>true</code> if a filter is a prefix of the given text
+     */
+    public boolean matchesPrefix(CharSequence text, int start, int end)
+    {
+        Node node = root;
+        for (int j = start; j < end && node != null && !node.terminal; j++)
+        {
+            node = node.child(text.charAt(j));
+        }
+        if (node != null && node.terminal)
+        {
+            return true;
+        }
+
+        if (regex != null)
+        {
+            return regexState.get().matcher.reset(text).region(start, end).lookingAt();
+        }
+        return false;
+    }
+
+    /**
+     * Walks the automaton from the given node, stopping at the first terminal node.
+     * @return the reached node, or <code>null</code> if the text can't match any filter
+     */
+    private static Node walk(Node from, String text)
+    {
+        Node node = from;
+        for (int j = 0; j < text.length(); j++)
+        {
+            if (node.terminal)
+            {
+                return node;
+            }
+            node = node.child(text.charAt(j));
+            if (node == null)
+            {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Per-thread reusable regular expression matcher.
+     */
+    private static final class RegexState
+    {
+
+        private final StringBuilder text = new StringBuilder(128);
+
+        private final Matcher matcher;
+
+        RegexState(Pattern pattern)
+        {
+            this.matcher = pattern.matcher(text);
+        }
+    }
+
+    /**
+     * A state of the automaton. Transitions are kept in two parallel arrays sorted by label and are binary searched,
+     * any character without an explicit transition goes to the <code>other</code> state.
+     */
+    private static final class Node
+    {
+
+        private char[] labels = new char[0];
+
+        private Node[] children = new Node[0];
+
+        private Node other;
+
+        private boolean terminal;
+
+        Node child(char c)
+        {
+            char[] l = labels;
+            int low = 0;
+            int high = l.length - 1;
+            while (low <= high)
+            {
+                int mid = (low + high) >>> 1;
+                char label = l[mid];
+                if (label < c)
+                {
+                    low = mid + 1;
+                }
+                else if (label > c)
+                {
+                    high = mid - 1;
+                }
+                else
+                {
+                    return children[mid];
+                }
+            }
+            return other;
+        }
+
+        boolean isDead()
+        {
+            return !terminal && labels.length == 0 && other == null;
+        }
+    }
+
+    /**
+     * Builds the deterministic automaton for a set of literal and glob filters, using the subset construction. Each
+     * state of the non deterministic automaton is a position in one of the filters.
+     */
+    private static final class AutomatonBuilder
+    {
+
+        private final List<String> patterns;
+
+        /**
+         * Index of the first position of each pattern, positions of all the patterns are numbered sequentially.
+         */
+        private final int[] offsets;
+
+        private final char[] alphabet;
+
+        private final Map<BitSet, Node> states = new HashMap<>();
+
+        private final LinkedList<BitSet> pending = new LinkedList<>();
+
+        AutomatonBuilder(List<String> patterns)
+        {
+            this.patterns = patterns;
+            this.offsets = new int[patterns.size() + 1];
+            TreeSet<Character> chars = new TreeSet<>();
+            for (int j = 0; j < patterns.size(); j++)
+            {
+                String pattern = patterns.get(j);
+                offsets[j + 1] = offsets[j] + pattern.length() + 1;
+                for (int k = 0; k < pattern.length(); k++)
+                {
+                    char c = pattern.charAt(k);
+                    if (c != STAR && c != ANY)
+                    {
+                        chars.add(c);
+                    }
+                }
+            }
+            this.alphabet = new char[chars.size()];
+            int index = 0;
+            for (Character c : chars)
+            {
+                alphabet[index++] = c;
+            }
+        }
+
+        Node build()
+        {
+            BitSet start = new BitSet();
+            for (int j = 0; j < patterns.size(); j++)
+            {
+                addWithClosure(start, j, 0);
+            }
+
+            if (start.isEmpty())
+            {
+                return new Node();
+            }
+
+            Node root = stateFor(start);
+            while (!pending.isEmpty())
+            {
+                BitSet set = pending.removeFirst();
+                Node node = states.get(set);
+                if (node.terminal)
+                {
+                    continue;
+                }
+
+                BitSet otherSet = step(set, (char) 0, false);
+                node.other = stateFor(otherSet);
+
+                List<Character> labels = new ArrayList<>();
+                List<Node> children = new ArrayList<>();
+                for (char c : alphabet)
+                {
+                    BitSet next = step(set, c, true);
+                    if (!next.equals(otherSet))
+                    {
+                        labels.add(c);
+                        children.add(stateFor(next));
+                    }
+                }
+                node.labels = new char[labels.size()];
+                node.children = children.toArray(new Node[children.size()]);
+                for (int j = 0; j < labels.size(); j++)
+                {
+                    node.labels[j] = labels.get(j);
+                }
+            }
+            return root;
+        }
+
+        private Node stateFor(BitSet set)
+        {
+            if (set.isEmpty())
+            {
+                return null;
+            }
+            Node node = states.get(set);
+            if (node == null)
+            {
+                if (states.size() >= MAX_STATES)
+                {
+                    throw new IllegalArgumentException("Frame filters are too complex, more than "
+                        + MAX_STATES
+                        + " states needed");
+                }
+                node = new Node();
+                node.terminal = isAccepting(set);
+                states.put(set, node);
+                pending.add(set);
+            }
+            return node;
+        }
+
+        /**
+         * Computes the positions reached from the given set consuming a character.
+         * @param explicit <code>true</code> if <code>c</code> is a character of the alphabet, <code>false</code> for any
+         * other character
+         */
+        private BitSet step(BitSet set, char c, boolean explicit)
+        {
+            BitSet next = new BitSet();
+            for (int j = 0; j < patterns.size(); j++)
+            {
+                String pattern = patterns.get(j);
+                for (int position = set.nextSetBit(offsets[j]); position >= 0 && position < offsets[j + 1]; position = set
+                    .nextSetBit(position + 1))
+                {
+                    int p = position - offsets[j];
+                    if (p >= pattern.length())
+                    {
+                        continue;
+                    }
+                    char token = pattern.charAt(p);
+                    if (token == STAR)
+                    {
+                        addWithClosure(next, j, p);
+                    }
+                    else if (token == ANY || explicit && token == c)
+                    {
+                        addWithClosure(next, j, p + 1);
+                    }
+                }
+            }
+            return next;
+        }
+
+        private void addWithClosure(BitSet set, int pattern, int position)
+        {
+            String text = patterns.get(pattern);
+            int p = position;
+            set.set(offsets[pattern] + p);
+            while (p < text.length() && text.charAt(p) == STAR)
+            {
+                p++;
+                set.set(offsets[pattern] + p);
+            }
+        }
+
+        private boolean isAccepting(BitSet set)
+        {
+            for (int j = 0; j < patterns.size(); j++)
+            {
+                if (set.get(offsets[j + 1] - 1))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
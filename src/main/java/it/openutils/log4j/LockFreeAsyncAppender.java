@@ -0,0 +1,640 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j;
+
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.helpers.AppenderAttachableImpl;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.AppenderAttachable;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+
+
+/**
+ * An asynchronous appender which, unlike <code>org.apache.log4j.AsyncAppender</code>, never takes a lock on the
+ * logging threads: <code>doAppend()</code> is not synchronized and events are published to a preallocated lock-free
+ * ring buffer. A single consumer thread drains the buffer in batches and passes the events to the attached appenders,
+ * so the lock of a slow appender (e.g. a file or mail appender) is only taken by the consumer.
+ *
+ * <pre>
+ *  &lt;appender name="async" class="it.openutils.log4j.LockFreeAsyncAppender"&gt;
+ *      &lt;param name="BufferSize" value="8192" /&gt;
+ *      &lt;param name="QueueFullPolicy" value="drop" /&gt;
+ *      &lt;param name="DropThreshold" value="WARN" /&gt;
+ *      &lt;appender-ref ref="file" /&gt;
+ *  &lt;/appender&gt;
+ * </pre>
+ *
+ * Configuration:
+ * <ul>
+ * <li><code>BufferSize</code>: capacity of the ring buffer, rounded up to a power of two (default 8192)</li>
+ * <li><code>BatchSize</code>: maximum number of events drained at once by the consumer (default 256)</li>
+ * <li><code>WaitStrategy</code>: how the consumer waits for events: <code>block</code> (default, parked until a
+ * producer wakes it up), <code>sleep</code> (parked for a short time), <code>yield</code> or <code>spin</code>
+ * (lowest latency, burns a cpu)</li>
+ * <li><code>QueueFullPolicy</code>: what happens when the buffer is full: <code>block</code> (default, the logging
+ * thread waits for space), <code>drop</code> (events less severe than <code>DropThreshold</code> are discarded, the
+ * others wait) or <code>discardOldest</code> (the oldest event in the buffer is discarded)</li>
+ * <li><code>LocationInfo</code>: if location information must be computed on the logging thread</li>
+ * </ul>
+ * Discarded events are counted and reported by a warning sent to the attached appenders.
+ * @author Fabrizio Giustina
+ * @version $Id$
+ */
+public class LockFreeAsyncAppender extends AppenderSkeleton implements AppenderAttachable
+{
+
+    /**
+     * The consumer waits until it's woken up by a producer.
+     */
+    public static final String WAIT_BLOCK = "block";
+
+    /**
+     * The consumer sleeps for a short time when the buffer is empty.
+     */
+    public static final String WAIT_SLEEP = "sleep";
+
+    /**
+     * The consumer yields when the buffer is empty.
+     */
+    public static final String WAIT_YIELD = "yield";
+
+    /**
+     * The consumer spins when the buffer is empty.
+     */
+    public static final String WAIT_SPIN = "spin";
+
+    /**
+     * Logging threads wait for space when the buffer is full.
+     */
+    public static final String FULL_BLOCK = "block";
+
+    /**
+     * Events less severe than the drop threshold are discarded when the buffer is full.
+     */
+    public static final String FULL_DROP = "drop";
+
+    /**
+     * The oldest event is discarded when the buffer is full.
+     */
+    public static final String FULL_DISCARD_OLDEST = "discardOldest";
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private static final int DEFAULT_BATCH_SIZE = 256;
+
+    private static final long SLEEP_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private static final long BLOCK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final long CLOSE_TIMEOUT = 5000L;
+
+    private final AppenderAttachableImpl aai = new AppenderAttachableImpl();
+
+    private final AtomicLong discarded = new AtomicLong();
+
+    /**
+     * Number of logging threads between the stop check and the publication of their event: the consumer only stops
+     * once it's zero, so that an event accepted while the appender is being closed is either dispatched or counted as
+     * discarded.
+     */
+    private final AtomicInteger publishing = new AtomicInteger();
+
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    private String waitStrategy = WAIT_BLOCK;
+
+    private String queueFullPolicy = FULL_BLOCK;
+
+    private Level dropThreshold = Level.WARN;
+
+    private boolean locationInfo;
+
+    private volatile RingBuffer<LoggingEvent> ring;
+
+    private volatile Thread consumer;
+
+    /**
+     * Set by the consumer before parking, so that producers know they have to wake it up.
+     */
+    private volatile boolean consumerParked;
+
+    /**
+     * Set by {@link #close()}. <code>AppenderSkeleton.closed</code> is not volatile, and is not safe to read from the
+     * logging threads and the consumer without holding the appender lock.
+     */
+    private volatile boolean stopped;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void activateOptions()
+    {
+        start();
+    }
+
+    private synchronized void start()
+    {
+        if (ring != null || stopped)
+        {
+            return;
+        }
+        final RingBuffer<LoggingEvent> buffer = new RingBuffer<LoggingEvent>(bufferSize);
+        Thread thread = new Thread(new Runnable()
+        {
+
+            public void run()
+            {
+                consume(buffer);
+            }
+        }, "log4j async [" + name + "]");
+        thread.setDaemon(true);
+        consumer = thread;
+        thread.start();
+        // published last, producers that see the buffer always see a running consumer
+        ring = buffer;
+    }
+
+    /**
+     * Same as <code>AppenderSkeleton.doAppend()</code>, without synchronization: threshold and filters are checked on
+     * the logging thread and the event is published to the ring buffer.
+     */
+    @Override
+    public void doAppend(LoggingEvent event)
+    {
+        publishing.incrementAndGet();
+        try
+        {
+            if (stopped)
+            {
+                LogLog.error("Attempted to append to closed appender named [" + name + "].");
+                return;
+            }
+
+            if (!isAsSevereAsThreshold(event.getLevel()))
+            {
+                return;
+            }
+
+            Filter f = this.headFilter;
+            FILTER_LOOP : while (f != null)
+            {
+                switch (f.decide(event))
+                {
+                    case Filter.DENY :
+                        return;
+                    case Filter.ACCEPT :
+                        break FILTER_LOOP;
+                    case Filter.NEUTRAL :
+                    default :
+                        f = f.getNext();
+                }
+            }
+
+            this.append(event);
+        }
+        finally
+        {
+            publishing.decrementAndGet();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void append(LoggingEvent event)
+    {
+        RingBuffer<LoggingEvent> buffer = ring;
+        if (buffer == null)
+        {
+            start();
+            buffer = ring;
+        }
+
+        // values depending on the logging thread must be captured before handing over the event
+        event.getNDC();
+        event.getThreadName();
+        event.getMDCCopy();
+        event.getRenderedMessage();
+        if (locationInfo)
+        {
+            event.getLocationInformation();
+        }
+
+        if (!buffer.offer(event) && !offerToFullBuffer(buffer, event))
+        {
+            discarded.incrementAndGet();
+        }
+
+        if (consumerParked)
+        {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    private boolean offerToFullBuffer(RingBuffer<LoggingEvent> buffer, LoggingEvent event)
+    {
+        if (FULL_DISCARD_OLDEST.equalsIgnoreCase(queueFullPolicy))
+        {
+            while (!buffer.offer(event))
+            {
+                if (buffer.poll() != null)
+                {
+                    discarded.incrementAndGet();
+                }
+            }
+            return true;
+        }
+
+        if (FULL_DROP.equalsIgnoreCase(queueFullPolicy) && !event.getLevel().isGreaterOrEqual(dropThreshold))
+        {
+            return false;
+        }
+
+        // block until there is space
+        while (!buffer.offer(event))
+        {
+            Thread thread = consumer;
+            if (Thread.currentThread() == thread || !thread.isAlive())
+            {
+                // the consumer is logging from an attached appender, or is gone
+                return false;
+            }
+            LockSupport.unpark(consumer);
+            LockSupport.parkNanos(SLEEP_NANOS);
+        }
+        return true;
+    }
+
+    private void consume(RingBuffer<LoggingEvent> buffer)
+    {
+        LoggingEvent[] batch = new LoggingEvent[Math.max(1, batchSize)];
+        int idle = 0;
+        while (true)
+        {
+            // read before draining, so that events published before close are not lost
+            boolean stopping = stopped && publishing.get() == 0;
+            int count = buffer.drainTo(batch, batch.length);
+            if (count > 0)
+            {
+                idle = 0;
+                dispatch(batch, count);
+                continue;
+            }
+
+            reportDiscarded();
+            if (stopping)
+            {
+                return;
+            }
+            waitForEvents(buffer, idle++);
+        }
+    }
+
+    private void waitForEvents(RingBuffer<LoggingEvent> buffer, int idle)
+    {
+        if (WAIT_SPIN.equalsIgnoreCase(waitStrategy))
+        {
+            return;
+        }
+        if (WAIT_YIELD.equalsIgnoreCase(waitStrategy) || idle < 100)
+        {
+            Thread.yield();
+            return;
+        }
+        if (WAIT_SLEEP.equalsIgnoreCase(waitStrategy))
+        {
+            LockSupport.parkNanos(SLEEP_NANOS);
+            return;
+        }
+
+        consumerParked = true;
+        // checks again after publishing the flag, so that a concurrent offer is not missed
+        if (buffer.size() == 0 && !stopped)
+        {
+            LockSupport.parkNanos(BLOCK_NANOS);
+        }
+        consumerParked = false;
+    }
+
+    private void dispatch(LoggingEvent[] batch, int count)
+    {
+        synchronized (aai)
+        {
+            for (int j = 0; j < count; j++)
+            {
+                try
+                {
+                    aai.appendLoopOnAppenders(batch[j]);
+                }
+                catch (RuntimeException e)
+                {
+                    LogLog.error("Failed to dispatch event in appender [" + name + "].", e);
+                }
+                batch[j] = null;
+            }
+        }
+    }
+
+    private void reportDiscarded()
+    {
+        long count = discarded.getAndSet(0);
+        if (count > 0)
+        {
+            LoggingEvent event = new LoggingEvent(
+                Logger.class.getName(),
+                Logger.getLogger(LockFreeAsyncAppender.class),
+                Level.WARN,
+                "Discarded " + count + " logging events, the buffer of appender [" + name + "] was full.",
+                null);
+            synchronized (aai)
+            {
+                aai.appendLoopOnAppenders(event);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of events waiting in the buffer.
+     * @return the number of events waiting
+     */
+    public int getQueueSize()
+    {
+        RingBuffer<LoggingEvent> buffer = ring;
+        return buffer == null ? 0 : buffer.size();
+    }
+
+    /**
+     * Stops accepting events, waits for the consumer to dispatch the events in the buffer and closes the attached
+     * appenders.
+     */
+    @Override
+    public void close()
+    {
+        synchronized (this)
+        {
+            if (stopped)
+            {
+                return;
+            }
+            stopped = true;
+            closed = true;
+        }
+
+        Thread thread = consumer;
+        if (thread != null)
+        {
+            LockSupport.unpark(thread);
+            try
+            {
+                thread.join(CLOSE_TIMEOUT);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                LogLog.error("Got an InterruptedException while waiting for the consumer thread to finish.", e);
+            }
+            if (thread.isAlive())
+            {
+                LogLog.warn("Appender [" + name + "] closed before all the events have been dispatched.");
+            }
+        }
+
+        synchronized (aai)
+        {
+            Enumeration< ? > appenders = aai.getAllAppenders();
+            while (appenders != null && appenders.hasMoreElements())
+            {
+                Object appender = appenders.nextElement();
+                if (appender instanceof Appender)
+                {
+                    ((Appender) appender).close();
+                }
+            }
+        }
+    }
+
+    /**
+     * This appender doesn't use a layout.
+     * @return false
+     */
+    public boolean requiresLayout()
+    {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void addAppender(Appender newAppender)
+    {
+        synchronized (aai)
+        {
+            aai.addAppender(newAppender);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @SuppressWarnings("rawtypes")
+    public Enumeration getAllAppenders()
+    {
+        synchronized (aai)
+        {
+            return aai.getAllAppenders();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Appender getAppender(String appenderName)
+    {
+        synchronized (aai)
+        {
+            return aai.getAppender(appenderName);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isAttached(Appender appender)
+    {
+        synchronized (aai)
+        {
+            return aai.isAttached(appender);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void removeAllAppenders()
+    {
+        synchronized (aai)
+        {
+            aai.removeAllAppenders();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void removeAppender(Appender appender)
+    {
+        synchronized (aai)
+        {
+            aai.removeAppender(appender);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void removeAppender(String appenderName)
+    {
+        synchronized (aai)
+        {
+            aai.removeAppender(appenderName);
+        }
+    }
+
+    /**
+     * Returns the bufferSize.
+     * @return the bufferSize
+     */
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    /**
+     * Sets the capacity of the ring buffer, rounded up to a power of two. Must be set before activation.
+     * @param bufferSize the bufferSize to set
+     */
+    public void setBufferSize(int bufferSize)
+    {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Returns the batchSize.
+     * @return the batchSize
+     */
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    /**
+     * Sets the maximum number of events dispatched by the consumer in a batch. Must be set before activation.
+     * @param batchSize the batchSize to set
+     */
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Returns the waitStrategy.
+     * @return the waitStrategy
+     */
+    public String getWaitStrategy()
+    {
+        return waitStrategy;
+    }
+
+    /**
+     * Sets how the consumer waits for events: <code>block</code>, <code>sleep</code>, <code>yield</code> or
+     * <code>spin</code>.
+     * @param waitStrategy the waitStrategy to set
+     */
+    public void setWaitStrategy(String waitStrategy)
+    {
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Returns the queueFullPolicy.
+     * @return the queueFullPolicy
+     */
+    public String getQueueFullPolicy()
+    {
+        return queueFullPolicy;
+    }
+
+    /**
+     * Sets what happens when the buffer is full: <code>block</code>, <code>drop</code> or <code>discardOldest</code>.
+     * @param queueFullPolicy the queueFullPolicy to set
+     */
+    public void setQueueFullPolicy(String queueFullPolicy)
+    {
+        this.queueFullPolicy = queueFullPolicy;
+    }
+
+    /**
+     * Returns the dropThreshold.
+     * @return the dropThreshold
+     */
+    public Level getDropThreshold()
+    {
+        return dropThreshold;
+    }
+
+    /**
+     * Sets the level below which events are discarded when the buffer is full and the policy is <code>drop</code>.
+     * @param dropThreshold the dropThreshold to set
+     */
+    public void setDropThreshold(Level dropThreshold)
+    {
+        this.dropThreshold = dropThreshold;
+    }
+
+    /**
+     * Returns the locationInfo.
+     * @return the locationInfo
+     */
+    public boolean getLocationInfo()
+    {
+        return locationInfo;
+    }
+
+    /**
+     * Sets if location information must be computed on the logging thread, before the event is queued.
+     * @param locationInfo the locationInfo to set
+     */
+    public void setLocationInfo(boolean locationInfo)
+    {
+        this.locationInfo = locationInfo;
+    }
+}
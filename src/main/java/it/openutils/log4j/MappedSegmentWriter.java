@@ -0,0 +1,284 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+
+/**
+ * A writer which encodes characters directly into a memory mapped segment of the file, so that appending is a memory
+ * copy. When a segment is full the next one is mapped; on close the file is truncated to the length actually written.
+ * <p>
+ * Until the writer is closed the file contains zeros up to the end of the current segment. When a file is reopened
+ * after a crash the trailing zeros are detected and removed before appending.
+ * </p>
+ * <p>
+ * This class is not thread safe, it's used by appenders while holding their lock; {@link #sync()} can be called by a
+ * background thread.
+ * </p>
+ * <p>
+ * A full segment is forced to the storage device before the next one is mapped, so that {@link #sync()} only needs to
+ * force the current segment, and then unmapped instead of waiting for the garbage collector to release it.
+ * </p>
+ * <p>
+ * Disk space for a segment is allocated by writing zeros before mapping it, so that a full disk is reported as an
+ * <code>IOException</code> when the segment is mapped instead of crashing the thread writing to the mapping.
+ * </p>
+ * @author Fabrizio Giustina
+ * @version $Id$
+ */
+class MappedSegmentWriter extends EncodingWriter implements Syncable
+{
+
+    private static final int SCAN_BUFFER_SIZE = 8192;
+
+    private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(64 * 1024).asReadOnlyBuffer();
+
+    private static final Object UNSAFE;
+
+    private static final Method INVOKE_CLEANER;
+
+    static
+    {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try
+        {
+            // java 9 and later
+            Class< ? > unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+        }
+        catch (Exception e)
+        {
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final FileChannel channel;
+
+    private final long segmentSize;
+
+    /**
+     * File position of the current segment.
+     */
+    private long segmentStart;
+
+    private volatile MappedByteBuffer segment;
+
+    /**
+     * Guards forcing and unmapping segments, so that a segment is never forced by {@link #sync()} after being unmapped.
+     */
+    private final Object mapLock = new Object();
+
+    /**
+     * Creates a new writer, appending to the content of the file.
+     * @param channel a channel opened for reading and writing
+     * @param charset charset used to encode characters
+     * @param segmentSize size of each mapped segment
+     * @param bufferSize approximate size of the characters buffered before being encoded into the mapping
+     */
+    MappedSegmentWriter(FileChannel channel, Charset charset, long segmentSize, int bufferSize) throws IOException
+    {
+        super(charset, bufferSize);
+        this.channel = channel;
+        this.segmentSize = segmentSize;
+        map(findEnd(channel));
+    }
+
+    /**
+     * Returns the number of bytes written, counting characters not yet encoded as one byte each.
+     * @return the number of bytes written
+     */
+    public long getCount()
+    {
+        MappedByteBuffer current = segment;
+        return current == null ? segmentStart : segmentStart + current.position() + pendingChars();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    ByteBuffer buffer()
+    {
+        return segment;
+    }
+
+    /**
+     * Forces and unmaps the full segment, and maps the next one.
+     */
+    @Override
+    void bufferFull() throws IOException
+    {
+        MappedByteBuffer full = segment;
+        synchronized (mapLock)
+        {
+            // the data in the previous segments is never forced by sync()
+            full.force();
+            map(segmentStart + full.position());
+        }
+        unmap(full);
+    }
+
+    /**
+     * Encodes pending characters into the mapping, no data is written to the file system.
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        encode(false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void sync()
+    {
+        synchronized (mapLock)
+        {
+            MappedByteBuffer current = segment;
+            if (current != null)
+            {
+                current.force();
+            }
+        }
+    }
+
+    /**
+     * Truncates the file to the length actually written and closes it.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        MappedByteBuffer current = segment;
+        if (current == null)
+        {
+            return;
+        }
+        try
+        {
+            encode(true);
+            current = segment;
+            long length = segmentStart + current.position();
+            synchronized (mapLock)
+            {
+                current.force();
+                segment = null;
+            }
+            unmap(current);
+            segmentStart = length;
+            channel.truncate(length);
+        }
+        finally
+        {
+            segment = null;
+            channel.close();
+        }
+    }
+
+    private void map(long position) throws IOException
+    {
+        reserve(position + segmentSize);
+        segmentStart = position;
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, position, segmentSize);
+    }
+
+    /**
+     * Extends the file with zeros up to the given length. Mapping beyond the end of the file would extend it as a
+     * sparse file: blocks would then be allocated when the mapped memory is written, and a full disk would crash the
+     * logging thread (<code>InternalError</code>, or <code>SIGBUS</code>) instead of failing the write with an
+     * <code>IOException</code>.
+     */
+    private void reserve(long length) throws IOException
+    {
+        long position = channel.size();
+        while (position < length)
+        {
+            ByteBuffer zeros = ZEROS.duplicate();
+            zeros.limit((int) Math.min(zeros.capacity(), length - position));
+            position += channel.write(zeros, position);
+        }
+    }
+
+    /**
+     * Releases a mapping immediately instead of waiting for the garbage collector, which may keep large segments mapped
+     * for a long time. The buffer must not be used afterwards.
+     */
+    private static void unmap(MappedByteBuffer buffer)
+    {
+        try
+        {
+            if (INVOKE_CLEANER != null)
+            {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                return;
+            }
+            // java 8
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null)
+            {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        }
+        catch (Exception e)
+        {
+            // released by the garbage collector
+        }
+    }
+
+    /**
+     * Returns the length of the file without the trailing zeros left by a writer which has not been closed.
+     */
+    static long findEnd(FileChannel channel) throws IOException
+    {
+        long end = channel.size();
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        while (end > 0)
+        {
+            long start = Math.max(0, end - SCAN_BUFFER_SIZE);
+            buffer.clear();
+            buffer.limit((int) (end - start));
+            while (buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) >= 0)
+            {
+                // read the whole block
+            }
+            for (int j = buffer.position() - 1; j >= 0; j--)
+            {
+                if (buffer.get(j) != 0)
+                {
+                    return start + j + 1;
+                }
+            }
+            end = start;
+        }
+        return 0;
+    }
+}
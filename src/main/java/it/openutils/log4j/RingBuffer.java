@@ -0,0 +1,169 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * A bounded, preallocated, lock-free queue (D. Vyukov's bounded MPMC queue). Each slot has a sequence number which
+ * tells producers and consumers whether the slot is free or published: <code>offer</code> and <code>poll</code> claim a
+ * position with a single CAS and never block. Multiple consumers are supported so that producers can discard the
+ * oldest element when the queue is full.
+ * @param <E> element type
+ * @author Fabrizio Giustina
+ * @version $Id$
+ */
+final class RingBuffer<E>
+{
+
+    private final int mask;
+
+    private final AtomicLongArray sequences;
+
+    private final AtomicReferenceArray<E> entries;
+
+    private final AtomicLong tail = new AtomicLong();
+
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * Creates a new ring buffer.
+     * @param capacity capacity, rounded up to a power of two
+     */
+    RingBuffer(int capacity)
+    {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        this.entries = new AtomicReferenceArray<E>(size);
+        for (int j = 0; j < size; j++)
+        {
+            sequences.set(j, j);
+        }
+    }
+
+    /**
+     * Returns the capacity of this buffer.
+     * @return the capacity
+     */
+    int capacity()
+    {
+        return mask + 1;
+    }
+
+    /**
+     * Returns the number of elements in the buffer, an estimate when producers or consumers are active.
+     * @return the number of elements
+     */
+    int size()
+    {
+        return (int) Math.max(0, Math.min(capacity(), tail.get() - head.get()));
+    }
+
+    /**
+     * Adds an element, if there is space.
+     * @param element element to add
+     * @return <code>false</code> if the buffer is full
+     */
+    boolean offer(E element)
+    {
+        long position = tail.get();
+        while (true)
+        {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0)
+            {
+                if (tail.compareAndSet(position, position + 1))
+                {
+                    entries.lazySet(index, element);
+                    // publishes the element
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            }
+            else if (difference < 0)
+            {
+                return false;
+            }
+            else
+            {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest element.
+     * @return the oldest element, null if the buffer is empty
+     */
+    E poll()
+    {
+        long position = head.get();
+        while (true)
+        {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0)
+            {
+                if (head.compareAndSet(position, position + 1))
+                {
+                    E element = entries.get(index);
+                    entries.lazySet(index, null);
+                    // frees the slot for the next lap
+                    sequences.set(index, position + mask + 1);
+                    return element;
+                }
+                position = head.get();
+            }
+            else if (difference < 0)
+            {
+                return null;
+            }
+            else
+            {
+                position = head.get();
+            }
+        }
+    }
+
+    /**
+     * Removes up to <code>max</code> elements, oldest first.
+     * @param target array receiving the elements
+     * @param max maximum number of elements
+     * @return number of elements removed
+     */
+    int drainTo(E[] target, int max)
+    {
+        int count = 0;
+        while (count < max)
+        {
+            E element = poll();
+            if (element == null)
+            {
+                break;
+            }
+            target[count++] = element;
+        }
+        return count;
+    }
+}
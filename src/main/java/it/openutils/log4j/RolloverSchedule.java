@@ -0,0 +1,366 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j;
+
+import java.text.ParsePosition;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.SignStyle;
+import java.time.temporal.ChronoField;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.time.temporal.WeekFields;
+import java.util.Locale;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.helpers.LogLog;
+
+
+/**
+ * Computes rollover boundaries and file name suffixes for {@link EnhancedDailyRollingFileAppender}, replacing
+ * <code>RollingCalendar</code> and <code>SimpleDateFormat</code>. Instances are immutable and thread safe.
+ * <p>
+ * Boundaries are computed in the local time of the given zone, so they follow daylight saving time transitions: an
+ * hourly period may last 30 minutes when clocks move forward, a daily period 23 or 25 hours, and a day starting at
+ * 01:00 because midnight does not exist begins at 01:00.
+ * </p>
+ * <p>
+ * The date pattern keeps the <code>SimpleDateFormat</code> syntax and is translated to a
+ * <code>DateTimeFormatter</code>: letters whose meaning differs (<code>u</code>, <code>F</code>, <code>S</code>), pad
+ * counts not accepted by <code>DateTimeFormatter</code> and characters it reserves (<code>[</code>, <code>]</code>,
+ * <code>{</code>, <code>}</code>, <code>#</code>) are converted so that file names do not change. Week based letters
+ * (<code>Y</code>, <code>w</code>, <code>W</code>) follow the week definition of the locale, as with
+ * <code>SimpleDateFormat</code>. Letters unknown to <code>SimpleDateFormat</code> are passed to
+ * <code>DateTimeFormatter</code> with a warning.
+ * </p>
+ * @author Fabrizio Giustina
+ * @version $Id$
+ */
+final class RolloverSchedule
+{
+
+    /**
+     * Letters defined by <code>SimpleDateFormat</code>.
+     */
+    private static final String LEGACY_LETTERS = "GyYMLwWDdFEuaHkKhmsSzZX";
+
+    private final DateTimeFormatter formatter;
+
+    private final ZoneId zone;
+
+    private final DayOfWeek firstDayOfWeek;
+
+    private final int type;
+
+    /**
+     * Creates a new schedule.
+     * @param datePattern date pattern of the rolled file names
+     * @param zone time zone of the boundaries
+     * @param locale locale used for formatting and to determine the first day of the week
+     * @throws IllegalArgumentException if the pattern is invalid
+     */
+    RolloverSchedule(String datePattern, ZoneId zone, Locale locale)
+    {
+        this.formatter = toFormatter(datePattern, locale);
+        this.zone = zone;
+        this.firstDayOfWeek = WeekFields.of(locale).getFirstDayOfWeek();
+        this.type = computeType();
+    }
+
+    /**
+     * Returns the rollover period, one of the <code>EnhancedDailyRollingFileAppender.TOP_OF_*</code> constants.
+     * @return the rollover period
+     */
+    int getType()
+    {
+        return type;
+    }
+
+    /**
+     * Returns the start of the period following the one containing the given time.
+     * @param millis time in milliseconds
+     * @return the next boundary, in milliseconds, <code>Long.MAX_VALUE</code> if the period is unknown
+     */
+    long nextBoundary(long millis)
+    {
+        if (type == EnhancedDailyRollingFileAppender.TOP_OF_TROUBLE)
+        {
+            return Long.MAX_VALUE;
+        }
+        return next(ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis), zone), type).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Returns the file name suffix for the period containing the given time.
+     * @param millis time in milliseconds
+     * @return the formatted suffix
+     */
+    String format(long millis)
+    {
+        return formatter.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis), zone));
+    }
+
+    /**
+     * Checks whether a file is a rolled file of the given log file: the name of the log file followed by a suffix of
+     * this schedule, an optional size index and optional compression and temporary file extensions. Files of other
+     * appenders whose name shares the same prefix (e.g. <code>app.log-audit</code>) and the preopened
+     * <code>.next</code> file are excluded.
+     * @param name file name
+     * @param baseName name of the log file
+     * @return <code>true</code> if the file has been rolled from the log file
+     */
+    boolean isRolledFile(String name, String baseName)
+    {
+        if (!name.startsWith(baseName) || name.endsWith(EnhancedDailyRollingFileAppender.NEXT_SUFFIX))
+        {
+            return false;
+        }
+        String suffix = StringUtils.removeEnd(name.substring(baseName.length()), ArchiveCompressor.PART_SUFFIX);
+        for (String extension : ArchiveCompressor.EXTENSIONS)
+        {
+            suffix = StringUtils.removeEnd(suffix, extension);
+        }
+        if (isFormatted(suffix))
+        {
+            return true;
+        }
+
+        // size index appended by the size trigger
+        int dot = suffix.lastIndexOf('.');
+        return dot > 0 && StringUtils.isNumeric(suffix.substring(dot + 1)) && isFormatted(suffix.substring(0, dot));
+    }
+
+    private boolean isFormatted(String suffix)
+    {
+        if (suffix.isEmpty())
+        {
+            return false;
+        }
+        ParsePosition position = new ParsePosition(0);
+        formatter.parseUnresolved(suffix, position);
+        return position.getErrorIndex() < 0 && position.getIndex() == suffix.length();
+    }
+
+    /**
+     * Translates a <code>SimpleDateFormat</code> pattern to an equivalent <code>DateTimeFormatter</code>.
+     * @param pattern <code>SimpleDateFormat</code> pattern
+     * @param locale locale used for formatting
+     * @return formatter producing the same text as <code>SimpleDateFormat</code>
+     * @throws IllegalArgumentException if the pattern is invalid
+     */
+    static DateTimeFormatter toFormatter(String pattern, Locale locale)
+    {
+        DateTimeFormatterBuilder builder = new DateTimeFormatterBuilder();
+        int length = pattern.length();
+        int j = 0;
+        while (j < length)
+        {
+            char c = pattern.charAt(j);
+            if (c == '\'')
+            {
+                j = appendQuoted(builder, pattern, j + 1);
+            }
+            else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z'))
+            {
+                int count = 1;
+                while (j + count < length && pattern.charAt(j + count) == c)
+                {
+                    count++;
+                }
+                appendLetter(builder, c, count, pattern);
+                j += count;
+            }
+            else
+            {
+                // [ ] { } # are reserved by DateTimeFormatter
+                builder.appendLiteral(c);
+                j++;
+            }
+        }
+        return builder.toFormatter(locale);
+    }
+
+    /**
+     * Appends quoted text, a pair of quotes being a quote.
+     * @return the index following the closing quote
+     */
+    private static int appendQuoted(DateTimeFormatterBuilder builder, String pattern, int start)
+    {
+        StringBuilder text = new StringBuilder();
+        int j = start;
+        if (j < pattern.length() && pattern.charAt(j) == '\'')
+        {
+            builder.appendLiteral('\'');
+            return j + 1;
+        }
+        while (j < pattern.length())
+        {
+            char c = pattern.charAt(j++);
+            if (c != '\'')
+            {
+                text.append(c);
+            }
+            else if (j < pattern.length() && pattern.charAt(j) == '\'')
+            {
+                text.append(c);
+                j++;
+            }
+            else
+            {
+                builder.appendLiteral(text.toString());
+                return j;
+            }
+        }
+        throw new IllegalArgumentException("Unterminated quote in pattern [" + pattern + "]");
+    }
+
+    private static void appendLetter(DateTimeFormatterBuilder builder, char letter, int count, String pattern)
+    {
+        switch (letter)
+        {
+            case 'u' :
+                // day number of week in SimpleDateFormat, year in DateTimeFormatter
+                appendNumber(builder, ChronoField.DAY_OF_WEEK, count);
+                return;
+            case 'F' :
+                // day of week in month in SimpleDateFormat, aligned week of month in java.time
+                appendNumber(builder, ChronoField.ALIGNED_WEEK_OF_MONTH, count);
+                return;
+            case 'S' :
+                // milliseconds in SimpleDateFormat, fraction of second in DateTimeFormatter
+                appendNumber(builder, ChronoField.MILLI_OF_SECOND, count);
+                return;
+            case 'd' :
+                appendNumber(builder, ChronoField.DAY_OF_MONTH, count);
+                return;
+            case 'D' :
+                appendNumber(builder, ChronoField.DAY_OF_YEAR, count);
+                return;
+            case 'H' :
+                appendNumber(builder, ChronoField.HOUR_OF_DAY, count);
+                return;
+            case 'k' :
+                appendNumber(builder, ChronoField.CLOCK_HOUR_OF_DAY, count);
+                return;
+            case 'K' :
+                appendNumber(builder, ChronoField.HOUR_OF_AMPM, count);
+                return;
+            case 'h' :
+                appendNumber(builder, ChronoField.CLOCK_HOUR_OF_AMPM, count);
+                return;
+            case 'm' :
+                appendNumber(builder, ChronoField.MINUTE_OF_HOUR, count);
+                return;
+            case 's' :
+                appendNumber(builder, ChronoField.SECOND_OF_MINUTE, count);
+                return;
+            case 'G' :
+            case 'a' :
+            case 'Z' :
+                // any count is the same as one in SimpleDateFormat
+                builder.appendPattern(String.valueOf(letter));
+                return;
+            case 'M' :
+            case 'L' :
+            case 'E' :
+            case 'z' :
+                // four or more letters are the full form in SimpleDateFormat, five are narrow in DateTimeFormatter
+                builder.appendPattern(StringUtils.repeat(letter, Math.min(count, 4)));
+                return;
+            default :
+                if (LEGACY_LETTERS.indexOf(letter) < 0)
+                {
+                    LogLog.warn("Letter ["
+                        + letter
+                        + "] in date pattern ["
+                        + pattern
+                        + "] is not supported by SimpleDateFormat, it's interpreted by DateTimeFormatter.");
+                }
+                builder.appendPattern(StringUtils.repeat(letter, count));
+        }
+    }
+
+    /**
+     * Appends a number padded to the letter count, which <code>DateTimeFormatter</code> limits to two or three.
+     */
+    private static void appendNumber(DateTimeFormatterBuilder builder, ChronoField field, int count)
+    {
+        if (count == 1)
+        {
+            builder.appendValue(field);
+            return;
+        }
+        int digits = String.valueOf(field.range().getMaximum()).length();
+        // same minimum and maximum width is a fixed width, which allows parsing adjacent values
+        builder.appendValue(field, count, Math.max(count, digits), SignStyle.NOT_NEGATIVE);
+    }
+
+    /**
+     * Finds the shortest period which changes the formatted date, starting from the epoch in UTC.
+     */
+    private int computeType()
+    {
+        ZonedDateTime epoch = ZonedDateTime.ofInstant(Instant.EPOCH, ZoneOffset.UTC);
+        String r0 = formatter.format(epoch);
+        for (int i = EnhancedDailyRollingFileAppender.TOP_OF_MINUTE; i <= EnhancedDailyRollingFileAppender.TOP_OF_MONTH; i++)
+        {
+            String r1 = formatter.format(next(epoch, i));
+            if (!r0.equals(r1))
+            {
+                return i;
+            }
+        }
+        return EnhancedDailyRollingFileAppender.TOP_OF_TROUBLE;
+    }
+
+    private ZonedDateTime next(ZonedDateTime time, int periodType)
+    {
+        LocalDate date = time.toLocalDate();
+        switch (periodType)
+        {
+            case EnhancedDailyRollingFileAppender.TOP_OF_MINUTE :
+                return time.truncatedTo(ChronoUnit.MINUTES).plusMinutes(1);
+            case EnhancedDailyRollingFileAppender.TOP_OF_HOUR :
+                // plusHours works on the instant time-line, so the repeated hour is not skipped
+                return time.truncatedTo(ChronoUnit.HOURS).plusHours(1);
+            case EnhancedDailyRollingFileAppender.HALF_DAY :
+                if (time.getHour() < 12)
+                {
+                    return date.atTime(12, 0).atZone(time.getZone());
+                }
+                return date.plusDays(1).atStartOfDay(time.getZone());
+            case EnhancedDailyRollingFileAppender.TOP_OF_DAY :
+                return date.plusDays(1).atStartOfDay(time.getZone());
+            case EnhancedDailyRollingFileAppender.TOP_OF_WEEK :
+                return date
+                    .with(TemporalAdjusters.previousOrSame(firstDayOfWeek))
+                    .plusWeeks(1)
+                    .atStartOfDay(time.getZone());
+            case EnhancedDailyRollingFileAppender.TOP_OF_MONTH :
+                return date.withDayOfMonth(1).plusMonths(1).atStartOfDay(time.getZone());
+            default :
+                throw new IllegalStateException("Unknown periodicity type.");
+        }
+    }
+}
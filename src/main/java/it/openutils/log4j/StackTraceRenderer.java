@@ -0,0 +1,448 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+
+/**
+ * Renders a filtered stack trace walking <code>Throwable.getStackTrace()</code> and the cause chain directly, instead
+ * of printing the whole throwable and then discarding the filtered lines. Frames are checked against the
+ * {@link FrameFilterMatcher} before being rendered, so filtered frames are never formatted.
+ * <p>
+ * The output has the same layout of <code>Throwable.printStackTrace()</code> (including "Caused by:", "Suppressed:" and
+ * "... n more" lines), custom implementations of <code>printStackTrace()</code> are not taken into account.
+ * </p>
+ * <p>
+ * The number of frames written for each throwable in the cause chain and the total number of lines can be capped: the
+ * frames left out are summarized in a single "... n more" line, so that the size of a stack trace is bounded.
+ * </p>
+ * <p>
+ * Frames are appended to the buffer field by field, in the format of <code>StackTraceElement.toString()</code> in Java
+ * 8, and the state needed while rendering is reused by each thread, so no object is created for each frame.
+ * </p>
+ * @author Fabrizio Giustina
+ * @version $Id$
+ */
+public final class StackTraceRenderer
+{
+
+    private static final String CAUSE_CAPTION = "Caused by: ";
+
+    private static final String SUPPRESSED_CAPTION = "Suppressed: ";
+
+    private static final String FRAME_PREFIX = "at ";
+
+    private static final String MORE_PREFIX = "... ";
+
+    private static final String MORE_SUFFIX = " more";
+
+    private final FrameFilterMatcher matcher;
+
+    private final String lineSeparator;
+
+    private final boolean elideCommonFrames;
+
+    private final int maxFramesPerCause;
+
+    private final int maxLines;
+
+    private final ThreadLocal<RenderState> renderState = new ThreadLocal<RenderState>()
+    {
+
+        @Override
+        protected RenderState initialValue()
+        {
+            return new RenderState();
+        }
+    };
+
+    /**
+     * Creates a new renderer, without any limit on the number of lines.
+     * @param matcher compiled frame filters
+     * @param lineSeparator separator appended after each line
+     */
+    public StackTraceRenderer(FrameFilterMatcher matcher, String lineSeparator)
+    {
+        this(matcher, lineSeparator, true, 0, 0);
+    }
+
+    /**
+     * Creates a new renderer.
+     * @param matcher compiled frame filters
+     * @param lineSeparator separator appended after each line
+     * @param elideCommonFrames if <code>true</code> the frames a cause shares with its enclosing trace are summarized
+     * in a "... n more" line, as <code>Throwable.printStackTrace()</code> does
+     * @param maxFramesPerCause maximum number of frames written for each throwable in the cause chain, 0 for no limit
+     * @param maxLines maximum number of lines written for the whole stack trace, 0 for no limit
+     */
+    public StackTraceRenderer(FrameFilterMatcher matcher, String lineSeparator, boolean elideCommonFrames,
+        int maxFramesPerCause, int maxLines)
+    {
+        this.matcher = matcher;
+        this.lineSeparator = lineSeparator;
+        this.elideCommonFrames = elideCommonFrames;
+        this.maxFramesPerCause = maxFramesPerCause;
+        this.maxLines = maxLines;
+    }
+
+    /**
+     * Returns the frame matcher used by this renderer.
+     * @return the frame matcher
+     */
+    public FrameFilterMatcher getMatcher()
+    {
+        return matcher;
+    }
+
+    /**
+     * Appends the filtered stack trace of <code>throwable</code> to the given buffer.
+     * @param throwable throwable to render
+     * @param buffer target buffer
+     */
+    public void render(Throwable throwable, StringBuilder buffer)
+    {
+        RenderState state = acquire();
+        try
+        {
+            StackTraceElement[] trace = throwable.getStackTrace();
+
+            if (state.take())
+            {
+                buffer.append(throwable).append(lineSeparator);
+            }
+            appendFrames(trace, trace.length - 1, 0, 0, state, buffer);
+
+            Throwable[] suppressed = throwable.getSuppressed();
+            Throwable cause = throwable.getCause();
+            if (suppressed.length > 0 || cause != null)
+            {
+                state.dejaVu.add(throwable);
+                for (Throwable se : suppressed)
+                {
+                    renderEnclosed(se, trace, SUPPRESSED_CAPTION, 1, state, buffer);
+                }
+                if (cause != null)
+                {
+                    renderEnclosed(cause, trace, CAUSE_CAPTION, 0, state, buffer);
+                }
+            }
+
+            appendOmitted(state, buffer);
+        }
+        finally
+        {
+            release(state);
+        }
+    }
+
+    /**
+     * Appends the lines of an already rendered stack trace to the given buffer, skipping filtered frames and applying
+     * the same limits on frames and lines.
+     * @param lines stack trace lines, without line separators
+     * @param buffer target buffer
+     */
+    public void renderLines(String[] lines, StringBuilder buffer)
+    {
+        RenderState state = acquire();
+        try
+        {
+            renderLines(lines, state, buffer);
+        }
+        finally
+        {
+            release(state);
+        }
+    }
+
+    private void renderLines(String[] lines, RenderState state, StringBuilder buffer)
+    {
+        int frames = 0;
+        int skipped = 0;
+        String skippedIndent = null;
+
+        for (String line : lines)
+        {
+            if (matcher.matchesLine(line))
+            {
+                continue;
+            }
+
+            int start = indentation(line);
+            if (line.startsWith(FRAME_PREFIX, start))
+            {
+                if (maxFramesPerCause > 0 && frames >= maxFramesPerCause)
+                {
+                    if (skipped++ == 0)
+                    {
+                        skippedIndent = line.substring(0, start);
+                    }
+                    continue;
+                }
+                frames++;
+            }
+            else if (line.startsWith(MORE_PREFIX, start) && line.endsWith(MORE_SUFFIX))
+            {
+                if (skipped > 0)
+                {
+                    // merge skipped frames with the frames in common
+                    skipped += parseMore(line, start);
+                    continue;
+                }
+            }
+            else
+            {
+                // a new throwable in the chain
+                frames = 0;
+            }
+
+            appendSkipped(skipped, skippedIndent, state, buffer);
+            skipped = 0;
+            if (state.take())
+            {
+                buffer.append(line).append(lineSeparator);
+            }
+        }
+        appendSkipped(skipped, skippedIndent, state, buffer);
+        appendOmitted(state, buffer);
+    }
+
+    /**
+     * Returns the state of the current thread, or a new one if it's already in use by an outer call, e.g. when
+     * <code>toString()</code> of a throwable renders another stack trace.
+     */
+    private RenderState acquire()
+    {
+        RenderState state = renderState.get();
+        if (state.inUse)
+        {
+            state = new RenderState();
+        }
+        state.reset(maxLines);
+        return state;
+    }
+
+    private static void release(RenderState state)
+    {
+        // don't keep references to the rendered throwables
+        state.dejaVu.clear();
+        state.inUse = false;
+    }
+
+    private void renderEnclosed(Throwable throwable, StackTraceElement[] enclosingTrace, String caption, int depth,
+        RenderState state, StringBuilder buffer)
+    {
+        if (!state.dejaVu.add(throwable))
+        {
+            if (state.take())
+            {
+                appendIndent(depth, buffer);
+                buffer.append(caption).append("[CIRCULAR REFERENCE: ").append(throwable).append(']');
+                buffer.append(lineSeparator);
+            }
+            return;
+        }
+
+        StackTraceElement[] trace = throwable.getStackTrace();
+
+        // compute number of frames in common between this and the enclosing trace
+        int m = trace.length - 1;
+        if (elideCommonFrames)
+        {
+            int n = enclosingTrace.length - 1;
+            while (m >= 0 && n >= 0 && trace[m].equals(enclosingTrace[n]))
+            {
+                m--;
+                n--;
+            }
+        }
+        int framesInCommon = trace.length - 1 - m;
+
+        if (state.take())
+        {
+            appendIndent(depth, buffer);
+            buffer.append(caption).append(throwable).append(lineSeparator);
+        }
+        appendFrames(trace, m, framesInCommon, depth, state, buffer);
+
+        for (Throwable se : throwable.getSuppressed())
+        {
+            renderEnclosed(se, trace, SUPPRESSED_CAPTION, depth + 1, state, buffer);
+        }
+
+        Throwable cause = throwable.getCause();
+        if (cause != null)
+        {
+            renderEnclosed(cause, trace, CAUSE_CAPTION, depth, state, buffer);
+        }
+    }
+
+    private void appendFrames(StackTraceElement[] trace, int last, int framesInCommon, int depth, RenderState state,
+        StringBuilder buffer)
+    {
+        int written = 0;
+        int skipped = framesInCommon;
+        for (int j = 0; j <= last; j++)
+        {
+            StackTraceElement frame = trace[j];
+            if (matcher.matchesFrame(frame))
+            {
+                continue;
+            }
+            if (maxFramesPerCause > 0 && written >= maxFramesPerCause)
+            {
+                skipped++;
+                continue;
+            }
+            written++;
+            if (state.take())
+            {
+                appendIndent(depth + 1, buffer);
+                buffer.append(FRAME_PREFIX);
+                appendFrame(frame, buffer);
+                buffer.append(lineSeparator);
+            }
+        }
+        if (skipped > 0 && state.take())
+        {
+            appendIndent(depth + 1, buffer);
+            appendMore(skipped, buffer);
+        }
+    }
+
+    /**
+     * Appends a frame as <code>StackTraceElement.toString()</code> does, without creating a String.
+     */
+    private static void appendFrame(StackTraceElement frame, StringBuilder buffer)
+    {
+        buffer.append(frame.getClassName()).append('.').append(frame.getMethodName()).append('(');
+        String fileName = frame.getFileName();
+        if (frame.isNativeMethod())
+        {
+            buffer.append("Native Method");
+        }
+        else if (fileName == null)
+        {
+            buffer.append("Unknown Source");
+        }
+        else
+        {
+            buffer.append(fileName);
+            if (frame.getLineNumber() >= 0)
+            {
+                buffer.append(':').append(frame.getLineNumber());
+            }
+        }
+        buffer.append(')');
+    }
+
+    private void appendSkipped(int skipped, String indent, RenderState state, StringBuilder buffer)
+    {
+        if (skipped > 0 && state.take())
+        {
+            buffer.append(indent);
+            appendMore(skipped, buffer);
+        }
+    }
+
+    private void appendMore(int skipped, StringBuilder buffer)
+    {
+        buffer.append(MORE_PREFIX).append(skipped).append(MORE_SUFFIX).append(lineSeparator);
+    }
+
+    private static void appendIndent(int depth, StringBuilder buffer)
+    {
+        for (int j = 0; j < depth; j++)
+        {
+            buffer.append('\t');
+        }
+    }
+
+    private void appendOmitted(RenderState state, StringBuilder buffer)
+    {
+        if (state.omitted > 0)
+        {
+            buffer.append('\t');
+            appendMore(state.omitted, buffer);
+        }
+    }
+
+    private static int indentation(String line)
+    {
+        int start = 0;
+        while (start < line.length() && line.charAt(start) <= ' ')
+        {
+            start++;
+        }
+        return start;
+    }
+
+    private static int parseMore(String line, int start)
+    {
+        try
+        {
+            return Integer.parseInt(line.substring(start + MORE_PREFIX.length(), line.length() - MORE_SUFFIX.length()));
+        }
+        catch (NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+
+    /**
+     * The state of a rendering, reused by each thread: the lines written and omitted when the total number of lines is
+     * capped and the throwables already rendered, to detect circular references.
+     */
+    private static final class RenderState
+    {
+
+        private final Set<Throwable> dejaVu = Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>());
+
+        private boolean inUse;
+
+        private int max;
+
+        private int written;
+
+        private int omitted;
+
+        void reset(int maxLines)
+        {
+            inUse = true;
+            max = maxLines;
+            written = 0;
+            omitted = 0;
+        }
+
+        /**
+         * Returns <code>true</code> if a line can be written, counting it as written or omitted.
+         */
+        boolean take()
+        {
+            if (max > 0 && written >= max)
+            {
+                omitted++;
+                return false;
+            }
+            written++;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j;
+
+import java.io.IOException;
+
+
+/**
+ * A log file destination whose content can be forced to the storage device.
+ * @author Fabrizio Giustina
+ * @version $Id$
+ */
+interface Syncable
+{
+
+    /**
+     * Forces the data written so far to the storage device. May be called by a background thread while the appender
+     * is writing.
+     * @throws IOException if the data can't be forced
+     */
+    void sync() throws IOException;
+}
@@ -0,0 +1,138 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * A bounded cache of rendered stack traces, keyed by throwable identity. The cache is a fixed size, direct mapped
+ * table: each throwable can only live in the slot selected by its identity hash code, so a lookup is a single array
+ * access and a newer throwable simply replaces the older one sharing its slot. Throwables are weakly referenced and
+ * never kept alive by the cache.
+ * @param <V> type of the cached rendering
+ * @author Fabrizio Giustina
+ * @version $Id$
+ */
+public final class ThrowableRenderCache<V>
+{
+
+    private final AtomicReferenceArray<Entry<V>> slots;
+
+    private final int mask;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates a new cache.
+     * @param size number of slots, rounded up to the next power of two
+     */
+    public ThrowableRenderCache(int size)
+    {
+        int capacity = size <= 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Returns the rendering cached for the given throwable.
+     * @param throwable logged throwable
+     * @return the cached value, <code>null</code> if not cached
+     */
+    public V get(Throwable throwable)
+    {
+        Entry<V> entry = slots.get(indexFor(throwable));
+        if (entry != null && entry.get() == throwable)
+        {
+            hits.increment();
+            return entry.value;
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Caches the rendering of the given throwable, replacing any value in its slot.
+     * @param throwable logged throwable
+     * @param value rendering
+     */
+    public void put(Throwable throwable, V value)
+    {
+        slots.set(indexFor(throwable), new Entry<>(throwable, value));
+    }
+
+    /**
+     * Removes all the cached values.
+     */
+    public void clear()
+    {
+        for (int j = 0; j < slots.length(); j++)
+        {
+            slots.set(j, null);
+        }
+    }
+
+    /**
+     * Returns the number of slots.
+     * @return the number of slots
+     */
+    public int getSize()
+    {
+        return slots.length();
+    }
+
+    /**
+     * Returns the number of lookups that found a cached value.
+     * @return the number of cache hits
+     */
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of lookups that didn't find a cached value.
+     * @return the number of cache misses
+     */
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    private int indexFor(Throwable throwable)
+    {
+        int h = System.identityHashCode(throwable);
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static final class Entry<V> extends WeakReference<Throwable>
+    {
+
+        private final V value;
+
+        Entry(Throwable throwable, V value)
+        {
+            super(throwable);
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,558 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j2;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+
+import org.apache.logging.log4j.core.Core;
+import org.apache.logging.log4j.core.appender.rolling.AbstractRolloverStrategy;
+import org.apache.logging.log4j.core.appender.rolling.RollingFileManager;
+import org.apache.logging.log4j.core.appender.rolling.RolloverDescription;
+import org.apache.logging.log4j.core.appender.rolling.RolloverDescriptionImpl;
+import org.apache.logging.log4j.core.appender.rolling.action.AbstractAction;
+import org.apache.logging.log4j.core.appender.rolling.action.Action;
+import org.apache.logging.log4j.core.appender.rolling.action.CompositeAction;
+import org.apache.logging.log4j.core.appender.rolling.action.FileRenameAction;
+import org.apache.logging.log4j.core.appender.rolling.action.GzCompressAction;
+import org.apache.logging.log4j.core.appender.rolling.action.ZipCompressAction;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginConfiguration;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.core.lookup.StrSubstitutor;
+
+
+/**
+ * A rollover strategy for the standard log4j2 <code>RollingFile</code> and <code>RollingRandomAccessFile</code>
+ * appenders which behaves like <code>it.openutils.log4j.EnhancedDailyRollingFileAppender</code>: the active file keeps
+ * its name and rolled files are moved to an archive subdirectory, optionally compressed.
+ *
+ * <pre>
+ * &lt;RollingFile name="file" fileName="logs/app.log" filePattern="app.log.%d{yyyy-MM-dd}.gz"&gt;
+ *   &lt;PatternLayout pattern="%d %-5p %c %m%n" /&gt;
+ *   &lt;TimeBasedTriggeringPolicy /&gt;
+ *   &lt;ArchiveRolloverStrategy archiveDirectory="archive" /&gt;
+ * &lt;/RollingFile&gt;
+ * </pre>
+ *
+ * Only the file name of <code>filePattern</code> is used, archived files are written to <code>archiveDirectory</code>
+ * (default <code>archive</code>), relative to the directory of the active file; an empty <code>archiveDirectory</code>
+ * keeps the path of the pattern. Patterns ending with <code>.gz</code> or <code>.zip</code> are compressed, and
+ * patterns containing <code>%i</code> are given the first index not used in the archive.
+ * <p>
+ * The only synchronous step, executed while the appender is blocked, is the rename of the active file in its own
+ * directory. Moving the file to the archive, which may be on another file system, and compressing it are executed by
+ * the manager's asynchronous actions. The appender keeps writing through the manager's <code>ByteBuffer</code>, so the
+ * garbage-free path of the appender is not affected.
+ * </p>
+ * <p>
+ * Renamed files which have not been archived, because of a crash or of a failed archive, are archived by the next
+ * rollover. With a pattern without <code>%i</code> every rollover in the same period uses the same name: a rollover
+ * is skipped, and the file keeps growing, while the previous one with the same name is still being archived.
+ * </p>
+ * @author Fabrizio Giustina
+ * @version $Id$
+ */
+@Plugin(name = "ArchiveRolloverStrategy", category = Core.CATEGORY_NAME, printObject = true)
+public class ArchiveRolloverStrategy extends AbstractRolloverStrategy
+{
+
+    /**
+     * Default archive directory.
+     */
+    public static final String DEFAULT_ARCHIVE_DIRECTORY = "archive";
+
+    private static final String GZ_EXTENSION = ".gz";
+
+    private static final String ZIP_EXTENSION = ".zip";
+
+    private static final String DEFAULT_DATE_PATTERN = "yyyy-MM-dd";
+
+    /**
+     * Date pattern letters formatted as numbers.
+     */
+    private static final String NUMERIC_DATE_FIELDS = "yYdHhkKmsSwWDFu";
+
+    /**
+     * Staging files renamed by a rollover and not archived yet, shared by all the strategies so that a file is never
+     * archived twice when the configuration is reloaded. Staging files which are not listed here have been left by a
+     * crash or by a failed archive, and are archived again by the next rollover.
+     */
+    private static final Set<File> STAGED = ConcurrentHashMap.newKeySet();
+
+    private final String archiveDirectory;
+
+    private final int compressionLevel;
+
+    /**
+     * Creates a new strategy.
+     * @param archiveDirectory directory of the archived files, relative to the directory of the active file
+     * @param compressionLevel compression level, from 0 to 9
+     * @param strSubstitutor substitutor for the file pattern
+     */
+    protected ArchiveRolloverStrategy(String archiveDirectory, int compressionLevel, StrSubstitutor strSubstitutor)
+    {
+        super(strSubstitutor);
+        this.archiveDirectory = archiveDirectory;
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Creates an ArchiveRolloverStrategy.
+     * @param archiveDirectory directory of the archived files, relative to the directory of the active file (default
+     * <code>archive</code>). If empty the directory of the file pattern is used.
+     * @param compressionLevel compression level used for <code>.gz</code> and <code>.zip</code> patterns, from 0 (no
+     * compression) to 9 (best compression); default is the <code>Deflater</code> default.
+     * @param config the configuration
+     * @return the new strategy
+     */
+    @PluginFactory
+    public static ArchiveRolloverStrategy createStrategy(
+            @PluginAttribute(value = "archiveDirectory", defaultString = DEFAULT_ARCHIVE_DIRECTORY)
+            String archiveDirectory,
+            @PluginAttribute(value = "compressionLevel", defaultInt = Deflater.DEFAULT_COMPRESSION)
+            int compressionLevel,
+            @PluginConfiguration Configuration config)
+    {
+        StrSubstitutor substitutor = config != null ? config.getStrSubstitutor() : new StrSubstitutor();
+        return new ArchiveRolloverStrategy(archiveDirectory, compressionLevel, substitutor);
+    }
+
+    /**
+     * Returns the archiveDirectory.
+     * @return the archiveDirectory
+     */
+    public String getArchiveDirectory()
+    {
+        return archiveDirectory;
+    }
+
+    /**
+     * Returns the compressionLevel.
+     * @return the compressionLevel
+     */
+    public int getCompressionLevel()
+    {
+        return compressionLevel;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public RolloverDescription rollover(RollingFileManager manager) throws SecurityException
+    {
+        String activeFileName = manager.getFileName();
+        if (activeFileName == null || manager.isDirectWrite())
+        {
+            LOGGER.error("ArchiveRolloverStrategy requires the fileName attribute of the appender");
+            return null;
+        }
+
+        File activeFile = new File(activeFileName);
+        if (!activeFile.exists() || (activeFile.length() == 0 && !manager.isRenameEmptyFiles()))
+        {
+            return null;
+        }
+
+        String pattern = manager.getPatternProcessor().getPattern();
+        boolean indexed = PATTERN_COUNTER.matcher(pattern).find();
+        String extension = compressionExtension(pattern);
+
+        File staging;
+        File archived;
+        File compressed;
+        int index = 1;
+        do
+        {
+            StringBuilder buf = new StringBuilder();
+            manager.getPatternProcessor().formatFileName(strSubstitutor, buf, index++);
+            String name = buf.toString();
+            if (extension != null)
+            {
+                compressed = archiveFile(activeFile, name);
+                name = name.substring(0, name.length() - extension.length());
+            }
+            else
+            {
+                compressed = null;
+            }
+            archived = archiveFile(activeFile, name);
+            staging = new File(activeFile.getParentFile(), archived.getName());
+        }
+        while (indexed && (archived.exists() || staging.exists() || (compressed != null && compressed.exists())));
+
+        if (staging.equals(activeFile))
+        {
+            LOGGER.error("The file pattern {} gives the same name of the active file {}", pattern, activeFileName);
+            return null;
+        }
+
+        if (staging.exists())
+        {
+            // patterns without %i give the same name to every rollover in the same period
+            if (!claim(staging))
+            {
+                LOGGER.warn("The previous rollover to {} is still in progress, rollover skipped", staging);
+                return null;
+            }
+            try
+            {
+                // left by a crash: archived right away, so that it's not overwritten
+                new ArchiveAction(staging, archived, compressed, extension, compressionLevel).execute();
+            }
+            catch (IOException e)
+            {
+                LOGGER.error("Unable to archive {}, rollover skipped", staging, e);
+                return null;
+            }
+        }
+
+        if (!claim(staging))
+        {
+            return null;
+        }
+        final File claimed = staging;
+        Action synchronous = new FileRenameAction(activeFile, staging, manager.isRenameEmptyFiles())
+        {
+
+            @Override
+            public boolean execute()
+            {
+                boolean renamed = super.execute();
+                if (!renamed)
+                {
+                    // the archive action is only executed after a successful rename
+                    release(claimed);
+                }
+                return renamed;
+            }
+        };
+
+        List<Action> asynchronous = new ArrayList<>();
+        asynchronous.add(new ArchiveAction(staging, archived, compressed, extension, compressionLevel));
+        recoverStaging(activeFile, strSubstitutor.replace(pattern), extension, asynchronous);
+        return new RolloverDescriptionImpl(activeFileName, false, synchronous, asynchronous.size() == 1
+            ? asynchronous.get(0)
+            : new CompositeAction(asynchronous, false));
+    }
+
+    /**
+     * Adds an archive action for each staging file left in the directory of the active file by a crash or by a failed
+     * archive.
+     */
+    private void recoverStaging(File activeFile, String pattern, String extension, List<Action> actions)
+    {
+        final Pattern stagingNames = stagingPattern(pattern, extension);
+        File[] leftovers = activeFile.getAbsoluteFile().getParentFile().listFiles(new FilenameFilter()
+        {
+
+            public boolean accept(File dir, String name)
+            {
+                return stagingNames.matcher(name).matches();
+            }
+        });
+        if (leftovers == null)
+        {
+            return;
+        }
+
+        File patternDir = new File(pattern).getParentFile();
+        for (File leftover : leftovers)
+        {
+            String name = leftover.getName();
+            File archived = archiveFile(activeFile, new File(patternDir, name).getPath());
+            File compressed = extension != null ? archiveFile(activeFile, new File(patternDir, name
+                + extension).getPath()) : null;
+            if (!leftover.isFile()
+                || leftover.equals(activeFile.getAbsoluteFile())
+                || compressed == null
+                && leftover.equals(archived.getAbsoluteFile()))
+            {
+                // already in the archive
+                continue;
+            }
+            if (claim(leftover))
+            {
+                LOGGER.info("Archiving {}, left by an interrupted rollover", leftover);
+                actions.add(new ArchiveAction(leftover, archived, compressed, extension, compressionLevel));
+            }
+        }
+    }
+
+    private static boolean claim(File staging)
+    {
+        return STAGED.add(staging.getAbsoluteFile());
+    }
+
+    private static void release(File staging)
+    {
+        STAGED.remove(staging.getAbsoluteFile());
+    }
+
+    /**
+     * Builds a regular expression matching the names of the staging files for the given file pattern: indexes and
+     * numeric date fields are matched by digits, textual date fields by letters, anything else literally.
+     * @param filePattern file pattern, lookups already replaced
+     * @param extension compression extension, not part of the staging file names
+     * @return the regular expression
+     */
+    static Pattern stagingPattern(String filePattern, String extension)
+    {
+        String name = new File(filePattern).getName();
+        if (extension != null && name.endsWith(extension))
+        {
+            name = name.substring(0, name.length() - extension.length());
+        }
+
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        int j = 0;
+        while (j < name.length())
+        {
+            char c = name.charAt(j);
+            if (c != '%' || j + 1 < name.length() && name.charAt(j + 1) == '%')
+            {
+                literal.append(c);
+                j += c == '%' ? 2 : 1;
+                continue;
+            }
+
+            // format modifiers, converter name and options
+            int k = j + 1;
+            while (k < name.length() && "-.0123456789".indexOf(name.charAt(k)) >= 0)
+            {
+                k++;
+            }
+            int start = k;
+            while (k < name.length() && Character.isLetter(name.charAt(k)))
+            {
+                k++;
+            }
+            String converter = name.substring(start, k);
+            String options = null;
+            while (k < name.length() && name.charAt(k) == '{')
+            {
+                int end = name.indexOf('}', k);
+                end = end < 0 ? name.length() - 1 : end;
+                // the first option is the date pattern, the second one the time zone
+                options = options == null ? name.substring(k + 1, end) : options;
+                k = end + 1;
+            }
+            j = k;
+
+            if (literal.length() > 0)
+            {
+                regex.append(Pattern.quote(literal.toString()));
+                literal.setLength(0);
+            }
+            if ("i".equals(converter) || "index".equals(converter))
+            {
+                regex.append("\\d+");
+            }
+            else if ("d".equals(converter) || "date".equals(converter))
+            {
+                appendDateRegex(options != null ? options : DEFAULT_DATE_PATTERN, regex);
+            }
+            else
+            {
+                regex.append(".+");
+            }
+        }
+        if (literal.length() > 0)
+        {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    private static void appendDateRegex(String datePattern, StringBuilder regex)
+    {
+        int j = 0;
+        while (j < datePattern.length())
+        {
+            char c = datePattern.charAt(j);
+            if (c == '\'')
+            {
+                int end = datePattern.indexOf('\'', j + 1);
+                end = end < 0 ? datePattern.length() : end;
+                regex.append(end == j + 1 ? "'" : Pattern.quote(datePattern.substring(j + 1, end)));
+                j = end + 1;
+                continue;
+            }
+            if (!Character.isLetter(c))
+            {
+                regex.append(Pattern.quote(String.valueOf(c)));
+                j++;
+                continue;
+            }
+
+            int count = 0;
+            while (j < datePattern.length() && datePattern.charAt(j) == c)
+            {
+                count++;
+                j++;
+            }
+            if (NUMERIC_DATE_FIELDS.indexOf(c) >= 0 || c == 'M' && count < 3)
+            {
+                regex.append("\\d+");
+            }
+            else
+            {
+                // month and day names, am/pm markers, time zones
+                regex.append("[^.]+");
+            }
+        }
+    }
+
+    private File archiveFile(File activeFile, String formattedName)
+    {
+        if (archiveDirectory == null || archiveDirectory.length() == 0)
+        {
+            return new File(formattedName);
+        }
+        return new File(new File(activeFile.getParentFile(), archiveDirectory), new File(formattedName).getName());
+    }
+
+    private static String compressionExtension(String pattern)
+    {
+        if (pattern.endsWith(GZ_EXTENSION))
+        {
+            return GZ_EXTENSION;
+        }
+        if (pattern.endsWith(ZIP_EXTENSION))
+        {
+            return ZIP_EXTENSION;
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return "ArchiveRolloverStrategy(archiveDirectory="
+            + archiveDirectory
+            + ", compressionLevel="
+            + compressionLevel
+            + ")";
+    }
+
+    /**
+     * Moves a rolled file to the archive directory, compressing it if needed.
+     */
+    static class ArchiveAction extends AbstractAction
+    {
+
+        private final File source;
+
+        private final File archived;
+
+        private final File compressed;
+
+        private final String extension;
+
+        private final int compressionLevel;
+
+        ArchiveAction(File source, File archived, File compressed, String extension, int compressionLevel)
+        {
+            this.source = source;
+            this.archived = archived;
+            this.compressed = compressed;
+            this.extension = extension;
+            this.compressionLevel = compressionLevel;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean execute() throws IOException
+        {
+            try
+            {
+                return archive();
+            }
+            finally
+            {
+                release(source);
+            }
+        }
+
+        private boolean archive() throws IOException
+        {
+            if (!source.exists())
+            {
+                return false;
+            }
+            File dir = archived.getAbsoluteFile().getParentFile();
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+            {
+                throw new IOException("Unable to create archive directory " + dir);
+            }
+
+            if (compressed != null)
+            {
+                // compresses straight from the rolled file, the uncompressed copy is never moved
+                if (GZ_EXTENSION.equals(extension))
+                {
+                    return GzCompressAction.execute(source, compressed, true, compressionLevel);
+                }
+                return ZipCompressAction.execute(source, compressed, true, compressionLevel);
+            }
+
+            if (!source.getAbsoluteFile().equals(archived.getAbsoluteFile()))
+            {
+                try
+                {
+                    Files.move(source.toPath(), archived.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                }
+                catch (AtomicMoveNotSupportedException | FileAlreadyExistsException e)
+                {
+                    // the archive is on another file system, or the platform doesn't replace on atomic moves: an
+                    // existing archive with the same name is replaced anyway, like compressed archives are
+                    Files.move(source.toPath(), archived.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString()
+        {
+            return "ArchiveAction[" + source + " to " + (compressed != null ? compressed : archived) + "]";
+        }
+    }
+}
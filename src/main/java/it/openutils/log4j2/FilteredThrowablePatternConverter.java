@@ -0,0 +1,177 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j2;
+
+import it.openutils.log4j.FrameFilterMatcher;
+import it.openutils.log4j.StackTraceRenderer;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.impl.ThrowableProxy;
+import org.apache.logging.log4j.core.pattern.ConverterKeys;
+import org.apache.logging.log4j.core.pattern.LogEventPatternConverter;
+import org.apache.logging.log4j.core.pattern.PatternConverter;
+import org.apache.logging.log4j.util.Strings;
+
+
+/**
+ * A log4j2 pattern converter which strips out from stack traces a list of configured entries, with the same semantics
+ * of <code>it.openutils.log4j.FilteredPatternLayout</code>: any stack frame starting with <code>"at "</code> +
+ * <code>filter</code> will not be written to the log. Sample configuration:
+ *
+ * <pre>
+ * &lt;PatternLayout pattern="%-5p %c %m%n%fex{filters(org.apache.catalina,sun.reflect,javax.servlet.http)}" /&gt;
+ * </pre>
+ *
+ * Filters can also be glob patterns or <code>regex:</code> prefixed regular expressions, see
+ * <code>it.openutils.log4j.FrameFilterMatcher</code>.
+ *
+ * Filters are compiled once in a single matcher and the stack trace is rendered walking the throwable stack frames
+ * directly, appending each frame field by field to the buffer provided by the layout: filtered frames are never
+ * formatted and no String is created for each frame. The first line of each throwable still comes from its
+ * <code>toString()</code>, and <code>Throwable.getStackTrace()</code> returns a copy of the frames.
+ * @author Fabrizio Giustina
+ */
+@Plugin(name = "FilteredThrowablePatternConverter", category = PatternConverter.CATEGORY)
+@ConverterKeys({"fex", "fThrowable", "fException" })
+public final class FilteredThrowablePatternConverter extends LogEventPatternConverter
+{
+
+    private static final String FILTERS_OPTION = "filters(";
+
+    private final StackTraceRenderer renderer;
+
+    private FilteredThrowablePatternConverter(FrameFilterMatcher matcher)
+    {
+        super("FilteredThrowable", "throwable");
+        this.renderer = new StackTraceRenderer(matcher, Strings.LINE_SEPARATOR);
+    }
+
+    /**
+     * Gets an instance of the class.
+     * @param config The current Configuration.
+     * @param options pattern options, may be null. The <code>filters(...)</code> option contains a comma separated
+     * list of filtered class or package names.
+     * @return instance of class.
+     */
+    public static FilteredThrowablePatternConverter newInstance(Configuration config, String[] options)
+    {
+        Set<String> filters = new LinkedHashSet<>();
+        if (options != null)
+        {
+            for (String option : options)
+            {
+                parseFilters(option, filters);
+            }
+        }
+        return new FilteredThrowablePatternConverter(FrameFilterMatcher.compile(filters));
+    }
+
+    /**
+     * Parses the <code>filters(...)</code> option. Filters are separated by commas, parentheses are balanced so that
+     * regular expression filters can contain groups.
+     */
+    private static void parseFilters(String option, Set<String> filters)
+    {
+        if (option == null)
+        {
+            return;
+        }
+        int start = option.indexOf(FILTERS_OPTION);
+        while (start >= 0)
+        {
+            int depth = 0;
+            int index = start + FILTERS_OPTION.length();
+            StringBuilder filter = new StringBuilder();
+            for (; index < option.length(); index++)
+            {
+                char c = option.charAt(index);
+                if (c == ')' && depth == 0)
+                {
+                    break;
+                }
+                if (c == ',' && depth == 0)
+                {
+                    addFilter(filter, filters);
+                    continue;
+                }
+                depth += c == '(' ? 1 : c == ')' ? -1 : 0;
+                filter.append(c);
+            }
+            addFilter(filter, filters);
+            start = option.indexOf(FILTERS_OPTION, index);
+        }
+    }
+
+    private static void addFilter(StringBuilder filter, Set<String> filters)
+    {
+        String trimmed = filter.toString().trim();
+        if (trimmed.length() > 0)
+        {
+            filters.add(trimmed);
+        }
+        filter.setLength(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void format(LogEvent event, StringBuilder toAppendTo)
+    {
+        Throwable throwable = event.getThrown();
+        if (throwable != null)
+        {
+            appendSeparator(toAppendTo);
+            renderer.render(throwable, toAppendTo);
+            return;
+        }
+
+        ThrowableProxy proxy = event.getThrownProxy();
+        if (proxy != null)
+        {
+            // deserialized event, the original throwable is not available
+            appendSeparator(toAppendTo);
+            String[] lines = proxy.getExtendedStackTraceAsString(Strings.EMPTY).split(Strings.LINE_SEPARATOR);
+            renderer.renderLines(lines, toAppendTo);
+        }
+    }
+
+    private void appendSeparator(StringBuilder toAppendTo)
+    {
+        int length = toAppendTo.length();
+        if (length > 0 && !Character.isWhitespace(toAppendTo.charAt(length - 1)))
+        {
+            toAppendTo.append(' ');
+        }
+    }
+
+    /**
+     * This converter obviously handles throwables.
+     * @return true.
+     */
+    @Override
+    public boolean handlesThrowable()
+    {
+        return true;
+    }
+}
@@ -0,0 +1,487 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import javax.mail.Message;
+import javax.mail.Part;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMultipart;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.RootLogger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.jvnet.mock_javamail.Mailbox;
+
+
+/**
+ * Tests for {@link AlternateSMTPAppender}.
+ * @author fgiust
+ */
+public class AlternateSMTPAppenderTest
+{
+
+    private static final String TO = "alerts@example.com";
+
+    private final Logger logger = new RootLogger(Level.ALL);
+
+    private AlternateSMTPAppender appender;
+
+    @Before
+    public void setUp()
+    {
+        Mailbox.clearAll();
+        appender = configure(new AlternateSMTPAppender());
+        appender.activateOptions();
+    }
+
+    @After
+    public void tearDown()
+    {
+        appender.close();
+    }
+
+    @Test
+    public void testConcurrentAggregation() throws Exception
+    {
+        final int threads = 8;
+        final int iterations = 500;
+        final CountDownLatch start = new CountDownLatch(1);
+        final Throwable error = new IllegalStateException("boom");
+
+        // room for every window, the queue full policies are tested separately
+        appender.close();
+        appender = configure(new AlternateSMTPAppender());
+        appender.setQueueSize(threads * iterations);
+        appender.activateOptions();
+
+        Thread[] producers = new Thread[threads];
+        for (int j = 0; j < threads; j++)
+        {
+            producers[j] = new Thread()
+            {
+
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    for (int k = 0; k < iterations; k++)
+                    {
+                        appender.doAppend(new LoggingEvent(
+                            AlternateSMTPAppenderTest.class.getName(),
+                            logger,
+                            Level.ERROR,
+                            "identical",
+                            error));
+                        if (k % 100 == 0)
+                        {
+                            // swap the window while the other threads are logging
+                            appender.flush();
+                        }
+                    }
+                }
+            };
+            producers[j].start();
+        }
+        start.countDown();
+        for (Thread producer : producers)
+        {
+            producer.join();
+        }
+        flush();
+
+        List<Message> inbox = Mailbox.get(TO);
+        assertThat(inbox).isNotEmpty();
+        int total = 0;
+        for (Message message : inbox)
+        {
+            assertThat(message.getSubject()).isEqualTo("identical");
+            total += occurrences(message);
+        }
+        // no event lost or counted twice across the window swaps
+        assertThat(total).isEqualTo(threads * iterations);
+    }
+
+    @Test
+    public void testDistinctEventsInOrder() throws Exception
+    {
+        appender.doAppend(event("first"));
+        appender.doAppend(event("second"));
+        appender.doAppend(event("first"));
+        appender.doAppend(new LoggingEvent(getClass().getName(), logger, Level.WARN, "ignored", null));
+
+        // snapshot kept for subclasses of the previous versions
+        @SuppressWarnings("deprecation")
+        Map<LoggingEventAggregator, LoggingEventAggregator> waiting = appender.getEvents();
+        assertThat(waiting).hasSize(2);
+        assertThat(waiting.keySet().iterator().next().getLoggingEvent().getRenderedMessage()).isEqualTo("first");
+        flush();
+
+        List<Message> inbox = Mailbox.get(TO);
+        assertThat(inbox).hasSize(2);
+        assertThat(inbox.get(0).getSubject()).isEqualTo("first");
+        assertThat(occurrences(inbox.get(0))).isEqualTo(2);
+        assertThat(inbox.get(1).getSubject()).isEqualTo("second");
+        assertThat(occurrences(inbox.get(1))).isEqualTo(1);
+
+        // nothing left to send
+        flush();
+        assertThat(Mailbox.get(TO)).hasSize(2);
+    }
+
+    @Test
+    public void testOverflow() throws Exception
+    {
+        appender.setMaxEvents(3);
+        for (int j = 0; j < 10; j++)
+        {
+            appender.doAppend(event("distinct " + j));
+        }
+        // already collected, still aggregated
+        appender.doAppend(event("distinct 0"));
+        flush();
+
+        List<Message> inbox = Mailbox.get(TO);
+        assertThat(inbox).hasSize(4);
+        assertThat(inbox.get(0).getSubject()).isEqualTo("distinct 0");
+        assertThat(occurrences(inbox.get(0))).isEqualTo(2);
+        assertThat(inbox.get(3).getSubject()).isEqualTo(
+            "Discarded 7 logging events, the limits of appender [mail] were reached.");
+
+        // the next window starts empty
+        appender.doAppend(event("distinct 10"));
+        flush();
+        assertThat(Mailbox.get(TO)).hasSize(5);
+    }
+
+    @Test
+    public void testOverflowSubjectNotInherited() throws Exception
+    {
+        appender.close();
+        appender = configure(new AlternateSMTPAppender(), null);
+        appender.activateOptions();
+        appender.setMaxEvents(1);
+        appender.doAppend(event("first"));
+        appender.doAppend(event("second"));
+        flush();
+        appender.doAppend(event("third"));
+        flush();
+
+        List<Message> inbox = Mailbox.get(TO);
+        assertThat(inbox).hasSize(3);
+        assertThat(inbox.get(0).getSubject()).isNull();
+        assertThat(inbox.get(1).getSubject()).startsWith("Discarded 1 logging events");
+        assertThat(inbox.get(1).getFrom()).containsExactly(new InternetAddress("log4j@example.com"));
+        assertThat(inbox.get(2).getSubject()).isNull();
+    }
+
+    @Test
+    public void testByteBudget() throws Exception
+    {
+        LoggingEventAggregator small = new LoggingEventAggregator(event("small"));
+        LoggingEventAggregator large = new LoggingEventAggregator(new LoggingEvent(
+            getClass().getName(),
+            logger,
+            Level.ERROR,
+            "large",
+            new IllegalStateException()));
+        assertThat(large.estimateSize()).isGreaterThan(small.estimateSize());
+
+        appender.setMaxBytes(small.estimateSize() + 1);
+        appender.doAppend(event("small"));
+        appender.doAppend(event("other"));
+        flush();
+
+        List<Message> inbox = Mailbox.get(TO);
+        assertThat(inbox).hasSize(2);
+        assertThat(inbox.get(0).getSubject()).isEqualTo("small");
+        assertThat(inbox.get(1).getSubject()).startsWith("Discarded 1 logging events");
+    }
+
+    @Test
+    public void testDigest() throws Exception
+    {
+        appender.setDigest(true);
+        appender.setMaxEvents(2);
+        appender.doAppend(event("first"));
+        appender.doAppend(event("second <b>"));
+        appender.doAppend(event("first"));
+        appender.doAppend(event("third"));
+        flush();
+
+        List<Message> inbox = Mailbox.get(TO);
+        assertThat(inbox).hasSize(1);
+        assertThat(inbox.get(0).getSubject()).isEqualTo("first (+1 more)");
+
+        MimeMultipart content = (MimeMultipart) inbox.get(0).getContent();
+        assertThat(content.getCount()).isEqualTo(3);
+        String summary = (String) content.getBodyPart(0).getContent();
+        String[] lines = summary.split("\n");
+        assertThat(lines[0]).contains("Count").contains("First").contains("Last").contains("Message");
+        assertThat(lines[1].trim()).startsWith("2 ").endsWith("first");
+        assertThat(lines[2].trim()).startsWith("1 ").endsWith("second <b>");
+        assertThat(summary).contains("Discarded 1 logging events, the limits of appender [mail] were reached.");
+
+        assertThat(occurrences(content.getBodyPart(1))).isEqualTo(2);
+        assertThat((String) content.getBodyPart(2).getContent()).contains("second <b>");
+    }
+
+    @Test
+    public void testDigestWithoutSubject() throws Exception
+    {
+        appender.close();
+        appender = configure(new AlternateSMTPAppender(), null);
+        appender.setDigest(true);
+        appender.setMaxEvents(1);
+        appender.activateOptions();
+        appender.doAppend(event("first"));
+        flush();
+        appender.doAppend(event("second"));
+        appender.doAppend(event("third"));
+        flush();
+
+        List<Message> inbox = Mailbox.get(TO);
+        assertThat(inbox).hasSize(2);
+        assertThat(inbox.get(0).getSubject()).isNull();
+        // the overflow is only reported in the summary
+        assertThat(inbox.get(1).getSubject()).isNull();
+        String summary = (String) ((MimeMultipart) inbox.get(1).getContent()).getBodyPart(0).getContent();
+        assertThat(summary).contains("Discarded 1 logging events");
+    }
+
+    @Test
+    public void testDropNewest() throws Exception
+    {
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        blockSender(AlternateSMTPAppender.QUEUE_DROP_NEWEST, sending, release);
+
+        appender.doAppend(event("first"));
+        appender.flush();
+        sending.await();
+        appender.doAppend(event("second"));
+        appender.flush();
+        appender.doAppend(event("third"));
+        appender.doAppend(event("third"));
+        appender.flush();
+
+        release.countDown();
+        assertThat(appender.awaitSent(5000)).isTrue();
+        // reported with the next e-mail
+        flush();
+        List<Message> inbox = Mailbox.get(TO);
+        assertThat(inbox).hasSize(3);
+        assertThat(inbox.get(0).getSubject()).isEqualTo("first");
+        assertThat(inbox.get(1).getSubject()).isEqualTo("second");
+        assertThat(inbox.get(2).getSubject()).isEqualTo(
+            "Discarded 2 logging events, the mail queue of appender [mail] was full.");
+        String body = (String) ((MimeMultipart) inbox.get(2).getContent()).getBodyPart(0).getContent();
+        assertThat(body).contains("QueueSize").contains("QueueFullPolicy");
+    }
+
+    @Test
+    public void testDropOldest() throws Exception
+    {
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        blockSender(AlternateSMTPAppender.QUEUE_DROP_OLDEST, sending, release);
+
+        appender.doAppend(event("first"));
+        appender.flush();
+        sending.await();
+        appender.doAppend(event("second"));
+        appender.flush();
+        appender.doAppend(event("third"));
+        appender.flush();
+
+        release.countDown();
+        assertThat(appender.awaitSent(5000)).isTrue();
+        List<Message> inbox = Mailbox.get(TO);
+        assertThat(inbox).hasSize(2);
+        assertThat(inbox.get(0).getSubject()).isEqualTo("first");
+        assertThat(inbox.get(1).getSubject()).isEqualTo("third");
+
+        flush();
+        assertThat(Mailbox.get(TO).get(2).getSubject()).isEqualTo(
+            "Discarded 1 logging events, the mail queue of appender [mail] was full.");
+    }
+
+    @Test
+    public void testCoalesce() throws Exception
+    {
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        blockSender(AlternateSMTPAppender.QUEUE_COALESCE, sending, release);
+
+        appender.doAppend(event("first"));
+        appender.flush();
+        sending.await();
+        appender.doAppend(event("second"));
+        appender.flush();
+        appender.doAppend(event("third"));
+        // queue full, the window is kept
+        appender.flush();
+        appender.doAppend(event("third"));
+
+        release.countDown();
+        assertThat(appender.awaitSent(5000)).isTrue();
+        assertThat(Mailbox.get(TO)).hasSize(2);
+
+        flush();
+        List<Message> inbox = Mailbox.get(TO);
+        assertThat(inbox).hasSize(3);
+        assertThat(inbox.get(2).getSubject()).isEqualTo("third");
+        assertThat(occurrences(inbox.get(2))).isEqualTo(2);
+    }
+
+    @Test
+    public void testCloseSendsPendingEvents() throws Exception
+    {
+        appender.doAppend(event("pending"));
+        appender.close();
+
+        List<Message> inbox = Mailbox.get(TO);
+        assertThat(inbox).hasSize(1);
+        assertThat(inbox.get(0).getSubject()).isEqualTo("pending");
+    }
+
+    @Test
+    public void testFingerprint()
+    {
+        Throwable first = new IllegalStateException("boom");
+        Throwable second = new IllegalStateException("boom");
+        Throwable other = new IllegalArgumentException("boom");
+
+        // created on different lines, same class and method
+        assertThat(fingerprint("failed", first, 0)).isEqualTo(fingerprint("failed", second, 0));
+        assertThat(fingerprint("failed", first, 10)).isNotEqualTo(fingerprint("failed", second, 10));
+        assertThat(fingerprint("failed", first, 10)).isEqualTo(fingerprint("failed", first, 10));
+        assertThat(fingerprint("failed", first, 10)).isNotEqualTo(fingerprint("other", first, 10));
+        assertThat(fingerprint("failed", first, 0)).isNotEqualTo(fingerprint("failed", other, 0));
+        assertThat(fingerprint("failed", null, 10)).isNotEqualTo(fingerprint("failed", first, 10));
+
+        LoggingEventAggregator aggregator = new LoggingEventAggregator(
+            new LoggingEvent(getClass().getName(), logger, Level.ERROR, "failed", first),
+            10);
+        assertThat(aggregator).isEqualTo(new LoggingEventAggregator(
+            new LoggingEvent(getClass().getName(), logger, Level.ERROR, "failed", first),
+            10));
+    }
+
+    private long fingerprint(String message, Throwable throwable, int frames)
+    {
+        return LoggingEventAggregator.fingerprint(
+            new LoggingEvent(getClass().getName(), logger, Level.ERROR, message, throwable),
+            frames);
+    }
+
+    private AlternateSMTPAppender configure(AlternateSMTPAppender smtpAppender)
+    {
+        return configure(smtpAppender, "%m");
+    }
+
+    private AlternateSMTPAppender configure(AlternateSMTPAppender smtpAppender, String subject)
+    {
+        FilteredPatternLayout layout = new FilteredPatternLayout();
+        layout.setConversionPattern("%m%n");
+        layout.setHeader("occurrences: %o");
+
+        smtpAppender.setName("mail");
+        smtpAppender.setTo(TO);
+        smtpAppender.setFrom("log4j@example.com");
+        smtpAppender.setSMTPHost("localhost");
+        if (subject != null)
+        {
+            smtpAppender.setSubject(subject);
+        }
+        smtpAppender.setLayout(layout);
+        // flushed by the test
+        smtpAppender.setTimeout(3600);
+        return smtpAppender;
+    }
+
+    /**
+     * Configures the appender with a sender thread blocked on the first e-mail, until <code>release</code> is counted
+     * down.
+     */
+    private void blockSender(String queueFullPolicy, final CountDownLatch sending, final CountDownLatch release)
+    {
+        appender.close();
+        appender = configure(new AlternateSMTPAppender()
+        {
+
+            @Override
+            protected void sendBuffer(Collection<LoggingEventAggregator> eventsCollection)
+            {
+                sending.countDown();
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                super.sendBuffer(eventsCollection);
+            }
+        });
+        appender.setQueueSize(1);
+        appender.setQueueFullPolicy(queueFullPolicy);
+        appender.activateOptions();
+    }
+
+    private void flush()
+    {
+        appender.flush();
+        assertThat(appender.awaitSent(5000)).isTrue();
+    }
+
+    private LoggingEvent event(String message)
+    {
+        return new LoggingEvent(getClass().getName(), logger, Level.ERROR, message, null);
+    }
+
+    private static int occurrences(Message message) throws Exception
+    {
+        return occurrences(((MimeMultipart) message.getContent()).getBodyPart(0));
+    }
+
+    private static int occurrences(Part part) throws Exception
+    {
+        String body = (String) part.getContent();
+        String line = body.substring(0, body.indexOf('\n')).trim();
+        return Integer.parseInt(line.substring("occurrences: ".length()));
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for {@link ArchiveCompressor}.
+ * @author fgiust
+ */
+public class ArchiveCompressorTest
+{
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCompress() throws Exception
+    {
+        File rolled = write("app.log.2021-01-01", "line 1\nline 2\n");
+
+        ArchiveCompressor compressor = new ArchiveCompressor("gz", 9, 1, "test");
+        compressor.compressNow(rolled);
+        compressor.shutdown();
+
+        assertThat(rolled).doesNotExist();
+        assertThat(new File(folder.getRoot(), "app.log.2021-01-01.gz.part")).doesNotExist();
+        assertThat(gunzip(new File(folder.getRoot(), "app.log.2021-01-01.gz"))).isEqualTo("line 1\nline 2\n");
+    }
+
+    @Test
+    public void testRecover() throws Exception
+    {
+        write("app.log", "active file");
+        write("app.log.2021-01-01", "interrupted");
+        write("app.log.2021-01-01.gz.part", "garbage");
+        write("app.log.2021-01-02", "not deleted");
+        write("app.log.2021-01-02.gz", "already compressed");
+        write("app.log.2021-01-03.1", "rolled by size");
+        write("app.log.next", "preopened");
+        write("app.log-audit", "other appender, same prefix");
+        write("app.log-audit.2021-01-01", "other appender, same prefix");
+        write("other.log.2021-01-01", "other appender");
+
+        final RolloverSchedule schedule = new RolloverSchedule("'.'yyyy-MM-dd", ZoneId.systemDefault(), Locale.ITALY);
+        ArchiveCompressor compressor = new ArchiveCompressor("gz", -1, 2, "test");
+        compressor.recover(folder.getRoot(), new FilenameFilter()
+        {
+
+            public boolean accept(File dir, String name)
+            {
+                return schedule.isRolledFile(name, "app.log");
+            }
+        }, null);
+
+        File compressed = new File(folder.getRoot(), "app.log.2021-01-01.gz");
+        File indexed = new File(folder.getRoot(), "app.log.2021-01-03.1.gz");
+        for (int j = 0; j < 100 && !(compressed.exists() && indexed.exists()); j++)
+        {
+            Thread.sleep(50);
+        }
+        compressor.shutdown();
+
+        assertThat(gunzip(compressed)).isEqualTo("interrupted");
+        assertThat(new File(folder.getRoot(), "app.log.2021-01-01.gz.part")).doesNotExist();
+        assertThat(new File(folder.getRoot(), "app.log.2021-01-02")).doesNotExist();
+        assertThat(new File(folder.getRoot(), "app.log.2021-01-02.gz")).exists();
+        assertThat(new File(folder.getRoot(), "app.log")).exists();
+        assertThat(gunzip(indexed)).isEqualTo("rolled by size");
+        assertThat(new File(folder.getRoot(), "app.log.next")).exists();
+        assertThat(new File(folder.getRoot(), "app.log-audit")).exists();
+        assertThat(new File(folder.getRoot(), "app.log-audit.2021-01-01")).exists();
+        assertThat(new File(folder.getRoot(), "other.log.2021-01-01")).exists();
+    }
+
+    @Test
+    public void testRecoverWhileCompressing() throws Exception
+    {
+        StringBuilder content = new StringBuilder();
+        for (int j = 0; j < 20000; j++)
+        {
+            content.append("line ").append(j).append('\n');
+        }
+        File[] rolled = new File[20];
+        for (int j = 0; j < rolled.length; j++)
+        {
+            rolled[j] = write("app.log.2021-01-" + (10 + j), content.toString());
+            // left by a previous compression
+            write(rolled[j].getName() + ".gz.part", "garbage");
+        }
+
+        final RolloverSchedule schedule = new RolloverSchedule("'.'yyyy-MM-dd", ZoneId.systemDefault(), Locale.ITALY);
+        final List<File> archived = new CopyOnWriteArrayList<File>();
+        ArchiveListener listener = new ArchiveListener()
+        {
+
+            public void archived(File file)
+            {
+                archived.add(file);
+            }
+        };
+        ArchiveCompressor compressor = new ArchiveCompressor("gz", 1, 4, "test");
+        // the catch-up rollover compresses the same files while recovery is running
+        for (File file : rolled)
+        {
+            compressor.compress(file, listener);
+        }
+        compressor.recover(folder.getRoot(), new FilenameFilter()
+        {
+
+            public boolean accept(File dir, String name)
+            {
+                return schedule.isRolledFile(name, "app.log");
+            }
+        }, listener);
+        for (File file : rolled)
+        {
+            compressor.compress(file, listener);
+        }
+
+        for (int j = 0; j < 200 && folder.getRoot().list().length > rolled.length; j++)
+        {
+            Thread.sleep(50);
+        }
+        Thread.sleep(200);
+        compressor.shutdown();
+
+        assertThat(folder.getRoot().list()).hasSize(rolled.length);
+        // each file compressed once
+        assertThat(archived).hasSize(rolled.length).doesNotHaveDuplicates();
+        for (File file : rolled)
+        {
+            assertThat(gunzip(new File(file.getPath() + ".gz"))).isEqualTo(content.toString());
+        }
+    }
+
+    private File write(String name, String content) throws IOException
+    {
+        File file = new File(folder.getRoot(), name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static String gunzip(File file) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new FileInputStream(file)))
+        {
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+            {
+                out.write(buffer, 0, read);
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
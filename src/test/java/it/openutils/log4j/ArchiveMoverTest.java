@@ -0,0 +1,143 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for {@link ArchiveMover}.
+ * @author fgiust
+ */
+public class ArchiveMoverTest
+{
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testMove() throws Exception
+    {
+        File source = write("app.log", "content");
+        File archive = folder.newFolder("archive");
+        final List<File> archived = new ArrayList<File>();
+
+        ArchiveMover mover = new ArchiveMover("test");
+        mover.move(source, new File(archive, "app.log.1"), new File(folder.getRoot(), "app.log.1"), listener(archived));
+
+        assertThat(archived).containsExactly(new File(archive, "app.log.1"));
+        assertThat(source).doesNotExist();
+        assertThat(new File(archive, "app.log.1")).hasContent("content");
+        assertThat(mover.getMoves()).isEqualTo(1);
+        assertThat(mover.getFailures()).isEqualTo(0);
+    }
+
+    @Test
+    public void testCopy() throws Exception
+    {
+        StringBuilder content = new StringBuilder();
+        for (int j = 0; j < 10000; j++)
+        {
+            content.append("line ").append(j).append('\n');
+        }
+        File source = write("app.log.1", content.toString());
+        File target = new File(folder.newFolder("archive"), "app.log.1");
+
+        ArchiveMover mover = new ArchiveMover("test");
+        assertThat(mover.copy(source, target)).isTrue();
+
+        assertThat(source).doesNotExist();
+        assertThat(target).hasContent(content.toString());
+        assertThat(new File(target.getPath() + ArchiveCompressor.PART_SUFFIX)).doesNotExist();
+        assertThat(mover.getCopies()).isEqualTo(1);
+    }
+
+    @Test
+    public void testFailureLeavesFileInPlace() throws Exception
+    {
+        File source = write("app.log", "content");
+        File fallback = new File(folder.getRoot(), "app.log.1");
+        final List<File> archived = new ArrayList<File>();
+
+        ArchiveMover mover = new ArchiveMover("test");
+        // the archive directory does not exist
+        File target = new File(new File(folder.getRoot(), "missing"), "app.log.1");
+        mover.move(source, target, fallback, listener(archived));
+
+        assertThat(archived).containsExactly(fallback);
+        assertThat(fallback).hasContent("content");
+        assertThat(mover.getFailures()).isEqualTo(1);
+        assertThat(mover.getMoves()).isEqualTo(0);
+    }
+
+    @Test
+    public void testRecover() throws Exception
+    {
+        write("app.log.2021-01-01", "renamed in place, copy interrupted");
+        write("app.log.2021-01-01.part", "partial copy");
+        write("app.log.2021-01-02.gz.part", "being compressed");
+        write("other.log.2021-01-01.part", "other appender");
+
+        final RolloverSchedule schedule = new RolloverSchedule("'.'yyyy-MM-dd", ZoneId.systemDefault(), Locale.ITALY);
+        new ArchiveMover("test").recoverNow(folder.getRoot(), new FilenameFilter()
+        {
+
+            public boolean accept(File dir, String name)
+            {
+                return schedule.isRolledFile(name, "app.log");
+            }
+        });
+
+        assertThat(folder.getRoot().list()).containsOnly(
+            "app.log.2021-01-01",
+            "app.log.2021-01-02.gz.part",
+            "other.log.2021-01-01.part");
+    }
+
+    private static ArchiveListener listener(final List<File> archived)
+    {
+        return new ArchiveListener()
+        {
+
+            public void archived(File file)
+            {
+                archived.add(file);
+            }
+        };
+    }
+
+    private File write(String name, String content) throws Exception
+    {
+        File file = new File(folder.getRoot(), name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.ZoneId;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for {@link ArchiveRetention}.
+ * @author fgiust
+ */
+public class ArchiveRetentionTest
+{
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testMaxAge() throws Exception
+    {
+        long now = System.currentTimeMillis();
+        write("app.log.1", 10, now - 5 * DAY);
+        write("app.log.2", 10, now - 3 * DAY);
+        write("app.log.3", 10, now - DAY);
+        write("app.log", 10, now - 10 * DAY);
+        write("other.log.1", 10, now - 10 * DAY);
+
+        assertThat(purge(new ArchiveRetention(2 * DAY, 0, 0, "test"))).isEqualTo(2);
+        assertThat(names()).containsOnly("app.log.3", "app.log", "other.log.1");
+    }
+
+    @Test
+    public void testOnlyRolledFiles() throws Exception
+    {
+        long now = System.currentTimeMillis();
+        write("app.log.2021-01-01", 10, now - 5 * DAY);
+        write("app.log.2021-01-02.1.gz", 10, now - 5 * DAY);
+        write("app.log-audit.2021-01-01", 10, now - 5 * DAY);
+        write("app.log.next", 10, now - 5 * DAY);
+
+        final RolloverSchedule schedule = new RolloverSchedule("'.'yyyy-MM-dd", ZoneId.systemDefault(), Locale.ITALY);
+        ArchiveRetention retention = new ArchiveRetention(2 * DAY, 0, 0, "test", new FilenameFilter()
+        {
+
+            public boolean accept(File dir, String name)
+            {
+                return schedule.isRolledFile(name, "app.log");
+            }
+        });
+        assertThat(purge(retention)).isEqualTo(2);
+        assertThat(names()).containsOnly("app.log-audit.2021-01-01", "app.log.next");
+    }
+
+    @Test
+    public void testMaxFilesAndBytes() throws Exception
+    {
+        long now = System.currentTimeMillis();
+        for (int j = 1; j <= 6; j++)
+        {
+            write("app.log." + j, 100, now - (10 - j) * DAY);
+        }
+        write("app.log.7.gz.part", 100, now - 20 * DAY);
+
+        assertThat(purge(new ArchiveRetention(0, 4, 0, "test"))).isEqualTo(2);
+        assertThat(names()).containsOnly("app.log.3", "app.log.4", "app.log.5", "app.log.6", "app.log.7.gz.part");
+
+        assertThat(purge(new ArchiveRetention(0, 0, 250, "test"))).isEqualTo(2);
+        assertThat(names()).containsOnly("app.log.5", "app.log.6", "app.log.7.gz.part");
+    }
+
+    @Test
+    public void testManifest() throws Exception
+    {
+        long now = System.currentTimeMillis();
+        write("app.log.1", 10, now - 3 * DAY);
+        write("app.log.2", 10, now - 2 * DAY);
+        assertThat(purge(new ArchiveRetention(0, 10, 0, "test"))).isEqualTo(0);
+        assertThat(new File(folder.getRoot(), ".app.log" + ArchiveRetention.MANIFEST_SUFFIX)).exists();
+
+        // not in the manifest, the directory is not scanned again
+        write("app.log.0", 10, now - 10 * DAY);
+
+        ArchiveRetention retention = new ArchiveRetention(0, 2, 0, "test");
+        try
+        {
+            write("app.log.3", 10, now - DAY);
+            retention.record(folder.getRoot(), "app.log", new File(folder.getRoot(), "app.log.3"));
+            // replaces the uncompressed file
+            new File(folder.getRoot(), "app.log.3").delete();
+            write("app.log.3.gz", 5, now - DAY);
+            retention.record(folder.getRoot(), "app.log", new File(folder.getRoot(), "app.log.3.gz"));
+            write("app.log.4", 10, now);
+            retention.record(folder.getRoot(), "app.log", new File(folder.getRoot(), "app.log.4"));
+
+            assertThat(retention.purge(folder.getRoot(), "app.log")).isEqualTo(2);
+        }
+        finally
+        {
+            retention.shutdown();
+        }
+        assertThat(names()).containsOnly("app.log.0", "app.log.3.gz", "app.log.4");
+
+        // a new instance reads the updated manifest
+        write("app.log.5", 10, now);
+        ArchiveRetention restarted = new ArchiveRetention(0, 2, 0, "test");
+        restarted.record(folder.getRoot(), "app.log", new File(folder.getRoot(), "app.log.5"));
+        assertThat(purge(restarted)).isEqualTo(1);
+        assertThat(names()).containsOnly("app.log.0", "app.log.4", "app.log.5");
+    }
+
+    private int purge(ArchiveRetention retention)
+    {
+        try
+        {
+            return retention.purge(folder.getRoot(), "app.log");
+        }
+        finally
+        {
+            retention.shutdown();
+        }
+    }
+
+    private String[] names()
+    {
+        return folder.getRoot().list(new FilenameFilter()
+        {
+
+            public boolean accept(File dir, String name)
+            {
+                return !name.endsWith(ArchiveRetention.MANIFEST_SUFFIX);
+            }
+        });
+    }
+
+    private void write(String name, int size, long lastModified) throws IOException
+    {
+        File file = folder.newFile(name);
+        Files.write(file.toPath(), new byte[size]);
+        assertThat(file.setLastModified(lastModified)).isTrue();
+    }
+}
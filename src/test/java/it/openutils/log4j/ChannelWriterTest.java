@@ -0,0 +1,74 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for {@link ChannelWriter}.
+ * @author fgiust
+ */
+public class ChannelWriterTest
+{
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testEncodeAcrossBuffers() throws Exception
+    {
+        File file = folder.newFile("app.log");
+        Files.write(file.toPath(), "head\n".getBytes(StandardCharsets.UTF_8));
+
+        StringBuilder expected = new StringBuilder("head\n");
+        ChannelWriter writer = new ChannelWriter(FileChannel.open(
+            file.toPath(),
+            StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND), StandardCharsets.UTF_8, 16);
+        for (int j = 0; j < 50; j++)
+        {
+            // multi byte characters and surrogate pairs split between buffers
+            String line = "event " + j + " è€😀\n";
+            writer.write(line);
+            writer.write(line.toCharArray(), 0, line.length());
+            expected.append(line).append(line);
+        }
+        writer.flush();
+
+        long size = expected.toString().getBytes(StandardCharsets.UTF_8).length;
+        assertThat(writer.getCount()).isEqualTo(size);
+        assertThat(file.length()).isEqualTo(size);
+
+        writer.write('x');
+        writer.close();
+        expected.append('x');
+        assertThat(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8)).isEqualTo(
+            expected.toString());
+    }
+}
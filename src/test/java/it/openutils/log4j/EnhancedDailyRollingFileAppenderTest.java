@@ -0,0 +1,406 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.config.PropertySetter;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.RootLogger;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for {@link EnhancedDailyRollingFileAppender}.
+ * @author fgiust
+ */
+public class EnhancedDailyRollingFileAppenderTest
+{
+
+    /**
+     * Daily, so that the expected file names don't change while a test is running, unless run across midnight.
+     */
+    private static final String DATE_PATTERN = "'.'yyyy-MM-dd";
+
+    private static final long DAY = 86400000L;
+
+    private static final Logger LOGGER = new RootLogger(Level.ALL);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private EnhancedDailyRollingFileAppender appender;
+
+    @After
+    public void tearDown()
+    {
+        if (appender != null)
+        {
+            appender.close();
+        }
+    }
+
+    @Test
+    public void testAsyncRollover() throws Exception
+    {
+        Assume.assumeTrue(EnhancedDailyRollingFileAppender.canRenameOpenFiles(System.getProperty("os.name")));
+        File log = new File(folder.getRoot(), "app.log");
+        appender = appender(log);
+        appender.setAsyncRollover(true);
+        // open the next file immediately
+        appender.setRolloverPreopen(2 * DAY);
+        long current = System.currentTimeMillis();
+        appender.activateOptions();
+
+        File next = new File(log.getPath() + EnhancedDailyRollingFileAppender.NEXT_SUFFIX);
+        waitFor(next, true);
+
+        appender.doAppend(event("before"));
+        synchronized (appender)
+        {
+            appender.checkRollover(current + DAY);
+        }
+        appender.doAppend(event("after"));
+
+        File archived = new File(folder.getRoot(), "archive/app.log"
+            + new SimpleDateFormat(DATE_PATTERN).format(new Date(current)));
+        waitFor(archived, true);
+        assertThat(read(archived)).isEqualTo("before\n");
+        for (int j = 0; j < 100 && !(log.exists() && read(log).equals("after\n")); j++)
+        {
+            Thread.sleep(50);
+        }
+        assertThat(read(log)).isEqualTo("after\n");
+    }
+
+    @Test
+    public void testAsyncRolloverForSize() throws Exception
+    {
+        Assume.assumeTrue(EnhancedDailyRollingFileAppender.canRenameOpenFiles(System.getProperty("os.name")));
+        File log = new File(folder.getRoot(), "app.log");
+        appender = new EnhancedDailyRollingFileAppender()
+        {
+
+            @Override
+            void archive(File file, String rolledFilename)
+            {
+                if (Thread.currentThread().getName().startsWith("log4j rollover"))
+                {
+                    // slow background completion, the next size rollover must wait for it
+                    try
+                    {
+                        Thread.sleep(200);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                super.archive(file, rolledFilename);
+            }
+        };
+        appender.setName("test");
+        appender.setFile(log.getPath());
+        appender.setDatePattern(DATE_PATTERN);
+        appender.setLayout(new PatternLayout("%m\n"));
+        appender.setAsyncRollover(true);
+        // open the next file immediately
+        appender.setRolloverPreopen(2 * DAY);
+        appender.setMaxFileSize("20");
+        String period = new SimpleDateFormat(DATE_PATTERN).format(new Date());
+        appender.activateOptions();
+        waitFor(new File(log.getPath() + EnhancedDailyRollingFileAppender.NEXT_SUFFIX), true);
+
+        for (int j = 1; j <= 7; j++)
+        {
+            appender.doAppend(event("event " + j));
+        }
+        appender.close();
+
+        File archive = new File(folder.getRoot(), "archive");
+        assertThat(read(new File(archive, "app.log" + period + ".1"))).isEqualTo("event 1\nevent 2\nevent 3\n");
+        assertThat(read(new File(archive, "app.log" + period + ".2"))).isEqualTo("event 4\nevent 5\nevent 6\n");
+        assertThat(read(log)).isEqualTo("event 7\n");
+    }
+
+    @Test
+    public void testStartupCatchUp() throws Exception
+    {
+        File log = new File(folder.getRoot(), "app.log");
+        Files.write(log.toPath(), "stale\n".getBytes(StandardCharsets.UTF_8));
+        long stale = System.currentTimeMillis() - 2 * DAY;
+        assertThat(log.setLastModified(stale)).isTrue();
+
+        appender = appender(log);
+        appender.setName("catch-up");
+        appender.activateOptions();
+
+        // rolled without waiting for an event
+        File archived = new File(folder.getRoot(), "archive/app.log"
+            + new SimpleDateFormat(DATE_PATTERN).format(new Date(stale)));
+        waitFor(archived, true);
+        assertThat(read(archived)).isEqualTo("stale\n");
+
+        appender.doAppend(event("fresh"));
+        assertThat(read(log)).isEqualTo("fresh\n");
+
+        // the catch-up runs on the archiver thread, reactivating doesn't start new threads
+        appender.activateOptions();
+        appender.activateOptions();
+        int archivers = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            if (thread.getName().startsWith("log4j archiver [catch-up]") || thread.getName().startsWith("log4j catch-up"))
+            {
+                archivers++;
+            }
+        }
+        assertThat(archivers).isEqualTo(1);
+    }
+
+    @Test
+    public void testDurabilityPolicy() throws Exception
+    {
+        File log = new File(folder.getRoot(), "app.log");
+        appender = appender(log);
+        appender.setImmediateFlush(false);
+        appender.setFlushEvents(3);
+        appender.setSyncThreshold(Level.ERROR);
+        appender.setSyncInterval(50);
+        appender.activateOptions();
+
+        appender.doAppend(event("event 1"));
+        appender.doAppend(event("event 2"));
+        assertThat(read(log)).isEmpty();
+        appender.doAppend(event("event 3"));
+        assertThat(read(log)).isEqualTo("event 1\nevent 2\nevent 3\n");
+
+        appender.doAppend(event("event 4"));
+        assertThat(read(log)).isEqualTo("event 1\nevent 2\nevent 3\n");
+        appender.doAppend(new LoggingEvent(Logger.class.getName(), LOGGER, Level.ERROR, "error", null));
+        assertThat(read(log)).endsWith("event 4\nerror\n");
+    }
+
+    @Test
+    public void testSyncBeforeClose() throws Exception
+    {
+        File log = new File(folder.getRoot(), "app.log");
+        final List<String> synced = new CopyOnWriteArrayList<String>();
+        appender = new EnhancedDailyRollingFileAppender()
+        {
+
+            @Override
+            CountingOutputStream openStream(final File file, boolean append) throws IOException
+            {
+                final CountingOutputStream stream = super.openStream(file, append);
+                return new CountingOutputStream(stream, stream.getCount())
+                {
+
+                    @Override
+                    public void sync() throws IOException
+                    {
+                        synced.add(read(file));
+                        stream.sync();
+                    }
+                };
+            }
+        };
+        appender.setName("test");
+        appender.setFile(log.getPath());
+        appender.setDatePattern(DATE_PATTERN);
+        appender.setLayout(new PatternLayout("%m\n"));
+        // the periodic sync never runs during the test
+        appender.setSyncInterval(3600000);
+        appender.setMaxFileSize("20");
+        appender.activateOptions();
+
+        appender.doAppend(event("event 1"));
+        appender.doAppend(event("event 2"));
+        appender.doAppend(event("event 3"));
+        appender.doAppend(event("event 4"));
+        appender.close();
+        appender = null;
+
+        // the rolled file and the last file are complete when forced
+        assertThat(synced).containsExactly("event 1\nevent 2\nevent 3\n", "event 4\n");
+    }
+
+    @Test
+    public void testFlushInterval() throws Exception
+    {
+        File log = new File(folder.getRoot(), "app.log");
+        appender = appender(log);
+        appender.setOutputMode(EnhancedDailyRollingFileAppender.OUTPUT_CHANNEL);
+        appender.setImmediateFlush(false);
+        appender.setFlushInterval(100);
+        appender.activateOptions();
+
+        appender.doAppend(event("event 1"));
+        appender.doAppend(event("event 2"));
+
+        // written by the background thread
+        for (int j = 0; j < 100 && !read(log).equals("event 1\nevent 2\n"); j++)
+        {
+            Thread.sleep(20);
+        }
+        assertThat(read(log)).isEqualTo("event 1\nevent 2\n");
+    }
+
+    @Test
+    public void testSizeRollover() throws Exception
+    {
+        File log = new File(folder.getRoot(), "app.log");
+        Files.write(log.toPath(), "existing\n".getBytes(StandardCharsets.UTF_8));
+        String period = new SimpleDateFormat(DATE_PATTERN).format(new Date());
+
+        appender = appender(log);
+        appender.setMaxFileSize("20");
+        appender.activateOptions();
+
+        // 9 bytes already in the file
+        appender.doAppend(event("event 1"));
+        appender.doAppend(event("event 2"));
+        appender.doAppend(event("event 3"));
+        appender.doAppend(event("event 4"));
+        appender.doAppend(event("event 5"));
+
+        File archive = new File(folder.getRoot(), "archive");
+        assertThat(read(new File(archive, "app.log" + period + ".1"))).isEqualTo("existing\nevent 1\nevent 2\n");
+        assertThat(read(new File(archive, "app.log" + period + ".2"))).isEqualTo("event 3\nevent 4\nevent 5\n");
+        assertThat(read(log)).isEmpty();
+    }
+
+    @Test
+    public void testChannelOutput() throws Exception
+    {
+        File log = new File(folder.getRoot(), "logs/app.log");
+        String period = new SimpleDateFormat(DATE_PATTERN).format(new Date());
+
+        appender = appender(log);
+        appender.setOutputMode("channel");
+        appender.setImmediateFlush(false);
+        appender.setEncoding("UTF-8");
+        appender.setMaxFileSize("25");
+        appender.activateOptions();
+
+        appender.doAppend(event("event 1 \u00e8"));
+        appender.doAppend(event("event 2"));
+        assertThat(log.length()).isZero();
+        appender.doAppend(event("event 3"));
+        appender.doAppend(event("event 4"));
+        appender.close();
+
+        File archive = new File(log.getParentFile(), "archive");
+        assertThat(read(new File(archive, "app.log" + period + ".1"))).isEqualTo("event 1 \u00e8\nevent 2\nevent 3\n");
+        assertThat(read(log)).isEqualTo("event 4\n");
+    }
+
+    @Test
+    public void testMappedOutput() throws Exception
+    {
+        File log = new File(folder.getRoot(), "app.log");
+        String period = new SimpleDateFormat(DATE_PATTERN).format(new Date());
+
+        appender = appender(log);
+        appender.setOutputMode("mapped");
+        appender.setSegmentSize(16);
+        appender.setSyncInterval(10);
+        appender.setMaxFileSize("20");
+        appender.activateOptions();
+
+        appender.doAppend(event("event 1"));
+        appender.doAppend(event("event 2"));
+        appender.doAppend(event("event 3"));
+        appender.doAppend(event("event 4"));
+        appender.close();
+
+        File archive = new File(folder.getRoot(), "archive");
+        assertThat(read(new File(archive, "app.log" + period + ".1"))).isEqualTo("event 1\nevent 2\nevent 3\n");
+        assertThat(read(log)).isEqualTo("event 4\n");
+    }
+
+    @Test
+    public void testAsyncRolloverPlatforms()
+    {
+        assertThat(EnhancedDailyRollingFileAppender.canRenameOpenFiles("Linux")).isTrue();
+        assertThat(EnhancedDailyRollingFileAppender.canRenameOpenFiles("Mac OS X")).isTrue();
+        assertThat(EnhancedDailyRollingFileAppender.canRenameOpenFiles("Windows Server 2019")).isFalse();
+    }
+
+    @Test
+    public void testSizeProperties()
+    {
+        EnhancedDailyRollingFileAppender configured = new EnhancedDailyRollingFileAppender();
+        PropertySetter setter = new PropertySetter(configured);
+
+        setter.setProperty("SegmentSize", "4096");
+        assertThat(configured.getSegmentSize()).isEqualTo(4096L);
+        setter.setProperty("MappedSegmentSize", "16KB");
+        assertThat(configured.getSegmentSize()).isEqualTo(16384L);
+
+        setter.setProperty("MaximumFileSize", "100");
+        assertThat(configured.getMaximumFileSize()).isEqualTo(100L);
+        setter.setProperty("MaxFileSize", "1KB");
+        assertThat(configured.getMaximumFileSize()).isEqualTo(1024L);
+    }
+
+    static EnhancedDailyRollingFileAppender appender(File log)
+    {
+        EnhancedDailyRollingFileAppender appender = new EnhancedDailyRollingFileAppender();
+        appender.setName("test");
+        appender.setFile(log.getPath());
+        appender.setDatePattern(DATE_PATTERN);
+        appender.setLayout(new PatternLayout("%m\n"));
+        return appender;
+    }
+
+    static LoggingEvent event(String message)
+    {
+        return new LoggingEvent(Logger.class.getName(), LOGGER, Level.INFO, message, null);
+    }
+
+    static String read(File file) throws IOException
+    {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    static void waitFor(File file, boolean exists) throws InterruptedException
+    {
+        for (int j = 0; j < 100 && file.exists() != exists; j++)
+        {
+            Thread.sleep(50);
+        }
+        assertThat(file.exists()).isEqualTo(exists);
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.RootLogger;
+import org.junit.Assume;
+import org.junit.Test;
+
+
+/**
+ * Tests for {@link FilteredPatternLayout}, formatting events without configuring log4j.
+ * @author fgiust
+ */
+public class FilteredPatternLayoutFormatTest
+{
+
+    static Throwable nestedThrowable()
+    {
+        IllegalStateException cause = new IllegalStateException("root cause");
+        cause.addSuppressed(new IllegalArgumentException("suppressed"));
+        return new RuntimeException("wrapper", new Exception("middle", cause));
+    }
+
+    static FilteredPatternLayout layout(boolean directRendering)
+    {
+        FilteredPatternLayout layout = new FilteredPatternLayout();
+        layout.setConversionPattern("%m%n");
+        layout.setFilter("org.junit");
+        layout.setFilter("org.apache.maven");
+        layout.setDirectRendering(directRendering);
+        layout.activateOptions();
+        return layout;
+    }
+
+    static LoggingEvent event(Throwable throwable)
+    {
+        return event(throwable, System.currentTimeMillis());
+    }
+
+    static LoggingEvent event(Throwable throwable, long timestamp)
+    {
+        return new LoggingEvent(
+            FilteredPatternLayoutFormatTest.class.getName(),
+            new RootLogger(Level.ALL),
+            timestamp,
+            Level.ERROR,
+            "message",
+            throwable);
+    }
+
+    @Test
+    public void testDirectRenderingSameOutputAsThrowableStrRep()
+    {
+        Throwable throwable = nestedThrowable();
+
+        // frames are rendered in the java 8 format, without the module prefixes added by later versions
+        String legacy = layout(false).format(event(throwable)).replaceAll("(\tat )[^(\\s]*/", "$1");
+        String direct = layout(true).format(event(throwable));
+
+        assertThat(direct).isEqualTo(legacy);
+        assertThat(direct).contains("Caused by: java.lang.IllegalStateException: root cause");
+        assertThat(direct).contains("\tSuppressed: java.lang.IllegalArgumentException: suppressed");
+        assertThat(direct).contains(" more");
+        assertThat(direct).doesNotContain("at org.junit");
+    }
+
+    @Test
+    public void testFrameAndLineLimits()
+    {
+        Throwable throwable = nestedThrowable();
+        FilteredPatternLayout legacy = layout(false);
+        FilteredPatternLayout direct = layout(true);
+        for (FilteredPatternLayout layout : new FilteredPatternLayout[]{legacy, direct })
+        {
+            layout.setMaxFramesPerCause(2);
+        }
+
+        String formatted = direct.format(event(throwable));
+        assertThat(formatted).isEqualTo(legacy.format(event(throwable)));
+
+        String[] lines = formatted.split(System.lineSeparator());
+        assertThat(lines[1]).isEqualTo("java.lang.RuntimeException: wrapper");
+        assertThat(lines[2]).startsWith("\tat ");
+        assertThat(lines[3]).startsWith("\tat ");
+        assertThat(lines[4]).matches("\t\\.\\.\\. \\d+ more");
+        assertThat(lines[5]).isEqualTo("Caused by: java.lang.Exception: middle");
+
+        direct.setMaxTraceLines(3);
+        lines = direct.format(event(throwable)).split(System.lineSeparator());
+        assertThat(lines).hasSize(5);
+        assertThat(lines[4]).matches("\t\\.\\.\\. \\d+ more");
+    }
+
+    @Test
+    public void testInvalidFilterIgnored()
+    {
+        Throwable throwable = nestedThrowable();
+        for (boolean directRendering : new boolean[]{false, true })
+        {
+            FilteredPatternLayout layout = layout(directRendering);
+            layout.setFilter("regex:[unclosed");
+
+            String formatted = layout.format(event(throwable));
+            assertThat(formatted).contains("java.lang.RuntimeException: wrapper");
+            // the valid filters are still applied
+            assertThat(formatted).doesNotContain("at org.junit");
+        }
+    }
+
+    @Test
+    public void testTooComplexFilterIgnored()
+    {
+        Throwable throwable = nestedThrowable();
+        FilteredPatternLayout layout = layout(true);
+        // each filter alone is fine, together they need more states than allowed
+        layout.setFilter("*a??????????");
+        layout.setFilter("*b??????????");
+        layout.activateOptions();
+
+        // the first filter still applies, and matches any frame ("at " followed by at least 10 characters)
+        String formatted = layout.format(event(throwable));
+        assertThat(formatted).contains("java.lang.RuntimeException: wrapper").doesNotContain("\tat ");
+    }
+
+    @Test
+    public void testThrowableCache()
+    {
+        FilteredPatternLayout layout = layout(true);
+        layout.setThrowableCacheSize(16);
+        Throwable throwable = nestedThrowable();
+
+        String first = layout.format(event(throwable));
+        String second = layout.format(event(throwable));
+        layout.format(event(new Exception()));
+
+        assertThat(second).isEqualTo(first);
+        assertThat(layout.getThrowableCacheHits()).isEqualTo(1);
+        assertThat(layout.getThrowableCacheMisses()).isEqualTo(2);
+    }
+
+    @Test
+    public void testThrowableCacheClearedOnReconfiguration()
+    {
+        FilteredPatternLayout layout = layout(true);
+        layout.setThrowableCacheSize(16);
+        Throwable throwable = nestedThrowable();
+
+        String unlimited = layout.format(event(throwable));
+        layout.setMaxTraceLines(3);
+        String limited = layout.format(event(throwable));
+        assertThat(limited.split(System.lineSeparator())).hasSize(5);
+
+        layout.setMaxTraceLines(0);
+        layout.setMaxFramesPerCause(1);
+        assertThat(layout.format(event(throwable))).isNotEqualTo(unlimited).isNotEqualTo(limited);
+        assertThat(layout.getThrowableCacheHits()).isZero();
+    }
+
+    @Test
+    public void testDeduplicateTraces()
+    {
+        FilteredPatternLayout layout = layout(true);
+        // each call is made from a different line of this test
+        layout.setFilter(FilteredPatternLayoutFormatTest.class.getName());
+        layout.setDeduplicateTraces(true);
+        layout.setDeduplicationInterval(60);
+
+        String first = layout.format(event(nestedThrowable(), 1000L));
+        String fingerprint = first.substring(first.indexOf("[trace #") + 8, first.indexOf(']'));
+
+        assertThat(first).contains("java.lang.RuntimeException: wrapper");
+        assertThat(layout.format(event(nestedThrowable(), 2000L)))
+            .isEqualTo(
+            "message" + System.lineSeparator() + "[trace #" + fingerprint + " repeated, see earlier]"
+                + System.lineSeparator() + "java.lang.RuntimeException: wrapper" + System.lineSeparator());
+        assertThat(layout.format(event(nestedThrowable(), 61000L))).isEqualTo(first);
+        assertThat(layout.format(event(new Exception("other"), 62000L))).contains("java.lang.Exception: other");
+    }
+
+    @Test
+    public void testDeduplicateTracesIgnoresMessages()
+    {
+        FilteredPatternLayout layout = layout(true);
+        layout.setDeduplicateTraces(true);
+
+        Throwable[] throwables = new Throwable[2];
+        for (int j = 0; j < throwables.length; j++)
+        {
+            throwables[j] = new IllegalStateException("order " + j + " not found");
+        }
+
+        assertThat(layout.format(event(throwables[0]))).contains("\tat ");
+        assertThat(layout.format(event(throwables[1])))
+            .contains(" repeated, see earlier]")
+            .contains("java.lang.IllegalStateException: order 1 not found")
+            .doesNotContain("\tat ");
+    }
+
+    @Test
+    public void testDeduplicateTracesPerWriter() throws IOException
+    {
+        FilteredPatternLayout layout = layout(true);
+        layout.setDeduplicateTraces(true);
+        Throwable throwable = nestedThrowable();
+
+        StringWriter first = new StringWriter();
+        StringWriter second = new StringWriter();
+        layout.write(event(throwable), first);
+        layout.write(event(throwable), second);
+        layout.write(event(throwable), first);
+
+        assertThat(second.toString()).contains("\tat ").doesNotContain(" repeated, see earlier]");
+        assertThat(first.toString()).contains(" repeated, see earlier]");
+    }
+
+    @Test
+    public void testWriteSameOutputAsFormat() throws IOException
+    {
+        FilteredPatternLayout layout = layout(true);
+        LoggingEvent event = event(nestedThrowable());
+
+        StringWriter writer = new StringWriter();
+        layout.write(event, writer);
+
+        assertThat(writer.toString()).isEqualTo(layout.format(event));
+    }
+
+    @Test
+    public void testWriteIsGarbageLight() throws IOException
+    {
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threadMXBean;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        FilteredPatternLayout layout = new FilteredPatternLayout();
+        layout.setConversionPattern("%-5p %c - %m%n");
+        layout.setFilter("org.junit");
+        layout.setDirectRendering(true);
+        layout.activateOptions();
+
+        LoggingEvent event = event(nestedThrowable());
+        Writer writer = new Writer()
+        {
+
+            @Override
+            public void write(char[] cbuf, int off, int len)
+            {
+                // discard
+            }
+
+            @Override
+            public void flush()
+            {
+                // nothing to do
+            }
+
+            @Override
+            public void close()
+            {
+                // nothing to do
+            }
+        };
+
+        int iterations = 20000;
+        long threadId = Thread.currentThread().getId();
+
+        // warm up
+        for (int j = 0; j < iterations; j++)
+        {
+            layout.write(event, writer);
+            writer.write(layout.format(event));
+        }
+
+        long start = allocations.getThreadAllocatedBytes(threadId);
+        for (int j = 0; j < iterations; j++)
+        {
+            writer.write(layout.format(event));
+        }
+        long formatBytes = allocations.getThreadAllocatedBytes(threadId) - start;
+
+        start = allocations.getThreadAllocatedBytes(threadId);
+        for (int j = 0; j < iterations; j++)
+        {
+            layout.write(event, writer);
+        }
+        long writeBytes = allocations.getThreadAllocatedBytes(threadId) - start;
+
+        // the throwable cache is disabled: only the copies of the frame arrays returned by getStackTrace() and the
+        // first line of each throwable are allocated, nothing for each rendered frame
+        int frames = frames(event.getThrowableInformation().getThrowable());
+        assertThat(writeBytes / iterations).isLessThan(frames * 16L + 512);
+        assertThat(writeBytes * 4).isLessThan(formatBytes);
+    }
+
+    private static int frames(Throwable throwable)
+    {
+        int frames = throwable.getStackTrace().length;
+        for (Throwable suppressed : throwable.getSuppressed())
+        {
+            frames += frames(suppressed);
+        }
+        return throwable.getCause() != null ? frames + frames(throwable.getCause()) : frames;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+
+/**
+ * Tests for {@link FrameFilterMatcher}.
+ * @author fgiust
+ */
+public class FrameFilterMatcherTest
+{
+
+    private FrameFilterMatcher matcher = FrameFilterMatcher.compile(Arrays.asList(
+        "org.apache.catalina",
+        "sun.reflect",
+        "org.apache.catalina.core",
+        "javax.servlet.http"));
+
+    @Test
+    public void testMatchesFrames()
+    {
+        assertThat(matcher.matchesLine("\tat org.apache.catalina.core.StandardPipeline.invoke(StandardPipeline.java:520)"))
+            .isTrue();
+        assertThat(matcher.matchesLine("   at sun.reflect.NativeMethodAccessorImpl.invoke0(Native Method)")).isTrue();
+        assertThat(matcher.matchesLine("at javax.servlet.http.HttpServlet.service(HttpServlet.java:689)")).isTrue();
+    }
+
+    @Test
+    public void testDoesNotMatchOtherLines()
+    {
+        assertThat(matcher.matchesLine("\tat org.myapp.web.MyClass.doNpe(MyClass.java:99)")).isFalse();
+        assertThat(matcher.matchesLine("\tat org.apache.coyote.CoyoteAdapter.service(CoyoteAdapter.java:160)")).isFalse();
+        assertThat(matcher.matchesLine("org.apache.catalina.LifecycleException: failed")).isFalse();
+        assertThat(matcher.matchesLine("Caused by: sun.reflect.Foo")).isFalse();
+        assertThat(matcher.matchesLine("\tat sun.refl")).isFalse();
+        assertThat(matcher.matchesLine("")).isFalse();
+    }
+
+    @Test
+    public void testSameSemanticsAsStartsWith()
+    {
+        FrameFilterMatcher trailing = FrameFilterMatcher.compile(Collections.singleton("org.Foo "));
+        // the line is trimmed before matching, as with String.trim().startsWith()
+        assertThat(trailing.matchesLine("\tat org.Foo ")).isFalse();
+        assertThat(trailing.matchesLine("\tat org.Foo x")).isTrue();
+
+        FrameFilterMatcher all = FrameFilterMatcher.compile(Collections.singleton(""));
+        assertThat(all.matchesLine("\tat anything")).isTrue();
+        assertThat(all.matchesLine("java.lang.Throwable")).isFalse();
+    }
+
+    @Test
+    public void testEmpty()
+    {
+        assertThat(FrameFilterMatcher.compile(Collections.<String> emptySet()).isEmpty()).isTrue();
+        assertThat(FrameFilterMatcher.EMPTY.matchesLine("\tat org.apache.catalina.Foo")).isFalse();
+    }
+
+    @Test
+    public void testGlobFilters()
+    {
+        FrameFilterMatcher glob = FrameFilterMatcher.compile(Arrays.asList(
+            "sun.reflect.GeneratedMethodAccessor*.invoke",
+            "*$$EnhancerByCGLIB$$",
+            "org.apache.catalina",
+            "java.lang.Thread.r?n"));
+
+        assertThat(glob.matchesLine("\tat sun.reflect.GeneratedMethodAccessor123.invoke(Unknown Source)")).isTrue();
+        assertThat(glob.matchesLine("\tat sun.reflect.GeneratedMethodAccessor123.other(Unknown Source)")).isFalse();
+        assertThat(glob.matchesLine("\tat com.example.Service$$EnhancerByCGLIB$$1a2b.save(<generated>)")).isTrue();
+        assertThat(glob.matchesLine("\tat com.example.Service.save(Service.java:12)")).isFalse();
+        assertThat(glob.matchesLine("\tat org.apache.catalina.core.StandardPipeline.invoke(StandardPipeline.java:520)"))
+            .isTrue();
+        assertThat(glob.matchesLine("\tat java.lang.Thread.run(Thread.java:534)")).isTrue();
+
+        assertThat(glob.matchesFrame(new StackTraceElement(
+            "com.example.Service$$EnhancerByCGLIB$$1a2b",
+            "save",
+            "<generated>",
+            -1))).isTrue();
+        assertThat(glob.matchesFrame(new StackTraceElement(
+            "sun.reflect.GeneratedMethodAccessor7",
+            "invoke",
+            null,
+            -1))).isTrue();
+        assertThat(glob.matchesFrame(new StackTraceElement("com.example.Service", "save", "Service.java", 12)))
+            .isFalse();
+    }
+
+    @Test
+    public void testRegexFilters()
+    {
+        FrameFilterMatcher regex = FrameFilterMatcher.compile(Arrays.asList(
+            "regex:.*\\$\\$FastClassBy\\w+\\$\\$",
+            "regex:org\\.hibernate\\.(?:engine|event)\\.",
+            "org.apache.catalina"));
+
+        assertThat(regex.matchesLine("\tat com.example.Service$$FastClassBySpringCGLIB$$1.invoke(<generated>)")).isTrue();
+        assertThat(regex.matchesLine("\tat org.hibernate.event.internal.DefaultLoadEventListener.load(X.java:1)"))
+            .isTrue();
+        assertThat(regex.matchesLine("\tat org.hibernate.internal.SessionImpl.load(SessionImpl.java:1)")).isFalse();
+        assertThat(regex.matchesLine("\tat org.apache.catalina.core.StandardPipeline.invoke(X.java:1)")).isTrue();
+        assertThat(regex.matchesFrame(new StackTraceElement("org.hibernate.engine.Foo", "bar", null, 1))).isTrue();
+        assertThat(regex.matchesFrame(new StackTraceElement("org.myapp.Foo", "bar", null, 1))).isFalse();
+    }
+}
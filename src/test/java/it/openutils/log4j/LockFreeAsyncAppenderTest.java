@@ -0,0 +1,301 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.RootLogger;
+import org.junit.Test;
+
+
+/**
+ * Tests for {@link LockFreeAsyncAppender} and {@link RingBuffer}.
+ * @author fgiust
+ */
+public class LockFreeAsyncAppenderTest
+{
+
+    private final RootLogger logger = new RootLogger(Level.ALL);
+
+    @Test
+    public void testRingBuffer()
+    {
+        RingBuffer<String> ring = new RingBuffer<String>(3);
+        assertThat(ring.capacity()).isEqualTo(4);
+        for (int j = 0; j < 4; j++)
+        {
+            assertThat(ring.offer("e" + j)).isTrue();
+        }
+        assertThat(ring.offer("full")).isFalse();
+        assertThat(ring.size()).isEqualTo(4);
+        assertThat(ring.poll()).isEqualTo("e0");
+        assertThat(ring.offer("e4")).isTrue();
+
+        String[] target = new String[8];
+        assertThat(ring.drainTo(target, 8)).isEqualTo(4);
+        assertThat(target).startsWith("e1", "e2", "e3", "e4");
+        assertThat(ring.poll()).isNull();
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception
+    {
+        CollectingAppender collector = new CollectingAppender(null);
+        final LockFreeAsyncAppender async = new LockFreeAsyncAppender();
+        async.setName("async");
+        async.setBufferSize(64);
+        async.addAppender(collector);
+        async.activateOptions();
+
+        final int threads = 4;
+        final int events = 5000;
+        Thread[] producers = new Thread[threads];
+        for (int t = 0; t < threads; t++)
+        {
+            final int id = t;
+            producers[t] = new Thread(new Runnable()
+            {
+
+                public void run()
+                {
+                    for (int j = 0; j < events; j++)
+                    {
+                        async.doAppend(event(Level.INFO, id + ":" + j));
+                    }
+                }
+            }, "producer " + t);
+            producers[t].start();
+        }
+        for (Thread producer : producers)
+        {
+            producer.join();
+        }
+        async.close();
+
+        assertThat(collector.stopped).isTrue();
+        assertThat(collector.messages).hasSize(threads * events);
+        // events from each thread are dispatched in order
+        int[] last = new int[threads];
+        Arrays.fill(last, -1);
+        for (String message : collector.messages)
+        {
+            String[] parts = message.split(":");
+            int id = Integer.parseInt(parts[0]);
+            int seq = Integer.parseInt(parts[1]);
+            assertThat(seq).isEqualTo(last[id] + 1);
+            last[id] = seq;
+        }
+        assertThat(collector.threadNames).doesNotContain("log4j async [async]");
+    }
+
+    @Test
+    public void testDropPolicy() throws Exception
+    {
+        CountDownLatch release = new CountDownLatch(1);
+        CollectingAppender collector = new CollectingAppender(release);
+        LockFreeAsyncAppender async = new LockFreeAsyncAppender();
+        async.setName("async");
+        async.setBufferSize(4);
+        async.setQueueFullPolicy(LockFreeAsyncAppender.FULL_DROP);
+        async.addAppender(collector);
+        async.activateOptions();
+
+        // the first event blocks the consumer
+        async.doAppend(event(Level.INFO, "first"));
+        assertThat(collector.started.await(5, TimeUnit.SECONDS)).isTrue();
+        for (int j = 0; j < 10; j++)
+        {
+            async.doAppend(event(Level.DEBUG, "debug" + j));
+        }
+        assertThat(async.getQueueSize()).isEqualTo(4);
+
+        // errors are never dropped, the logging thread waits for space
+        final LockFreeAsyncAppender target = async;
+        Thread producer = new Thread(new Runnable()
+        {
+
+            public void run()
+            {
+                target.doAppend(event(Level.ERROR, "error"));
+            }
+        });
+        producer.start();
+        producer.join(200);
+        assertThat(producer.isAlive()).isTrue();
+
+        release.countDown();
+        producer.join();
+        async.close();
+
+        assertThat(collector.messages).startsWith("first", "debug0", "debug1", "debug2", "debug3");
+        assertThat(collector.messages).doesNotContain("debug4");
+        assertThat(collector.messages).hasSize(7);
+        // the summary may be sent before or after the blocked event
+        List<String> tail = collector.messages.subList(5, 7);
+        assertThat(tail).contains("error");
+        assertThat(tail.get(0) + tail.get(1)).contains("Discarded 6 logging events");
+    }
+
+    @Test
+    public void testDiscardOldestPolicy() throws Exception
+    {
+        CountDownLatch release = new CountDownLatch(1);
+        CollectingAppender collector = new CollectingAppender(release);
+        LockFreeAsyncAppender async = new LockFreeAsyncAppender();
+        async.setName("async");
+        async.setBufferSize(4);
+        async.setQueueFullPolicy(LockFreeAsyncAppender.FULL_DISCARD_OLDEST);
+        async.addAppender(collector);
+        async.activateOptions();
+
+        async.doAppend(event(Level.INFO, "first"));
+        assertThat(collector.started.await(5, TimeUnit.SECONDS)).isTrue();
+        for (int j = 0; j < 10; j++)
+        {
+            async.doAppend(event(Level.INFO, "e" + j));
+        }
+
+        release.countDown();
+        async.close();
+
+        assertThat(collector.messages).startsWith("first", "e6", "e7", "e8", "e9");
+        assertThat(collector.messages.get(collector.messages.size() - 1)).startsWith("Discarded 6 logging events");
+    }
+
+    @Test
+    public void testNoEventLostOnClose() throws Exception
+    {
+        for (int run = 0; run < 20; run++)
+        {
+            CollectingAppender collector = new CollectingAppender(null);
+            final LockFreeAsyncAppender async = new LockFreeAsyncAppender();
+            async.setName("async");
+            async.setBufferSize(16);
+            async.setWaitStrategy(LockFreeAsyncAppender.WAIT_SPIN);
+            async.addAppender(collector);
+            // filters run after the stop check: counts the events accepted by the appender
+            final AtomicInteger accepted = new AtomicInteger();
+            async.addFilter(new Filter()
+            {
+
+                @Override
+                public int decide(LoggingEvent event)
+                {
+                    accepted.incrementAndGet();
+                    return Filter.NEUTRAL;
+                }
+            });
+            async.activateOptions();
+
+            final CountDownLatch running = new CountDownLatch(4);
+            Thread[] producers = new Thread[4];
+            for (int t = 0; t < producers.length; t++)
+            {
+                producers[t] = new Thread(new Runnable()
+                {
+
+                    public void run()
+                    {
+                        running.countDown();
+                        for (int j = 0; j < 2000; j++)
+                        {
+                            async.doAppend(event(Level.INFO, "e" + j));
+                        }
+                    }
+                });
+                producers[t].start();
+            }
+            running.await();
+            async.close();
+            for (Thread producer : producers)
+            {
+                producer.join();
+            }
+
+            assertThat(collector.messages).hasSize(accepted.get());
+        }
+    }
+
+    private LoggingEvent event(Level level, String message)
+    {
+        return new LoggingEvent(LockFreeAsyncAppenderTest.class.getName(), logger, level, message, null);
+    }
+
+    /**
+     * Collects messages, optionally waiting on a latch on the first event.
+     */
+    private static class CollectingAppender extends AppenderSkeleton
+    {
+
+        final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+
+        final List<String> threadNames = Collections.synchronizedList(new ArrayList<String>());
+
+        final CountDownLatch started = new CountDownLatch(1);
+
+        volatile boolean stopped;
+
+        private final CountDownLatch release;
+
+        CollectingAppender(CountDownLatch release)
+        {
+            this.release = release;
+        }
+
+        @Override
+        protected void append(LoggingEvent event)
+        {
+            messages.add(event.getRenderedMessage());
+            threadNames.add(event.getThreadName());
+            started.countDown();
+            if (release != null)
+            {
+                try
+                {
+                    release.await(5, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        public void close()
+        {
+            stopped = true;
+        }
+
+        public boolean requiresLayout()
+        {
+            return false;
+        }
+    }
+}
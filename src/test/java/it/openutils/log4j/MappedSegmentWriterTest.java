@@ -0,0 +1,137 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for {@link MappedSegmentWriter}.
+ * @author fgiust
+ */
+public class MappedSegmentWriterTest
+{
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWriteAcrossSegments() throws Exception
+    {
+        File file = folder.newFile("app.log");
+        StringBuilder expected = new StringBuilder();
+
+        MappedSegmentWriter writer = open(file);
+        for (int j = 0; j < 40; j++)
+        {
+            String line = "event " + j + " è\n";
+            writer.write(line);
+            writer.flush();
+            expected.append(line);
+        }
+        writer.sync();
+        long count = writer.getCount();
+        writer.close();
+
+        byte[] content = Files.readAllBytes(file.toPath());
+        assertThat(count).isEqualTo(content.length);
+        assertThat(new String(content, StandardCharsets.UTF_8)).isEqualTo(expected.toString());
+    }
+
+    @Test
+    public void testSyncWhileRemapping() throws Exception
+    {
+        File file = folder.newFile("app.log");
+        StringBuilder expected = new StringBuilder();
+
+        final MappedSegmentWriter writer = open(file);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread syncer = new Thread()
+        {
+
+            @Override
+            public void run()
+            {
+                while (running.get())
+                {
+                    writer.sync();
+                }
+            }
+        };
+        syncer.start();
+        try
+        {
+            for (int j = 0; j < 2000; j++)
+            {
+                String line = "event " + j + "\n";
+                writer.write(line);
+                writer.flush();
+                expected.append(line);
+            }
+        }
+        finally
+        {
+            running.set(false);
+            syncer.join();
+        }
+        writer.close();
+        // segments are unmapped on close, a late sync must be ignored
+        writer.sync();
+
+        assertThat(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8)).isEqualTo(
+            expected.toString());
+    }
+
+    @Test
+    public void testRecoverAfterCrash() throws Exception
+    {
+        File file = folder.newFile("app.log");
+
+        MappedSegmentWriter crashed = open(file);
+        crashed.write("before crash\n");
+        crashed.flush();
+        // never closed: the file is padded with zeros up to the end of the segment
+        assertThat(file.length()).isEqualTo(64);
+
+        MappedSegmentWriter writer = open(file);
+        assertThat(writer.getCount()).isEqualTo(13);
+        writer.write("after restart\n");
+        writer.close();
+
+        assertThat(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8)).isEqualTo(
+            "before crash\nafter restart\n");
+    }
+
+    private static MappedSegmentWriter open(File file) throws IOException
+    {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new MappedSegmentWriter(channel, StandardCharsets.UTF_8, 64, 32);
+    }
+}
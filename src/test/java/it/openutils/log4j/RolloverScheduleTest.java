@@ -0,0 +1,203 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.text.SimpleDateFormat;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+
+/**
+ * Tests for {@link RolloverSchedule}.
+ * @author fgiust
+ */
+public class RolloverScheduleTest
+{
+
+    private static final ZoneId ROME = ZoneId.of("Europe/Rome");
+
+    private static final ZoneId SAO_PAULO = ZoneId.of("America/Sao_Paulo");
+
+    @Test
+    public void testPeriodType()
+    {
+        assertThat(type("'.'yyyy-MM-dd-HH-mm")).isEqualTo(EnhancedDailyRollingFileAppender.TOP_OF_MINUTE);
+        assertThat(type("'.'yyyy-MM-dd-HH")).isEqualTo(EnhancedDailyRollingFileAppender.TOP_OF_HOUR);
+        assertThat(type("'.'yyyy-MM-dd-a")).isEqualTo(EnhancedDailyRollingFileAppender.HALF_DAY);
+        assertThat(type("'.'yyyy-MM-dd")).isEqualTo(EnhancedDailyRollingFileAppender.TOP_OF_DAY);
+        assertThat(type("'.'yyyy-ww")).isEqualTo(EnhancedDailyRollingFileAppender.TOP_OF_WEEK);
+        assertThat(type("'.'yyyy-MM")).isEqualTo(EnhancedDailyRollingFileAppender.TOP_OF_MONTH);
+        assertThat(type("'.log'")).isEqualTo(EnhancedDailyRollingFileAppender.TOP_OF_TROUBLE);
+    }
+
+    @Test
+    public void testHourlySpringForward()
+    {
+        // 2021-03-28 in Rome clocks move from 02:00 to 03:00
+        RolloverSchedule hourly = new RolloverSchedule("'.'yyyy-MM-dd-HH", ROME, Locale.ITALY);
+
+        long t = millis("2021-03-28T01:30+01:00");
+        assertThat(hourly.format(t)).isEqualTo(".2021-03-28-01");
+        long next = hourly.nextBoundary(t);
+        assertThat(next).isEqualTo(millis("2021-03-28T03:00+02:00"));
+        assertThat(hourly.format(next)).isEqualTo(".2021-03-28-03");
+        assertThat(hourly.nextBoundary(next)).isEqualTo(millis("2021-03-28T04:00+02:00"));
+    }
+
+    @Test
+    public void testHourlyFallBack()
+    {
+        // 2021-10-31 in Rome clocks move from 03:00 back to 02:00, the 02 hour is repeated
+        RolloverSchedule hourly = new RolloverSchedule("'.'yyyy-MM-dd-HH", ROME, Locale.ITALY);
+
+        long first = hourly.nextBoundary(millis("2021-10-31T01:30+02:00"));
+        assertThat(first).isEqualTo(millis("2021-10-31T02:00+02:00"));
+        long second = hourly.nextBoundary(first);
+        assertThat(second).isEqualTo(millis("2021-10-31T02:00+01:00"));
+        assertThat(second - first).isEqualTo(3600000L);
+        // same suffix, the appender keeps writing to the same file
+        assertThat(hourly.format(second)).isEqualTo(hourly.format(first));
+        assertThat(hourly.nextBoundary(second)).isEqualTo(millis("2021-10-31T03:00+01:00"));
+    }
+
+    @Test
+    public void testDailyAcrossDst()
+    {
+        RolloverSchedule daily = new RolloverSchedule("'.'yyyy-MM-dd", ROME, Locale.ITALY);
+
+        long spring = daily.nextBoundary(millis("2021-03-28T10:00+02:00"));
+        assertThat(spring).isEqualTo(millis("2021-03-29T00:00+02:00"));
+        assertThat(spring - millis("2021-03-28T00:00+01:00")).isEqualTo(23 * 3600000L);
+
+        long autumn = daily.nextBoundary(millis("2021-10-31T10:00+01:00"));
+        assertThat(autumn).isEqualTo(millis("2021-11-01T00:00+01:00"));
+        assertThat(autumn - millis("2021-10-31T00:00+02:00")).isEqualTo(25 * 3600000L);
+    }
+
+    @Test
+    public void testMidnightGap()
+    {
+        // 2018-11-04 in Sao Paulo clocks moved from 00:00 to 01:00, the day started at 01:00
+        RolloverSchedule daily = new RolloverSchedule("'.'yyyy-MM-dd", SAO_PAULO, Locale.ITALY);
+
+        long next = daily.nextBoundary(millis("2018-11-03T22:00-03:00"));
+        assertThat(next).isEqualTo(millis("2018-11-04T01:00-02:00"));
+        assertThat(daily.format(next)).isEqualTo(".2018-11-04");
+        assertThat(daily.format(next - 1)).isEqualTo(".2018-11-03");
+    }
+
+    @Test
+    public void testLeapDay()
+    {
+        RolloverSchedule daily = new RolloverSchedule("'.'yyyy-MM-dd", ROME, Locale.ITALY);
+        long leap = daily.nextBoundary(millis("2024-02-28T15:00+01:00"));
+        assertThat(leap).isEqualTo(millis("2024-02-29T00:00+01:00"));
+        assertThat(daily.format(leap)).isEqualTo(".2024-02-29");
+        assertThat(daily.nextBoundary(leap)).isEqualTo(millis("2024-03-01T00:00+01:00"));
+
+        RolloverSchedule monthly = new RolloverSchedule("'.'yyyy-MM", ROME, Locale.ITALY);
+        assertThat(monthly.nextBoundary(millis("2024-02-29T23:59+01:00"))).isEqualTo(millis("2024-03-01T00:00+01:00"));
+        assertThat(monthly.nextBoundary(millis("2023-02-15T12:00+01:00"))).isEqualTo(millis("2023-03-01T00:00+01:00"));
+    }
+
+    @Test
+    public void testWeekly()
+    {
+        RolloverSchedule italy = new RolloverSchedule("'.'yyyy-ww", ROME, Locale.ITALY);
+        // 2021-03-28 is a Sunday, weeks start on monday in Italy
+        assertThat(italy.nextBoundary(millis("2021-03-28T12:00+02:00"))).isEqualTo(millis("2021-03-29T00:00+02:00"));
+
+        RolloverSchedule us = new RolloverSchedule("'.'yyyy-ww", ROME, Locale.US);
+        assertThat(us.nextBoundary(millis("2021-03-28T12:00+02:00"))).isEqualTo(millis("2021-04-04T00:00+02:00"));
+    }
+
+    @Test
+    public void testRolledFile()
+    {
+        RolloverSchedule daily = new RolloverSchedule("'.'yyyy-MM-dd", ROME, Locale.ITALY);
+        assertThat(daily.isRolledFile("app.log.2021-03-28", "app.log")).isTrue();
+        assertThat(daily.isRolledFile("app.log.2021-03-28.2", "app.log")).isTrue();
+        assertThat(daily.isRolledFile("app.log.2021-03-28.gz", "app.log")).isTrue();
+        assertThat(daily.isRolledFile("app.log.2021-03-28.1.zip.part", "app.log")).isTrue();
+
+        assertThat(daily.isRolledFile("app.log", "app.log")).isFalse();
+        assertThat(daily.isRolledFile("app.log.next", "app.log")).isFalse();
+        assertThat(daily.isRolledFile("app.log-audit", "app.log")).isFalse();
+        assertThat(daily.isRolledFile("app.log-audit.2021-03-28", "app.log")).isFalse();
+        assertThat(daily.isRolledFile("other.log.2021-03-28", "app.log")).isFalse();
+    }
+
+    @Test
+    public void testLegacyPatterns()
+    {
+        String[] patterns = {
+            "'.'yyyy-MM-dd",
+            "'.'yyyy-MM-dd-u",
+            "'.'yyyy-MM-F",
+            "'.'yyyy-MM-dd-HH-mm-ss-S",
+            "'.'yyyy-MM-dd-HH-mm-ss-SSS",
+            "'.'yyyy-ddd-DDDD",
+            "'.'YYYY-ww-W",
+            "'.'yyyy-MMMM-dd-EEEE-aa",
+            "'['yyyy-MM-dd']'",
+            "[yyyy-MM-dd]#{HH}",
+            "'.'yyyy-MM-dd'T'''HH''mm" };
+        long[] times = {
+            millis("2021-01-03T09:05:07.008+01:00"),
+            millis("2021-03-28T23:59:59.999+02:00"),
+            millis("2020-12-31T12:00:00.123+01:00") };
+
+        for (String pattern : patterns)
+        {
+            RolloverSchedule schedule = new RolloverSchedule(pattern, ROME, Locale.ITALY);
+            SimpleDateFormat legacy = new SimpleDateFormat(pattern, Locale.ITALY);
+            legacy.setTimeZone(TimeZone.getTimeZone(ROME));
+            for (long time : times)
+            {
+                String formatted = schedule.format(time);
+                assertThat(formatted).as(pattern).isEqualTo(legacy.format(new Date(time)));
+                assertThat(schedule.isRolledFile("app.log" + formatted, "app.log")).as(pattern).isTrue();
+            }
+        }
+
+        assertThat(type("'.'yyyy-MM-dd-u")).isEqualTo(EnhancedDailyRollingFileAppender.TOP_OF_DAY);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnterminatedQuote()
+    {
+        new RolloverSchedule("'.yyyy-MM-dd", ROME, Locale.ITALY);
+    }
+
+    private static int type(String pattern)
+    {
+        return new RolloverSchedule(pattern, ROME, Locale.ITALY).getType();
+    }
+
+    private static long millis(String dateTime)
+    {
+        return OffsetDateTime.parse(dateTime).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+
+/**
+ * Tests for {@link StackTraceRenderer}.
+ * @author fgiust
+ */
+public class StackTraceRendererTest
+{
+
+    @Test
+    public void testFiltersByClassName()
+    {
+        StringBuilder buffer = new StringBuilder();
+        new StackTraceRenderer(
+            FrameFilterMatcher.compile(Collections.singleton(StackTraceRendererTest.class.getName())),
+            "\n").render(FilteredPatternLayoutFormatTest.nestedThrowable(), buffer);
+
+        assertThat(buffer.toString()).startsWith("java.lang.RuntimeException: wrapper\n");
+        assertThat(buffer.toString()).doesNotContain("at " + StackTraceRendererTest.class.getName());
+    }
+
+    @Test
+    public void testFrameFormat()
+    {
+        Throwable throwable = new IllegalStateException("boom");
+        throwable.setStackTrace(new StackTraceElement[]{
+            new StackTraceElement("a.B", "run", "B.java", 12),
+            new StackTraceElement("a.B", "call", "B.java", -1),
+            new StackTraceElement("a.C", "invoke0", null, -2),
+            new StackTraceElement("a.D", "main", null, -1) });
+        Throwable suppressed = new IllegalArgumentException("closing");
+        suppressed.setStackTrace(new StackTraceElement[]{new StackTraceElement("a.E", "close", "E.java", 3) });
+        throwable.addSuppressed(suppressed);
+
+        StringBuilder buffer = new StringBuilder();
+        new StackTraceRenderer(FrameFilterMatcher.EMPTY, "\n").render(throwable, buffer);
+
+        assertThat(buffer.toString()).isEqualTo(
+            "java.lang.IllegalStateException: boom\n"
+                + "\tat a.B.run(B.java:12)\n"
+                + "\tat a.B.call(B.java)\n"
+                + "\tat a.C.invoke0(Native Method)\n"
+                + "\tat a.D.main(Unknown Source)\n"
+                + "\tSuppressed: java.lang.IllegalArgumentException: closing\n"
+                + "\t\tat a.E.close(E.java:3)\n");
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.RollingFileAppender;
+import org.apache.logging.log4j.core.appender.rolling.SizeBasedTriggeringPolicy;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for {@link ArchiveRolloverStrategy}.
+ * @author fgiust
+ */
+public class ArchiveRolloverStrategyTest
+{
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testArchive() throws Exception
+    {
+        File log = new File(folder.getRoot(), "app.log");
+        RollingFileAppender appender = appender(log, "app.log.%i", "archive");
+
+        appender.append(event("first"));
+        appender.append(event("second"));
+        appender.append(event("third"));
+
+        File archive = new File(folder.getRoot(), "archive");
+        waitFor(new File(archive, "app.log.2"));
+        appender.stop();
+
+        assertThat(read(new File(archive, "app.log.1"))).isEqualTo("first\n");
+        assertThat(read(new File(archive, "app.log.2"))).isEqualTo("second\n");
+        assertThat(read(log)).isEqualTo("third\n");
+        assertThat(folder.getRoot().list()).containsOnly("app.log", "archive");
+    }
+
+    @Test
+    public void testArchiveReplaced() throws Exception
+    {
+        File log = new File(folder.getRoot(), "app.log");
+        // no index, every rollover in the same year gets the same name
+        RollingFileAppender appender = appender(log, "app.log.%d{yyyy}", "archive");
+
+        appender.append(event("first"));
+        appender.append(event("second"));
+        File archived = new File(new File(folder.getRoot(), "archive"), "app.log."
+            + new SimpleDateFormat("yyyy").format(new Date()));
+        waitFor(archived);
+        appender.append(event("third"));
+
+        for (int j = 0; j < 100 && !"second\n".equals(read(archived)); j++)
+        {
+            Thread.sleep(50);
+        }
+        appender.stop();
+
+        assertThat(read(archived)).isEqualTo("second\n");
+        assertThat(read(log)).isEqualTo("third\n");
+        assertThat(new File(folder.getRoot(), "archive").list()).containsOnly(archived.getName());
+    }
+
+    @Test
+    public void testCompressedArchive() throws Exception
+    {
+        File log = new File(folder.getRoot(), "app.log");
+        RollingFileAppender appender = appender(log, "app.log.%i.gz", "old");
+
+        appender.append(event("first"));
+        appender.append(event("second"));
+
+        File compressed = new File(new File(folder.getRoot(), "old"), "app.log.1.gz");
+        waitFor(compressed);
+        appender.stop();
+
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(compressed.toPath())))
+        {
+            byte[] buffer = new byte[64];
+            int read = in.read(buffer);
+            assertThat(new String(buffer, 0, read, StandardCharsets.UTF_8)).isEqualTo("first\n");
+        }
+        assertThat(new File(folder.getRoot(), "old").list()).containsOnly("app.log.1.gz");
+        assertThat(read(log)).isEqualTo("second\n");
+    }
+
+    @Test
+    public void testRecoverStaging() throws Exception
+    {
+        File log = new File(folder.getRoot(), "app.log");
+        // renamed by a rollover interrupted by a crash, before being archived
+        Files.write(new File(folder.getRoot(), "app.log.1").toPath(), "crashed\n".getBytes(StandardCharsets.UTF_8));
+        RollingFileAppender appender = appender(log, "app.log.%i", "archive");
+
+        appender.append(event("first"));
+        appender.append(event("second"));
+
+        File archive = new File(folder.getRoot(), "archive");
+        waitFor(new File(archive, "app.log.1"));
+        waitFor(new File(archive, "app.log.2"));
+        appender.stop();
+
+        assertThat(read(new File(archive, "app.log.1"))).isEqualTo("crashed\n");
+        assertThat(read(new File(archive, "app.log.2"))).isEqualTo("first\n");
+        assertThat(folder.getRoot().list()).containsOnly("app.log", "archive");
+    }
+
+    @Test
+    public void testStagingPattern()
+    {
+        Pattern indexed = ArchiveRolloverStrategy.stagingPattern("/logs/app.log.%d{yyyy-MM-dd}.%i.gz", ".gz");
+        assertThat(indexed.matcher("app.log.2021-10-31.12").matches()).isTrue();
+        assertThat(indexed.matcher("app.log.2021-10-31.12.gz").matches()).isFalse();
+        assertThat(indexed.matcher("app.log").matches()).isFalse();
+
+        Pattern dated = ArchiveRolloverStrategy.stagingPattern("%d{yyyy-MM-dd}.log", null);
+        assertThat(dated.matcher("2021-10-31.log").matches()).isTrue();
+        assertThat(dated.matcher("other.log").matches()).isFalse();
+
+        Pattern named = ArchiveRolloverStrategy.stagingPattern("app.log.%d{dd MMM 'at' HH}{UTC}", null);
+        assertThat(named.matcher("app.log.31 Oct at 09").matches()).isTrue();
+    }
+
+    private RollingFileAppender appender(File log, String filePattern, String archiveDirectory)
+    {
+        Configuration config = new DefaultConfiguration();
+        RollingFileAppender appender = RollingFileAppender
+            .newBuilder()
+            .withFileName(log.getAbsolutePath())
+            .withFilePattern(new File(folder.getRoot(), filePattern).getAbsolutePath())
+            .withPolicy(SizeBasedTriggeringPolicy.createPolicy("1"))
+            .withStrategy(ArchiveRolloverStrategy.createStrategy(archiveDirectory, 1, config))
+            .setName("rolling")
+            .setLayout(PatternLayout.newBuilder().withPattern("%m\n").build())
+            .setConfiguration(config)
+            .build();
+        appender.start();
+        return appender;
+    }
+
+    private LogEvent event(String message)
+    {
+        return Log4jLogEvent
+            .newBuilder()
+            .setLoggerName("test")
+            .setLevel(Level.INFO)
+            .setMessage(new SimpleMessage(message))
+            .build();
+    }
+
+    private static String read(File file) throws IOException
+    {
+        return StringUtils.toEncodedString(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    private static void waitFor(File file) throws InterruptedException
+    {
+        for (int j = 0; j < 100 && !file.exists(); j++)
+        {
+            Thread.sleep(50);
+        }
+        assertThat(file).exists();
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *
+ * openutils for Log4j (https://github.com/openmindlab/openutils-log4j)
+ * Copyright(C) 2005-2021, https://github.com/openmindlab
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.openutils.log4j2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.Test;
+
+
+/**
+ * Tests for {@link FilteredThrowablePatternConverter}.
+ * @author fgiust
+ */
+public class FilteredThrowablePatternConverterTest
+{
+
+    private LogEvent event(Throwable throwable)
+    {
+        return Log4jLogEvent
+            .newBuilder()
+            .setLoggerName("test")
+            .setLevel(Level.ERROR)
+            .setMessage(new SimpleMessage("message"))
+            .setThrown(throwable)
+            .build();
+    }
+
+    @Test
+    public void testFilteredFrames()
+    {
+        PatternLayout layout = PatternLayout
+            .newBuilder()
+            .withPattern("%m%n%fex{filters(org.junit, regex:org\\.apache\\.(?:maven|surefire))}")
+            .build();
+
+        String formatted = layout.toSerializable(event(new RuntimeException("wrapper", new Exception("cause"))));
+
+        assertThat(formatted).startsWith("message" + System.lineSeparator() + "java.lang.RuntimeException: wrapper");
+        assertThat(formatted).contains("Caused by: java.lang.Exception: cause");
+        assertThat(formatted).contains("at " + FilteredThrowablePatternConverterTest.class.getName());
+        assertThat(formatted).doesNotContain("at org.junit").doesNotContain("at org.apache.maven");
+    }
+
+    @Test
+    public void testHandlesThrowable()
+    {
+        PatternLayout layout = PatternLayout.newBuilder().withPattern("%m %fex").build();
+
+        String formatted = layout.toSerializable(event(new IllegalStateException("failure")));
+
+        // the stack trace is only written once
+        assertThat(formatted.split("IllegalStateException")).hasSize(2);
+        assertThat(layout.toSerializable(event(null))).isEqualTo("message ");
+    }
+}